@@ -0,0 +1,129 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package com.sh_zam.qtandroid_test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qtproject.qt5.android.FakeProviderTestCase;
+
+import java.io.IOException;
+
+/**
+ * Runs SAFFileManager against {@link FakeDocumentsProvider}, and fails if a
+ * scenario goes to the provider more often than it should. Each test gets its
+ * own SAFFileManager, so it starts with cold caches.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SAFQueryBudgetTest extends FakeProviderTestCase {
+    private static final String TAG = "SAFQueryBudgetTest";
+
+    // children of the Tree's root and of the test directory
+    private static final int RESOLVE_BUDGET = 2;
+
+    private static void assertBudget(String scenario, int budget, int queries) {
+        Log.i(TAG, scenario + ": queries = " + queries + ", budget = " + budget);
+        assertTrue(scenario + " made " + queries + " queries, budget is " + budget,
+                queries <= budget);
+    }
+
+    @Test
+    public void deepMkdir() {
+        final int depth = 20;
+        StringBuilder path = new StringBuilder(testUrl);
+        for (int i = 0; i < depth; ++i) {
+            path.append("/d").append(i);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        assertTrue(manager.mkdir(path.toString(), true));
+        Log.i(TAG, "deepMkdir: " + (SystemClock.elapsedRealtime() - start) + "ms");
+        assertEquals(depth, FakeDocumentsProvider.getCreateCount());
+        // nothing under the test directory has to be listed, we created it
+        assertBudget("deepMkdir", RESOLVE_BUDGET, FakeDocumentsProvider.getQueryCount());
+
+        FakeDocumentsProvider.resetCounters();
+        assertTrue(manager.mkdir(path.toString(), true));
+        assertTrue(manager.isDir(path.toString()));
+        assertEquals(0, FakeDocumentsProvider.getCreateCount());
+        assertBudget("deepMkdir again", 0, FakeDocumentsProvider.getQueryCount());
+    }
+
+    @Test
+    public void largeListing() throws IOException {
+        final int count = 10000;
+        createFiles(count);
+        FakeDocumentsProvider.resetCounters();
+
+        long start = SystemClock.elapsedRealtime();
+        final String[] names = manager.listFileNames(testUrl);
+        Log.i(TAG, "largeListing: list " + (SystemClock.elapsedRealtime() - start) + "ms");
+        assertNotNull(names);
+        assertEquals(count, names.length);
+        assertBudget("largeListing", RESOLVE_BUDGET, FakeDocumentsProvider.getQueryCount());
+
+        // everything we need came with the listing
+        FakeDocumentsProvider.resetCounters();
+        start = SystemClock.elapsedRealtime();
+        for (String name : names) {
+            final String fileUrl = testUrl + "/" + name;
+            assertTrue(manager.exists(fileUrl));
+            assertEquals(0, manager.getSize(fileUrl));
+        }
+        Log.i(TAG, "largeListing: stat " + (SystemClock.elapsedRealtime() - start) + "ms");
+        assertBudget("largeListing stat", 0, FakeDocumentsProvider.getQueryCount());
+    }
+
+    @Test
+    public void statStorm() throws IOException {
+        final int count = 100;
+        final int iterations = 50;
+        createFiles(count);
+        FakeDocumentsProvider.resetCounters();
+
+        final long start = SystemClock.elapsedRealtime();
+        for (int j = 0; j < iterations; ++j) {
+            for (int i = 0; i < count; ++i) {
+                final String name = i + ".test";
+                final String fileUrl = testUrl + "/" + name;
+                assertTrue(manager.exists(fileUrl));
+                assertEquals(0, manager.getSize(fileUrl));
+                assertTrue(manager.canWrite(fileUrl));
+                assertFalse(manager.isDir(fileUrl));
+                assertEquals(name, manager.getFileName(fileUrl));
+            }
+            // things like lock files, which don't exist
+            assertFalse(manager.exists(testUrl + "/" + j + ".lock"));
+        }
+        Log.i(TAG, "statStorm: " + (SystemClock.elapsedRealtime() - start) + "ms");
+        assertBudget("statStorm", RESOLVE_BUDGET, FakeDocumentsProvider.getQueryCount());
+    }
+
+    @Test
+    public void slowProviderWarmCache() throws IOException {
+        createFiles(10);
+        assertNotNull(manager.listFileNames(testUrl));
+
+        // once warm, a slow provider shouldn't slow us down
+        FakeDocumentsProvider.setLatencyMs(100);
+        FakeDocumentsProvider.resetCounters();
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(manager.exists(testUrl + "/" + i + ".test"));
+        }
+        Log.i(TAG, "slowProviderWarmCache: " + (SystemClock.elapsedRealtime() - start) + "ms");
+        assertBudget("slowProviderWarmCache", 0, FakeDocumentsProvider.getQueryCount());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * copy() and move(), done by the provider when it can, and by copying the
+ * contents between descriptors when it can't.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CopyMoveTest extends InMemoryTestCase {
+
+    private static final byte[] CONTENTS = {1, 2, 3, 4, 5};
+
+    /**
+     * Counts the copies and moves asked of the provider, and can refuse them
+     * the way providers without the support would.
+     */
+    private static class RefusingBackend extends InMemoryDocumentBackend {
+        final AtomicInteger copies = new AtomicInteger();
+        final AtomicInteger moves = new AtomicInteger();
+        volatile boolean refuse = false;
+
+        RefusingBackend(File contentsDir) {
+            super(contentsDir);
+        }
+
+        @Override
+        public Uri copyDocument(Uri documentUri, Uri targetParentUri) {
+            copies.incrementAndGet();
+            return refuse ? null : super.copyDocument(documentUri, targetParentUri);
+        }
+
+        @Override
+        public Uri moveDocument(Uri documentUri, Uri sourceParentUri, Uri targetParentUri) {
+            moves.incrementAndGet();
+            return refuse ? null : super.moveDocument(documentUri, sourceParentUri, targetParentUri);
+        }
+    }
+
+    @Override
+    InMemoryDocumentBackend newBackend(File contentsDir) {
+        return new RefusingBackend(contentsDir);
+    }
+
+    private byte[] readDocument(String path) throws IOException {
+        final int fd = manager.openFileDescriptor(treeUrl + "/" + path, "r");
+        assertTrue(fd >= 0);
+        try {
+            final ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(fd);
+            final byte[] contents = new byte[(int) pfd.getStatSize()];
+            final FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+            try {
+                int read = 0;
+                while (read < contents.length) {
+                    final int n = in.read(contents, read, contents.length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+            } finally {
+                in.close();
+                pfd.close();
+            }
+            return contents;
+        } finally {
+            manager.closeFileDescriptor(fd);
+        }
+    }
+
+    @Test
+    public void providerCopies() throws Exception {
+        final RefusingBackend refusingBackend = (RefusingBackend) backend;
+        createFile("src/a.txt", CONTENTS);
+
+        // missing parents are created
+        assertTrue(manager.copy(treeUrl + "/src/a.txt", treeUrl + "/x/y/b.txt"));
+        assertEquals(1, refusingBackend.copies.get());
+        assertArrayEquals(CONTENTS, readDocument("x/y/b.txt"));
+        assertArrayEquals(CONTENTS, readDocument("src/a.txt"));
+    }
+
+    @Test
+    public void contentsAreCopiedWhenTheProviderCant() throws Exception {
+        final RefusingBackend refusingBackend = (RefusingBackend) backend;
+        refusingBackend.refuse = true;
+        createFile("src/a.txt", CONTENTS);
+        createFile("src/sub/c.txt", new byte[]{6, 7});
+
+        assertTrue(manager.copy(treeUrl + "/src", treeUrl + "/dst"));
+        assertTrue(refusingBackend.copies.get() > 0);
+        assertArrayEquals(CONTENTS, readDocument("dst/a.txt"));
+        assertArrayEquals(new byte[]{6, 7}, readDocument("dst/sub/c.txt"));
+        assertArrayEquals(CONTENTS, readDocument("src/a.txt"));
+    }
+
+    @Test
+    public void contentsAreMovedWhenTheProviderCant() throws Exception {
+        final RefusingBackend refusingBackend = (RefusingBackend) backend;
+        refusingBackend.refuse = true;
+        createFile("src/a.txt", CONTENTS);
+
+        assertTrue(manager.move(treeUrl + "/src/a.txt", treeUrl + "/dst/a.txt"));
+        assertEquals(1, refusingBackend.moves.get());
+        assertFalse(manager.exists(treeUrl + "/src/a.txt"));
+        assertArrayEquals(CONTENTS, readDocument("dst/a.txt"));
+    }
+
+    @Test
+    public void movingWithinADirectoryRenames() throws Exception {
+        final RefusingBackend refusingBackend = (RefusingBackend) backend;
+        createFile("a.txt", CONTENTS);
+
+        assertTrue(manager.move(treeUrl + "/a.txt", treeUrl + "/b.txt"));
+        assertEquals(0, refusingBackend.moves.get());
+        assertFalse(manager.exists(treeUrl + "/a.txt"));
+        assertArrayEquals(CONTENTS, readDocument("b.txt"));
+    }
+
+    @Test
+    public void existingDestinationIsLeftAlone() throws Exception {
+        createFile("a.txt", CONTENTS);
+        createFile("b.txt", new byte[]{9});
+
+        assertFalse(manager.copy(treeUrl + "/a.txt", treeUrl + "/b.txt"));
+        assertFalse(manager.move(treeUrl + "/a.txt", treeUrl + "/b.txt"));
+        assertArrayEquals(new byte[]{9}, readDocument("b.txt"));
+        assertArrayEquals(CONTENTS, readDocument("a.txt"));
+        assertFalse(manager.copy(treeUrl + "/missing.txt", treeUrl + "/c.txt"));
+    }
+
+    /**
+     * The provider refuses to copy a directory into itself, the copy of the
+     * contents takes what was in it before the copy started.
+     */
+    @Test
+    public void copyingIntoItselfEnds() throws Exception {
+        createFile("d/a.txt", CONTENTS);
+
+        assertTrue(manager.copy(treeUrl + "/d", treeUrl + "/d/copy"));
+        final String[] names = manager.listFileNames(treeUrl + "/d/copy");
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"a.txt"}, names);
+        assertArrayEquals(CONTENTS, readDocument("d/copy/a.txt"));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cached listings are dropped once the provider reports a change, see
+ * {@link DirectoryObserver}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DirectoryObserverTest extends FakeProviderTestCase {
+
+    private void notifyChildrenChanged(Uri directoryUri) {
+        ctx.getContentResolver().notifyChange(DocumentsContract.buildChildDocumentsUriUsingTree(
+                directoryUri, DocumentsContract.getDocumentId(directoryUri)), null);
+    }
+
+    @Test
+    public void changesAreCoalesced() throws Exception {
+        final Uri directoryUri = documentUri("");
+        final CountDownLatch latch = new CountDownLatch(2);
+        final DirectoryObserver observer = new DirectoryObserver(ctx.getContentResolver(),
+                new DirectoryObserver.Listener() {
+                    @Override
+                    public void onDirectoryChanged(Uri uri) {
+                        assertEquals(directoryUri, uri);
+                        latch.countDown();
+                    }
+                });
+        try {
+            observer.watch(directoryUri);
+            observer.watch(directoryUri);
+            assertEquals(1, observer.size());
+
+            for (int i = 0; i < 10; ++i) {
+                notifyChildrenChanged(directoryUri);
+            }
+            // a burst is delivered once
+            assertFalse(latch.await(DirectoryObserver.DEBOUNCE_MS * 4, TimeUnit.MILLISECONDS));
+            assertEquals(1, latch.getCount());
+
+            observer.unwatch(directoryUri);
+            assertEquals(0, observer.size());
+        } finally {
+            observer.quit();
+        }
+    }
+
+    @Test
+    public void nothingIsWatchedAfterQuit() {
+        final DirectoryObserver observer = new DirectoryObserver(ctx.getContentResolver(),
+                new DirectoryObserver.Listener() {
+                    @Override
+                    public void onDirectoryChanged(Uri uri) {
+                    }
+                });
+        observer.watch(documentUri(""));
+        observer.quit();
+        assertEquals(0, observer.size());
+        observer.watch(documentUri(""));
+        assertEquals(0, observer.size());
+    }
+
+    @Test
+    public void reportedChangeDropsTheListing() throws Exception {
+        manager.setObserveChanges(true);
+        createFiles(2);
+        assertEquals(2, manager.listFileNames(testUrl).length);
+
+        assertTrue(new File(testDir, "added.test").createNewFile());
+        // still served from the cache
+        assertEquals(2, manager.listFileNames(testUrl).length);
+
+        notifyChildrenChanged(documentUri(""));
+        final long deadline = SystemClock.elapsedRealtime() + DirectoryObserver.DEBOUNCE_MS * 8;
+        String[] names = manager.listFileNames(testUrl);
+        while (names.length != 3 && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(50);
+            names = manager.listFileNames(testUrl);
+        }
+        assertNotNull(names);
+        assertTrue(Arrays.asList(names).contains("added.test"));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bounds of {@link DocumentCache}: eviction of the least recently used
+ * entries and listings, and their time to live.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DocumentCacheTest {
+
+    private static final String AUTHORITY = "org.qtproject.qt5.android.test";
+    private static final Uri TREE_URI = DocumentsContract.buildTreeDocumentUri(AUTHORITY, "root");
+
+    static CachedDocumentFile document(String documentId, CachedDocumentFile parent) {
+        final CachedDocumentFile file = CachedDocumentFile.fromAttributes(documentId, documentId,
+                "text/plain", 0L, 0, 0, DocumentsContract.buildDocumentUriUsingTree(TREE_URI, documentId));
+        if (parent != null) {
+            file.setParentUri(parent.getUri());
+        }
+        return file;
+    }
+
+    static CachedDocumentFile directory(String documentId, CachedDocumentFile parent) {
+        final CachedDocumentFile file = CachedDocumentFile.fromAttributes(documentId, documentId,
+                DocumentsContract.Document.MIME_TYPE_DIR, null, 0, 0,
+                DocumentsContract.buildDocumentUriUsingTree(TREE_URI, documentId));
+        if (parent != null) {
+            file.setParentUri(parent.getUri());
+        }
+        return file;
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        final DocumentCache cache = new DocumentCache(2, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile a = document("a", null);
+        final CachedDocumentFile b = document("b", null);
+        final CachedDocumentFile c = document("c", null);
+
+        cache.put(a);
+        cache.put(b);
+        // a is now the most recently used
+        assertSame(a, cache.get(a.getUri()));
+        cache.put(c);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(b.getUri()));
+        assertNotNull(cache.get(a.getUri()));
+        assertNotNull(cache.get(c.getUri()));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void entriesExpire() {
+        final DocumentCache cache = new DocumentCache(16, 50);
+        final CachedDocumentFile a = document("a", null);
+        final CachedDocumentFile b = document("b", null);
+        cache.put(a);
+        cache.put(b, DocumentCache.NO_EXPIRY);
+        assertSame(a, cache.get(a.getUri()));
+
+        SystemClock.sleep(100);
+        assertNull(cache.get(a.getUri()));
+        assertEquals(1, cache.getExpirationCount());
+        // kept until it is evicted
+        assertSame(b, cache.get(b.getUri()));
+    }
+
+    @Test
+    public void defaultTtlAppliesToNewEntries() {
+        final DocumentCache cache = new DocumentCache(16, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile a = document("a", null);
+        cache.setDefaultTtl(50);
+        cache.put(a);
+
+        SystemClock.sleep(100);
+        assertNull(cache.get(a.getUri()));
+    }
+
+    @Test
+    public void shrinkingEvicts() {
+        final DocumentCache cache = new DocumentCache(4, DocumentCache.NO_EXPIRY);
+        for (int i = 0; i < 4; ++i) {
+            cache.put(document(String.valueOf(i), null));
+        }
+        cache.setMaxEntries(2);
+
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getEvictionCount());
+        assertNotNull(cache.get(document("3", null).getUri()));
+    }
+
+    @Test
+    public void statisticsAreCounted() {
+        final DocumentCache cache = new DocumentCache();
+        final CachedDocumentFile a = document("a", null);
+        cache.put(a);
+        cache.get(a.getUri());
+        cache.get(document("b", null).getUri());
+
+        final long[] statistics = cache.getStatistics();
+        assertEquals(1, statistics[0]);
+        assertEquals(1, statistics[1]);
+        assertEquals(1, statistics[4]);
+
+        cache.resetStatistics();
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    private static CachedDirectory listing(CachedDocumentFile parent, int count) {
+        final List<CachedDocumentFile> children = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            children.add(document(parent.getDocumentId() + "/" + i, parent));
+        }
+        return new CachedDirectory(parent.getUri(), children);
+    }
+
+    @Test
+    public void largeListingDoesntEvictEntries() {
+        final DocumentCache cache = new DocumentCache(16, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile a = document("a", null);
+        cache.put(a);
+
+        final CachedDirectory large = listing(directory("large", null), 32);
+        cache.putDirectory(large);
+        assertSame(large, cache.getDirectory(large.getUri()));
+        // its children are still found through the listing
+        assertNotNull(large.find("31"));
+        assertEquals(1, cache.size());
+        assertSame(a, cache.get(a.getUri()));
+    }
+
+    @Test
+    public void listingsAreBoundedByTheirChildren() {
+        final DocumentCache cache = new DocumentCache(16, DocumentCache.NO_EXPIRY);
+        final int budget = 16 * DocumentCache.DIRECTORY_CHILDREN_PER_ENTRY;
+        final CachedDirectory first = listing(directory("first", null), budget / 2);
+        final CachedDirectory second = listing(directory("second", null), budget / 2);
+        cache.putDirectory(first);
+        cache.putDirectory(second);
+
+        // two halves and their own weight don't fit
+        assertNull(cache.getDirectory(first.getUri()));
+        assertSame(second, cache.getDirectory(second.getUri()));
+
+        // nor does one larger than all of it
+        final CachedDirectory huge = listing(directory("huge", null), budget);
+        cache.putDirectory(huge);
+        assertNull(cache.getDirectory(huge.getUri()));
+        assertSame(second, cache.getDirectory(second.getUri()));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.ParcelFileDescriptor;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.Os;
+
+import com.sh_zam.qtandroid_test.FakeDocumentsProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Documents opened through local copies, see {@link DocumentMirror}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DocumentMirrorTest extends FakeProviderTestCase {
+
+    @Test
+    public void mirroredWriteBack() throws Exception {
+        // our provider gives us seekable descriptors, so it has to be forced
+        manager.setMirrorMode(DocumentMirror.MODE_ALWAYS);
+        final String name = "mirrored.test";
+        final File backingFile = new File(testDir, name);
+        final byte[] contents = "mirrored contents".getBytes(StandardCharsets.UTF_8);
+
+        int fd = manager.openFileDescriptor(testUrl + "/" + name, "w");
+        assertTrue(fd != -1);
+        writeFd(fd, contents);
+        // nothing reaches the provider before the descriptor is closed
+        assertEquals(0, backingFile.length());
+        assertTrue(manager.closeFileDescriptor(fd));
+        assertEquals(contents.length, backingFile.length());
+
+        // reading it back is served from the local copy
+        FakeDocumentsProvider.resetCounters();
+        fd = manager.openFileDescriptor(testUrl + "/" + name, "r");
+        assertTrue(fd != -1);
+        final ParcelFileDescriptor readFd = ParcelFileDescriptor.fromFd(fd);
+        assertEquals(contents.length, Os.fstat(readFd.getFileDescriptor()).st_size);
+        readFd.close();
+        assertTrue(manager.closeFileDescriptor(fd));
+        assertEquals(0, FakeDocumentsProvider.getOpenCount());
+        assertTrue(manager.getMirrorCacheSize() >= contents.length);
+    }
+
+    @Test
+    public void changesOfOthersAreNotOverwritten() throws Exception {
+        manager.setMirrorMode(DocumentMirror.MODE_ALWAYS);
+        final String name = "conflict.test";
+        final File backingFile = new File(testDir, name);
+        writeFile(backingFile, "ours".getBytes(StandardCharsets.UTF_8));
+        assertTrue(backingFile.setLastModified(1000000000000L));
+
+        final int fd = manager.openFileDescriptor(testUrl + "/" + name, "rw");
+        assertTrue(fd != -1);
+        writeFd(fd, "our changes".getBytes(StandardCharsets.UTF_8));
+
+        // someone else saves while we have it open
+        final byte[] theirs = "their changes".getBytes(StandardCharsets.UTF_8);
+        writeFile(backingFile, theirs);
+        assertTrue(backingFile.setLastModified(1000000060000L));
+
+        assertFalse(manager.closeFileDescriptor(fd));
+        final Field errorField = SAFFileManager.class.getDeclaredField("mError");
+        errorField.setAccessible(true);
+        assertEquals(FileError.ABORT_ERROR, ((FileError) errorField.get(manager)).getError());
+        assertArrayEquals(theirs, readFile(backingFile));
+    }
+
+    /**
+     * An edit which keeps the size, done right after the copy was taken so that
+     * its modification time may not change.
+     */
+    @Test
+    public void sameSizeEditIsWrittenBack() throws Exception {
+        manager.setMirrorMode(DocumentMirror.MODE_ALWAYS);
+        final String name = "same-size.test";
+        final File backingFile = new File(testDir, name);
+        writeFile(backingFile, "abc".getBytes(StandardCharsets.UTF_8));
+
+        final int fd = manager.openFileDescriptor(testUrl + "/" + name, "rw");
+        assertTrue(fd != -1);
+        writeFd(fd, "xyz".getBytes(StandardCharsets.UTF_8));
+        assertTrue(manager.closeFileDescriptor(fd));
+
+        assertArrayEquals("xyz".getBytes(StandardCharsets.UTF_8), readFile(backingFile));
+    }
+}
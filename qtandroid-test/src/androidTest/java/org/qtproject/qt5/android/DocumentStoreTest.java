@@ -0,0 +1,239 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Directory listings persisted by {@link DocumentStore}, and served by a new
+ * SAFFileManager before they are validated against the backend.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DocumentStoreTest extends InMemoryTestCase {
+
+    private final List<SAFFileManager> managers = new ArrayList<>();
+
+    @Before
+    public void clearStore() {
+        final DocumentStore store = new DocumentStore(ctx);
+        store.clear();
+        store.close();
+    }
+
+    @After
+    public void closeStores() {
+        for (SAFFileManager manager : managers) {
+            manager.setPersistentCacheEnabled(false);
+        }
+    }
+
+    /**
+     * A manager of a new process, as far as the caches are concerned.
+     */
+    private SAFFileManager newManager() {
+        final SAFFileManager manager = new SAFFileManager(ctx, backend);
+        manager.setPersistentCacheEnabled(true);
+        managers.add(manager);
+        return manager;
+    }
+
+    /**
+     * Wait for the writes and validations queued on the manager's store.
+     */
+    private static void flush(SAFFileManager manager) throws Exception {
+        final Field field = SAFFileManager.class.getDeclaredField("mDocumentStore");
+        field.setAccessible(true);
+        final DocumentStore store = (DocumentStore) field.get(manager);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static String[] sorted(String[] names) {
+        assertNotNull(names);
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void savesAndLoadsListings() {
+        final Uri directoryUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        final CachedDocumentFile file = CachedDocumentFile.fromAttributes("a.txt", "2",
+                "text/plain", 3L, DocumentsContract.Document.FLAG_SUPPORTS_WRITE, 1234,
+                DocumentsContract.buildDocumentUriUsingTree(treeUri, "2"));
+        file.markLoaded();
+        final CachedDocumentFile directory = CachedDocumentFile.fromAttributes("d", "3",
+                DocumentsContract.Document.MIME_TYPE_DIR, null, 0, 5678,
+                DocumentsContract.buildDocumentUriUsingTree(treeUri, "3"));
+        directory.markLoaded();
+
+        final DocumentStore store = new DocumentStore(ctx);
+        try {
+            store.saveDirectory(directoryUri, 42, Arrays.asList(file, directory));
+            final DocumentStore.StoredDirectory stored = store.loadDirectory(directoryUri);
+            assertEquals(42, stored.lastModified);
+            assertEquals(2, stored.children.size());
+
+            for (CachedDocumentFile child : stored.children) {
+                assertEquals(directoryUri, child.getParentUri());
+                if (child.isDirectory()) {
+                    assertEquals(directory.getUri(), child.getUri());
+                    assertEquals(-1, child.getLoadedSize());
+                } else {
+                    assertEquals(file.getUri(), child.getUri());
+                    assertEquals("a.txt", child.getName());
+                    assertEquals(3, child.getLoadedSize());
+                    assertEquals(1234, child.getLastModified());
+                    assertEquals(DocumentsContract.Document.FLAG_SUPPORTS_WRITE, child.getFlags());
+                }
+            }
+
+            store.removeDirectory(directoryUri);
+            assertNull(store.loadDirectory(directoryUri));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void newManagerServesStoredListingUntilValidated() throws Exception {
+        createFile("d/a.txt", new byte[]{1});
+        createFile("d/b.txt", new byte[]{2});
+
+        final SAFFileManager first = newManager();
+        assertArrayEquals(new String[]{"d"}, first.listFileNames(treeUrl));
+        assertArrayEquals(new String[]{"a.txt", "b.txt"},
+                sorted(first.listFileNames(treeUrl + "/d")));
+        flush(first);
+
+        // removed by the test's manager, which doesn't use the store, while "we" weren't running
+        SystemClock.sleep(10);
+        assertTrue(manager.delete(treeUrl + "/d/b.txt"));
+
+        final SAFFileManager second = newManager();
+        assertArrayEquals(new String[]{"a.txt", "b.txt"},
+                sorted(second.listFileNames(treeUrl + "/d")));
+
+        flush(second);
+        assertArrayEquals(new String[]{"a.txt"}, second.listFileNames(treeUrl + "/d"));
+    }
+
+    @Test
+    public void clearedStoreIsntServed() throws Exception {
+        createFile("d/a.txt", new byte[]{1});
+
+        final SAFFileManager first = newManager();
+        assertArrayEquals(new String[]{"a.txt"}, first.listFileNames(treeUrl + "/d"));
+        flush(first);
+        first.clearPersistentCache();
+        flush(first);
+
+        assertTrue(manager.delete(treeUrl + "/d/a.txt"));
+        final SAFFileManager second = newManager();
+        assertEquals(0, second.listFileNames(treeUrl + "/d").length);
+    }
+
+    @Test
+    public void changesDropTheStoredListings() throws Exception {
+        createFile("d/a.txt", new byte[]{1});
+        createFile("d/b.txt", new byte[]{2});
+
+        final SAFFileManager first = newManager();
+        assertArrayEquals(new String[]{"a.txt", "b.txt"},
+                sorted(first.listFileNames(treeUrl + "/d")));
+        flush(first);
+        assertTrue(first.delete(treeUrl + "/d/b.txt"));
+        assertTrue(first.rename(treeUrl + "/d", "e"));
+        flush(first);
+
+        // served before any validation could have caught up
+        final SAFFileManager second = newManager();
+        assertArrayEquals(new String[]{"e"}, second.listFileNames(treeUrl));
+        assertArrayEquals(new String[]{"a.txt"}, second.listFileNames(treeUrl + "/e"));
+    }
+
+    @Test
+    public void oldestListingsArePruned() {
+        final DocumentStore store = new DocumentStore(ctx);
+        try {
+            store.setMaxDocuments(4);
+            final Uri[] directories = new Uri[3];
+            for (int i = 0; i < directories.length; ++i) {
+                directories[i] = DocumentsContract.buildDocumentUriUsingTree(treeUri, "dir" + i);
+                final List<CachedDocumentFile> children = new ArrayList<>();
+                for (int j = 0; j < 2; ++j) {
+                    final String id = "dir" + i + "/" + j;
+                    children.add(CachedDocumentFile.fromAttributes(String.valueOf(j), id,
+                            "text/plain", 1L, 0, 0,
+                            DocumentsContract.buildDocumentUriUsingTree(treeUri, id)));
+                }
+                store.saveDirectory(directories[i], 0, children);
+            }
+
+            assertNull(store.loadDirectory(directories[0]));
+            assertNotNull(store.loadDirectory(directories[2]));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void closeWaitsForTheRunningTask() throws Exception {
+        final DocumentStore store = new DocumentStore(ctx);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final AtomicBoolean dropped = new AtomicBoolean(true);
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                SystemClock.sleep(200);
+                finished.set(true);
+            }
+        });
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                dropped.set(false);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        store.close();
+        assertTrue(finished.get());
+        assertTrue(dropped.get());
+    }
+}
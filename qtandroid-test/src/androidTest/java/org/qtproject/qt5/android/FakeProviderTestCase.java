@@ -0,0 +1,141 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.support.test.InstrumentationRegistry;
+
+import com.sh_zam.qtandroid_test.FakeDocumentsProvider;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Base of the tests which run SAFFileManager against {@link FakeDocumentsProvider}.
+ * Each test gets a directory of its own in the provider's Tree, and a
+ * SAFFileManager with nothing cached.
+ * <p>
+ * Most of the tests live in SAFFileManager's package, so they can get at its
+ * parts directly, those outside of it only go through the public API.
+ */
+public abstract class FakeProviderTestCase {
+
+    protected final Context ctx =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    protected final Uri treeUri = DocumentsContract.buildTreeDocumentUri(
+            FakeDocumentsProvider.AUTHORITY, FakeDocumentsProvider.ROOT_ID);
+
+    protected SAFFileManager manager;
+    protected File testDir;
+    protected String testUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        final String name = getClass().getSimpleName() + System.nanoTime();
+        testDir = new File(FakeDocumentsProvider.getRootDir(ctx), name);
+        assertTrue(testDir.mkdirs());
+        testUrl = treeUri.toString() + "/" + name;
+
+        manager = newManager();
+        FakeDocumentsProvider.resetCounters();
+    }
+
+    @After
+    public void tearDown() {
+        manager.setObserveChanges(false);
+        // the limits are shared by the whole process, so we put back the defaults
+        manager.setProviderCallLimits(ProviderBulkheads.DEFAULT_MAX_CONCURRENT_CALLS,
+                ProviderBulkheads.DEFAULT_TIMEOUT_MS);
+        FakeDocumentsProvider.setLatencyMs(0);
+        deleteRecursively(testDir);
+    }
+
+    /**
+     * @return a SAFFileManager with nothing cached, which has permission to
+     * the fake provider's Tree.
+     */
+    @SuppressWarnings("unchecked")
+    protected SAFFileManager newManager() throws Exception {
+        final SAFFileManager manager = new SAFFileManager(ctx);
+
+        // our own provider can't give us a persistable permission
+        final Field permissionField = SAFFileManager.class.getDeclaredField("mCachedPermissions");
+        permissionField.setAccessible(true);
+        final List<ContentUriPermission> permissions =
+                (List<ContentUriPermission>) permissionField.get(manager);
+        permissions.add(new ContentUriPermission(treeUri, true, true));
+        return manager;
+    }
+
+    /**
+     * @return document Uri of the file or directory under the test directory.
+     */
+    protected Uri documentUri(String path) {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                FakeDocumentsProvider.ROOT_ID + "/" + testDir.getName()
+                        + (path.isEmpty() ? "" : "/" + path));
+    }
+
+    protected void createFiles(int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            assertTrue(new File(testDir, i + ".test").createNewFile());
+        }
+    }
+
+    protected static void writeFd(int fd, byte[] contents) throws IOException {
+        final ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(fd);
+        final FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor());
+        out.write(contents);
+        out.close();
+    }
+
+    protected static void writeFile(File file, byte[] contents) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(contents);
+        out.close();
+    }
+
+    protected static byte[] readFile(File file) throws IOException {
+        final byte[] contents = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < contents.length) {
+                final int n = in.read(contents, read, contents.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    protected static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class FileDescriptorRegistryTest {
+
+    private final Context ctx =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private final Uri directoryUri = Uri.parse("content://test/tree/root/document/root%2Fdir");
+    private final Uri documentUri = Uri.parse("content://test/tree/root/document/root%2Fdir%2Fa");
+
+    private FileDescriptorRegistry registry;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new FileDescriptorRegistry();
+        file = File.createTempFile("registry", null, ctx.getCacheDir());
+    }
+
+    @After
+    public void tearDown() {
+        registry.closeIdle();
+        file.delete();
+    }
+
+    private ParcelFileDescriptor open() throws Exception {
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Test
+    public void reservationsCountTowardsTheCap() throws Exception {
+        registry.setMaxOpen(2);
+        assertTrue(registry.reserve());
+        assertTrue(registry.reserve());
+        // nothing has been registered yet, but both slots are taken
+        assertFalse(registry.reserve());
+
+        registry.release();
+        assertTrue(registry.reserve());
+
+        registry.register(documentUri, directoryUri, "r", open());
+        registry.register(documentUri, directoryUri, "r", open());
+        assertEquals(2, registry.getOpenCount());
+        assertFalse(registry.reserve());
+    }
+
+    @Test
+    public void concurrentReservationsStayUnderTheCap() throws Exception {
+        final int maxOpen = 16;
+        final int threads = 64;
+        registry.setMaxOpen(maxOpen);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger reserved = new AtomicInteger();
+        for (int i = 0; i < threads; ++i) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (registry.reserve()) {
+                            reserved.incrementAndGet();
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(maxOpen, reserved.get());
+    }
+
+    @Test
+    public void parkedDescriptorsAreReused() throws Exception {
+        assertTrue(registry.reserve());
+        final ParcelFileDescriptor pfd = open();
+        registry.register(documentUri, directoryUri, "r", pfd);
+        assertTrue(registry.close(pfd.getFd()));
+        assertEquals(1, registry.getIdleCount());
+
+        assertNotNull(registry.reuse(documentUri, "r"));
+        // only read-only descriptors are shared
+        assertNull(registry.reuse(documentUri, "rw"));
+    }
+
+    @Test
+    public void changedDirectoryClosesParkedChildren() throws Exception {
+        assertTrue(registry.reserve());
+        final ParcelFileDescriptor pfd = open();
+        registry.register(documentUri, directoryUri, "r", pfd);
+        assertTrue(registry.close(pfd.getFd()));
+        assertEquals(1, registry.getIdleCount());
+
+        registry.invalidateChildren(Uri.parse("content://test/tree/root/document/root%2Fother"));
+        assertEquals(1, registry.getIdleCount());
+        registry.invalidateChildren(directoryUri);
+        assertEquals(0, registry.getIdleCount());
+        assertNull(registry.reuse(documentUri, "r"));
+    }
+}
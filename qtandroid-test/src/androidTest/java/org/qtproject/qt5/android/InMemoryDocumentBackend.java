@@ -0,0 +1,412 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Documents held in memory, with the contents of files kept in temporary files
+ * so that they can still be opened. Meant for exercising and benchmarking the
+ * resolution and caching of {@link SAFFileManager} without a provider, optionally
+ * with a simulated latency per call.
+ * <p>
+ * Document ids are opaque, like those of most cloud providers, so they can't
+ * be guessed from the path.
+ */
+class InMemoryDocumentBackend implements DocumentBackend {
+
+    private static final String TAG = "InMemoryDocumentBackend";
+
+    static final String AUTHORITY = "org.qtproject.qt5.android.inmemory";
+
+    private static final int FILE_FLAGS = DocumentsContract.Document.FLAG_SUPPORTS_WRITE
+            | DocumentsContract.Document.FLAG_SUPPORTS_DELETE
+            | DocumentsContract.Document.FLAG_SUPPORTS_RENAME
+            | DocumentsContract.Document.FLAG_SUPPORTS_COPY
+            | DocumentsContract.Document.FLAG_SUPPORTS_MOVE;
+    private static final int DIRECTORY_FLAGS = DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE
+            | DocumentsContract.Document.FLAG_SUPPORTS_DELETE
+            | DocumentsContract.Document.FLAG_SUPPORTS_RENAME
+            | DocumentsContract.Document.FLAG_SUPPORTS_COPY
+            | DocumentsContract.Document.FLAG_SUPPORTS_MOVE;
+
+    private static class Node {
+        final String documentId;
+        final String mimeType;
+        String name;
+        Node parent;
+        long lastModified;
+        // only for directories, by name
+        final LinkedHashMap<String, Node> children;
+        // only for files, created when first opened
+        File contents;
+
+        Node(String documentId, String name, String mimeType) {
+            this.documentId = documentId;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.lastModified = System.currentTimeMillis();
+            this.children = DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)
+                    ? new LinkedHashMap<String, Node>() : null;
+        }
+
+        boolean isDirectory() {
+            return children != null;
+        }
+    }
+
+    private final File mContentsDir;
+    private final HashMap<String, Node> mNodes = new HashMap<>();
+    private final List<ContentUriPermission> mPermissions = new ArrayList<>();
+    private int mNextId = 1;
+    private volatile long mLatencyMs = 0;
+    private final AtomicLong mCalls = new AtomicLong();
+
+    /**
+     * @param contentsDir where the contents of the files are kept.
+     */
+    InMemoryDocumentBackend(File contentsDir) {
+        mContentsDir = contentsDir;
+    }
+
+    /**
+     * Create an empty Tree we have been granted read and write permission to.
+     *
+     * @return the Tree Uri
+     */
+    synchronized Uri addTree(String name) {
+        final Node root = new Node(nextId(), name, DocumentsContract.Document.MIME_TYPE_DIR);
+        mNodes.put(root.documentId, root);
+        final Uri treeUri = DocumentsContract.buildTreeDocumentUri(AUTHORITY, root.documentId);
+        mPermissions.add(new ContentUriPermission(treeUri, true, true));
+        return treeUri;
+    }
+
+    /**
+     * Every call after this waits for {@code latencyMs}, the way a slow
+     * provider would.
+     */
+    void setLatencyMs(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * @return number of calls made to the backend.
+     */
+    long getCallCount() {
+        return mCalls.get();
+    }
+
+    void resetCallCount() {
+        mCalls.set(0);
+    }
+
+    @Override
+    public synchronized List<ContentUriPermission> getPersistedPermissions() {
+        return new ArrayList<>(mPermissions);
+    }
+
+    @Override
+    public List<CachedDocumentFile> queryChildren(Uri documentTreeUri) {
+        call();
+        synchronized (this) {
+            final Node directory = getNode(documentTreeUri);
+            if (directory == null || !directory.isDirectory()) {
+                return null;
+            }
+            final List<CachedDocumentFile> children = new ArrayList<>(directory.children.size());
+            for (Node child : directory.children.values()) {
+                final CachedDocumentFile file = toDocument(child,
+                        DocumentsContract.buildDocumentUriUsingTree(documentTreeUri, child.documentId));
+                file.setParentUri(documentTreeUri);
+                children.add(file);
+            }
+            return children;
+        }
+    }
+
+    @Override
+    public DirectoryEnumerator openChildren(Uri documentTreeUri) {
+        call();
+        synchronized (this) {
+            final Node directory = getNode(documentTreeUri);
+            if (directory == null || !directory.isDirectory()) {
+                return null;
+            }
+            final MatrixCursor cursor = new MatrixCursor(ProviderDocumentBackend.DOCUMENT_COLUMNS,
+                    directory.children.size());
+            for (Node child : directory.children.values()) {
+                final Long size = getSize(child);
+                cursor.newRow()
+                        .add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, child.name)
+                        .add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, child.documentId)
+                        .add(DocumentsContract.Document.COLUMN_MIME_TYPE, child.mimeType)
+                        .add(DocumentsContract.Document.COLUMN_SIZE, size)
+                        .add(DocumentsContract.Document.COLUMN_FLAGS, getFlags(child))
+                        .add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, child.lastModified);
+            }
+            return new DirectoryEnumerator(documentTreeUri, cursor);
+        }
+    }
+
+    @Override
+    public CachedDocumentFile queryDocument(Uri documentUri) {
+        call();
+        synchronized (this) {
+            final Node node = getNode(documentUri);
+            return node != null ? toDocument(node, documentUri) : null;
+        }
+    }
+
+    @Override
+    public CachedDocumentFile createDocument(Uri parentUri, String mimeType, String displayName) {
+        call();
+        synchronized (this) {
+            final Node parent = getNode(parentUri);
+            if (parent == null || !parent.isDirectory()
+                    || parent.children.containsKey(displayName)) {
+                return null;
+            }
+
+            final Node node = new Node(nextId(), displayName, mimeType);
+            node.parent = parent;
+            parent.children.put(displayName, node);
+            parent.lastModified = System.currentTimeMillis();
+            mNodes.put(node.documentId, node);
+
+            final CachedDocumentFile file = toDocument(node,
+                    DocumentsContract.buildDocumentUriUsingTree(parentUri, node.documentId));
+            file.setParentUri(parentUri);
+            return file;
+        }
+    }
+
+    @Override
+    public boolean deleteDocument(Uri documentUri) {
+        call();
+        synchronized (this) {
+            final Node node = getNode(documentUri);
+            if (node == null || node.parent == null) {
+                return false;
+            }
+            node.parent.children.remove(node.name);
+            node.parent.lastModified = System.currentTimeMillis();
+            removeLocked(node);
+            return true;
+        }
+    }
+
+    @Override
+    public Uri renameDocument(Uri documentUri, String displayName) {
+        call();
+        synchronized (this) {
+            final Node node = getNode(documentUri);
+            if (node == null || node.parent == null
+                    || node.parent.children.containsKey(displayName)) {
+                return null;
+            }
+            node.parent.children.remove(node.name);
+            node.name = displayName;
+            node.parent.children.put(displayName, node);
+            node.parent.lastModified = System.currentTimeMillis();
+            // ids don't depend on the name
+            return documentUri;
+        }
+    }
+
+    @Override
+    public Uri copyDocument(Uri documentUri, Uri targetParentUri) {
+        call();
+        synchronized (this) {
+            final Node node = getNode(documentUri);
+            final Node targetParent = getNode(targetParentUri);
+            if (node == null || targetParent == null || !targetParent.isDirectory()
+                    || isAncestor(node, targetParent)) {
+                return null;
+            }
+            try {
+                final Node copy = copyLocked(node, targetParent, uniqueName(targetParent, node.name));
+                return DocumentsContract.buildDocumentUriUsingTree(targetParentUri, copy.documentId);
+            } catch (IOException e) {
+                Log.w(TAG, "copyDocument(): Couldn't copy the contents: " + e);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public Uri moveDocument(Uri documentUri, Uri sourceParentUri, Uri targetParentUri) {
+        call();
+        synchronized (this) {
+            final Node node = getNode(documentUri);
+            final Node sourceParent = getNode(sourceParentUri);
+            final Node targetParent = getNode(targetParentUri);
+            if (node == null || targetParent == null || !targetParent.isDirectory()
+                    || node.parent != sourceParent || isAncestor(node, targetParent)) {
+                return null;
+            }
+            sourceParent.children.remove(node.name);
+            sourceParent.lastModified = System.currentTimeMillis();
+            node.name = uniqueName(targetParent, node.name);
+            node.parent = targetParent;
+            targetParent.children.put(node.name, node);
+            targetParent.lastModified = System.currentTimeMillis();
+            return DocumentsContract.buildDocumentUriUsingTree(targetParentUri, node.documentId);
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openDocument(Uri documentUri, String mode)
+            throws FileNotFoundException {
+        call();
+        final File contents;
+        synchronized (this) {
+            final Node node = getNode(documentUri);
+            if (node == null || node.isDirectory()) {
+                throw new FileNotFoundException("No such file: " + documentUri);
+            }
+            if (node.contents == null) {
+                try {
+                    node.contents = File.createTempFile("document", null, mContentsDir);
+                } catch (IOException e) {
+                    throw new FileNotFoundException("Couldn't create the contents: " + e);
+                }
+            }
+            if (!"r".equals(mode)) {
+                node.lastModified = System.currentTimeMillis();
+            }
+            contents = node.contents;
+        }
+        return ParcelFileDescriptor.open(contents, ParcelFileDescriptor.parseMode(mode));
+    }
+
+    /**
+     * @return the node of the document, null if it doesn't exist or isn't in
+     * the Tree of the Uri.
+     */
+    private Node getNode(Uri documentTreeUri) {
+        final Node node;
+        final String treeId;
+        try {
+            node = mNodes.get(DocumentsContract.getDocumentId(documentTreeUri));
+            treeId = DocumentsContract.getTreeDocumentId(documentTreeUri);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor.documentId.equals(treeId)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private CachedDocumentFile toDocument(Node node, Uri uri) {
+        final CachedDocumentFile document = CachedDocumentFile.fromAttributes(
+                node.name, node.documentId, node.mimeType, getSize(node),
+                getFlags(node), node.lastModified, uri);
+        document.markLoaded();
+        return document;
+    }
+
+    private static Long getSize(Node node) {
+        return node.isDirectory() ? null
+                : (node.contents != null ? node.contents.length() : 0L);
+    }
+
+    private static int getFlags(Node node) {
+        return node.isDirectory() ? DIRECTORY_FLAGS : FILE_FLAGS;
+    }
+
+    /**
+     * @return true if the node is the other one or one of its ancestors.
+     */
+    private static boolean isAncestor(Node node, Node other) {
+        for (Node ancestor = other; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the name, or "name (n)" if it is taken, the way providers name copies.
+     */
+    private static String uniqueName(Node directory, String name) {
+        String uniqueName = name;
+        for (int i = 1; directory.children.containsKey(uniqueName); ++i) {
+            uniqueName = name + " (" + i + ")";
+        }
+        return uniqueName;
+    }
+
+    private Node copyLocked(Node node, Node parent, String name) throws IOException {
+        final Node copy = new Node(nextId(), name, node.mimeType);
+        copy.parent = parent;
+        parent.children.put(name, copy);
+        parent.lastModified = System.currentTimeMillis();
+        mNodes.put(copy.documentId, copy);
+
+        if (node.isDirectory()) {
+            for (Node child : node.children.values()) {
+                copyLocked(child, copy, child.name);
+            }
+        } else if (node.contents != null) {
+            copy.contents = File.createTempFile("document", null, mContentsDir);
+            final ParcelFileDescriptor in = ParcelFileDescriptor.open(node.contents,
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+            try {
+                DocumentTransfer.copy(in, copy.contents);
+            } finally {
+                in.close();
+            }
+        }
+        return copy;
+    }
+
+    private void removeLocked(Node node) {
+        mNodes.remove(node.documentId);
+        if (node.isDirectory()) {
+            for (Node child : node.children.values()) {
+                removeLocked(child);
+            }
+        } else if (node.contents != null && !node.contents.delete()) {
+            Log.w(TAG, "Couldn't delete the contents of: " + node.documentId);
+        }
+    }
+
+    private String nextId() {
+        return "doc" + mNextId++;
+    }
+
+    private void call() {
+        mCalls.incrementAndGet();
+        final long latencyMs = mLatencyMs;
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
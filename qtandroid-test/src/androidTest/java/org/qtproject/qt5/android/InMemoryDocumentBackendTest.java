@@ -0,0 +1,141 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SAFFileManager against {@link InMemoryDocumentBackend}, with nothing but
+ * the backend between them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InMemoryDocumentBackendTest extends InMemoryTestCase {
+
+    private static final long TIMEOUT_MS = 100;
+
+    /**
+     * Goes over the deadline on every query of a document, while hanging.
+     */
+    private static class HangingBackend extends InMemoryDocumentBackend {
+        volatile boolean hanging = false;
+
+        HangingBackend(File contentsDir) {
+            super(contentsDir);
+        }
+
+        @Override
+        public CachedDocumentFile queryDocument(Uri documentUri) {
+            if (!hanging) {
+                return super.queryDocument(documentUri);
+            }
+            final ProviderBulkheads.Call call = ProviderBulkheads.instance().begin(documentUri);
+            if (call != null) {
+                SystemClock.sleep(TIMEOUT_MS * 3);
+                call.end();
+            }
+            return null;
+        }
+    }
+
+    @Override
+    InMemoryDocumentBackend newBackend(File contentsDir) {
+        return new HangingBackend(contentsDir);
+    }
+
+    @Test
+    public void resolvesAndWrites() throws Exception {
+        createFile("a/b/c.txt", new byte[]{1, 2, 3});
+
+        assertTrue(manager.isDir(treeUrl + "/a/b"));
+        assertTrue(manager.exists(treeUrl + "/a/b/c.txt"));
+        assertEquals(3, manager.getSize(treeUrl + "/a/b/c.txt"));
+        assertEquals(Arrays.asList("c.txt"),
+                Arrays.asList(manager.listFileNames(treeUrl + "/a/b")));
+    }
+
+    @Test
+    public void readsDirectoriesInBatches() throws Exception {
+        for (int i = 0; i < 5; ++i) {
+            createFile("dir/" + i + ".txt", new byte[i]);
+        }
+
+        final int handle = manager.openDirectory(treeUrl + "/dir");
+        assertTrue(handle >= 0);
+        assertEquals(3, manager.readDirectory(handle, 3).names.length);
+        assertEquals(2, manager.readDirectory(handle, 3).names.length);
+        assertEquals(0, manager.readDirectory(handle, 3).names.length);
+        manager.closeDirectory(handle);
+    }
+
+    @Test
+    public void copiesAndMovesInTheBackend() throws Exception {
+        createFile("src/a.txt", new byte[]{1, 2, 3, 4});
+        assertTrue(manager.mkdir(treeUrl + "/dst", true));
+
+        assertTrue(manager.copy(treeUrl + "/src/a.txt", treeUrl + "/dst/b.txt"));
+        assertEquals(4, manager.getSize(treeUrl + "/dst/b.txt"));
+        assertTrue(manager.exists(treeUrl + "/src/a.txt"));
+
+        assertTrue(manager.move(treeUrl + "/src", treeUrl + "/dst/moved"));
+        assertFalse(manager.exists(treeUrl + "/src/a.txt"));
+        assertEquals(4, manager.getSize(treeUrl + "/dst/moved/a.txt"));
+
+        final List<CachedDocumentFile> children = backend.queryChildren(
+                DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                        DocumentsContract.getTreeDocumentId(treeUri)));
+        assertNotNull(children);
+        assertEquals(1, children.size());
+        assertEquals("dst", children.get(0).getName());
+    }
+
+    @Test
+    public void movingIntoItselfFails() throws Exception {
+        assertTrue(manager.mkdir(treeUrl + "/a/b", true));
+        final Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        final CachedDocumentFile a = backend.queryChildren(rootUri).get(0);
+        final CachedDocumentFile b = backend.queryChildren(a.getUri()).get(0);
+
+        assertNull(backend.moveDocument(a.getUri(), rootUri, b.getUri()));
+        assertNull(backend.copyDocument(a.getUri(), b.getUri()));
+    }
+
+    @Test
+    public void timeoutKeepsWhatWeKnew() throws Exception {
+        createFile("a.txt", new byte[]{1});
+        // the attributes go stale once the document has been written to
+        final int fd = manager.openFileDescriptor(treeUrl + "/a.txt", "w");
+        assertTrue(manager.closeFileDescriptor(fd));
+
+        manager.setProviderCallLimits(ProviderBulkheads.DEFAULT_MAX_CONCURRENT_CALLS, TIMEOUT_MS);
+        ((HangingBackend) backend).hanging = true;
+        // we couldn't ask, which doesn't make it go away
+        assertTrue(manager.exists(treeUrl + "/a.txt"));
+
+        ((HangingBackend) backend).hanging = false;
+        final Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        assertTrue(backend.deleteDocument(backend.queryChildren(rootUri).get(0).getUri()));
+        assertFalse(manager.exists(treeUrl + "/a.txt"));
+    }
+}
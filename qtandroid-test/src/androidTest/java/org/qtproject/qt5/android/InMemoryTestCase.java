@@ -0,0 +1,74 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Base of the tests which run SAFFileManager against an
+ * {@link InMemoryDocumentBackend}, so that they can count and delay the calls
+ * made to the backend without a provider in between.
+ */
+abstract class InMemoryTestCase {
+
+    final Context ctx =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+    File contentsDir;
+    InMemoryDocumentBackend backend;
+    Uri treeUri;
+    String treeUrl;
+    SAFFileManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        contentsDir = new File(ctx.getCacheDir(), getClass().getSimpleName() + System.nanoTime());
+        assertTrue(contentsDir.mkdirs());
+        backend = newBackend(contentsDir);
+        treeUri = backend.addTree("root");
+        treeUrl = treeUri.toString();
+        manager = new SAFFileManager(null, backend);
+    }
+
+    @After
+    public void tearDown() {
+        // the limits are shared by the whole process, so we put back the defaults
+        manager.setProviderCallLimits(ProviderBulkheads.DEFAULT_MAX_CONCURRENT_CALLS,
+                ProviderBulkheads.DEFAULT_TIMEOUT_MS);
+        FakeProviderTestCase.deleteRecursively(contentsDir);
+    }
+
+    InMemoryDocumentBackend newBackend(File contentsDir) {
+        return new InMemoryDocumentBackend(contentsDir);
+    }
+
+    /**
+     * Create the file, and the directories leading to it, with the contents.
+     */
+    void createFile(String path, byte[] contents) throws IOException {
+        final int split = path.lastIndexOf('/');
+        if (split > 0) {
+            assertTrue(manager.mkdir(treeUrl + "/" + path.substring(0, split), true));
+        }
+        final int fd = manager.openFileDescriptor(treeUrl + "/" + path, "w");
+        assertTrue(fd >= 0);
+        FakeProviderTestCase.writeFd(fd, contents);
+        assertTrue(manager.closeFileDescriptor(fd));
+        assertEquals(contents.length, manager.getSize(treeUrl + "/" + path));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Environment;
+import android.provider.DocumentsContract;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Documents of the external storage provider read from the filesystem, in our
+ * app specific directory, which we can always access directly.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LocalStorageBackendTest {
+
+    private final Context ctx =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+    private LocalStorageBackend backend;
+    private File directory;
+    private Uri treeUri;
+    private String treeId;
+    private File outside;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new LocalStorageBackend(ctx);
+        directory = new File(ctx.getExternalFilesDirs(null)[0], "local" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+
+        final String root = Environment.getExternalStorageDirectory().getCanonicalPath();
+        final String path = directory.getCanonicalPath();
+        assertTrue(path.startsWith(root + "/"));
+        treeId = "primary:" + path.substring(root.length() + 1);
+        treeUri = DocumentsContract.buildTreeDocumentUri(LocalStorageBackend.AUTHORITY, treeId);
+    }
+
+    @After
+    public void tearDown() {
+        FakeProviderTestCase.deleteRecursively(directory);
+        if (outside != null) {
+            FakeProviderTestCase.deleteRecursively(outside);
+        }
+    }
+
+    private Uri documentUri(String documentId) {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+    }
+
+    @Test
+    public void readsTheFilesystem() throws Exception {
+        assertTrue(new File(directory, "a.png").createNewFile());
+        final Uri rootUri = documentUri(treeId);
+        assertTrue(backend.handles(rootUri));
+
+        final List<CachedDocumentFile> children = backend.queryChildren(rootUri);
+        assertNotNull(children);
+        assertEquals(1, children.size());
+        assertEquals("a.png", children.get(0).getName());
+        assertEquals(documentUri(treeId + "/a.png"), children.get(0).getUri());
+        assertEquals("image/png", children.get(0).getMimeType());
+
+        assertNotNull(backend.queryDocument(documentUri(treeId + "/a.png")));
+        assertNull(backend.queryDocument(documentUri(treeId + "/missing.png")));
+    }
+
+    @Test
+    public void otherAuthoritiesAreNotHandled() {
+        final Uri uri = DocumentsContract.buildDocumentUriUsingTree(
+                DocumentsContract.buildTreeDocumentUri("com.example.documents", treeId), treeId);
+        assertFalse(backend.handles(uri));
+    }
+
+    @Test
+    public void parentSegmentsAreRejected() throws Exception {
+        assertTrue(new File(directory, "a").mkdir());
+        assertTrue(backend.handles(documentUri(treeId)));
+
+        assertNull(backend.queryDocument(documentUri(treeId + "/..")));
+        assertNull(backend.queryDocument(documentUri(treeId + "/a/../..")));
+        assertNull(backend.queryChildren(documentUri(treeId + "/a/..")));
+        assertNull(backend.open(documentUri(treeId + "/../" + directory.getName() + "/b"), "r"));
+    }
+
+    @Test
+    public void accessIsCheckedAgainOnceInvalidated() {
+        final Uri rootUri = documentUri(treeId);
+        assertTrue(backend.handles(rootUri));
+        backend.invalidateAccess(rootUri);
+        // still ours, so the check comes out the same
+        assertTrue(backend.handles(rootUri));
+    }
+
+    @Test
+    public void linksOutOfTheTreeAreLeftToTheProvider() throws Exception {
+        outside = new File(directory.getParentFile(), directory.getName() + ".outside");
+        assertTrue(outside.mkdir());
+        assertTrue(new File(outside, "secret.txt").createNewFile());
+        try {
+            Os.symlink(outside.getPath(), new File(directory, "link").getPath());
+        } catch (ErrnoException e) {
+            // e.g sdcardfs doesn't do symbolic links
+            assumeTrue(false);
+        }
+        assertTrue(backend.handles(documentUri(treeId)));
+
+        assertNull(backend.queryDocument(documentUri(treeId + "/link")));
+        assertNull(backend.queryDocument(documentUri(treeId + "/link/secret.txt")));
+        assertNull(backend.queryChildren(documentUri(treeId + "/link")));
+        assertNull(backend.open(documentUri(treeId + "/link/secret.txt"), "r"));
+        // nor can a listing of the Tree hand it out
+        assertNull(backend.queryChildren(documentUri(treeId)));
+    }
+}
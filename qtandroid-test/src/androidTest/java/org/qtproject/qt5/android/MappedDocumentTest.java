@@ -0,0 +1,84 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Process;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only mappings through {@link SAFFileManager#mapFileDescriptor(int)}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MappedDocumentTest extends FakeProviderTestCase {
+
+    @After
+    @Override
+    public void tearDown() {
+        MappedDocument.setMaxMappedBytes(Process.is64Bit()
+                ? Long.MAX_VALUE : MappedDocument.MAX_MAPPED_BYTES_32BIT);
+        super.tearDown();
+    }
+
+    @Test
+    public void mapsTheContents() throws Exception {
+        final byte[] contents = "mapped contents".getBytes(StandardCharsets.UTF_8);
+        writeFile(new File(testDir, "mapped.test"), contents);
+        final long mappedBefore = MappedDocument.getMappedBytes();
+
+        final int fd = manager.openFileDescriptor(testUrl + "/mapped.test", "r");
+        assertTrue(fd != -1);
+        final ByteBuffer[] chunks = manager.mapFileDescriptor(fd);
+        assertNotNull(chunks);
+        assertEquals(1, chunks.length);
+        final byte[] mapped = new byte[contents.length];
+        chunks[0].get(mapped);
+        assertEquals(new String(contents, StandardCharsets.UTF_8),
+                new String(mapped, StandardCharsets.UTF_8));
+        assertEquals(mappedBefore + contents.length, MappedDocument.getMappedBytes());
+
+        // mapping again hands out the same buffers
+        assertTrue(chunks[0] == manager.mapFileDescriptor(fd)[0]);
+
+        assertTrue(manager.closeFileDescriptor(fd));
+        assertEquals(mappedBefore, MappedDocument.getMappedBytes());
+    }
+
+    @Test
+    public void documentsOverTheLimitAreRead() throws Exception {
+        writeFile(new File(testDir, "small.test"), new byte[64]);
+        writeFile(new File(testDir, "large.test"), new byte[256]);
+        MappedDocument.setMaxMappedBytes(MappedDocument.getMappedBytes() + 128);
+
+        final int smallFd = manager.openFileDescriptor(testUrl + "/small.test", "r");
+        final int largeFd = manager.openFileDescriptor(testUrl + "/large.test", "r");
+        assertTrue(smallFd != -1 && largeFd != -1);
+        assertNotNull(manager.mapFileDescriptor(smallFd));
+        // the caller falls back to reading it
+        assertNull(manager.mapFileDescriptor(largeFd));
+
+        // a released mapping makes room again
+        manager.unmapFileDescriptor(smallFd);
+        MappedDocument.setMaxMappedBytes(MappedDocument.getMappedBytes() + 256);
+        assertNotNull(manager.mapFileDescriptor(largeFd));
+
+        assertTrue(manager.closeFileDescriptor(smallFd));
+        assertTrue(manager.closeFileDescriptor(largeFd));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Remembering lookups of names which don't exist, with {@link NegativeLookupCache}
+ * on its own and through SAFFileManager.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NegativeLookupCacheTest extends InMemoryTestCase {
+
+    private Uri rootUri() {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+    }
+
+    @Test
+    public void missesExpire() {
+        final NegativeLookupCache cache = new NegativeLookupCache();
+        cache.setTtl(50);
+        cache.putMissing(rootUri(), "a.txt");
+        assertTrue(cache.isMissing(rootUri(), "a.txt"));
+        assertFalse(cache.isMissing(rootUri(), "b.txt"));
+
+        SystemClock.sleep(100);
+        assertFalse(cache.isMissing(rootUri(), "a.txt"));
+    }
+
+    @Test
+    public void boundedPerDirectory() {
+        final NegativeLookupCache cache = new NegativeLookupCache();
+        for (int i = 0; i < NegativeLookupCache.MAX_NAMES_PER_DIRECTORY; ++i) {
+            cache.putMissing(rootUri(), "missing" + i);
+        }
+        assertTrue(cache.isMissing(rootUri(), "missing0"));
+
+        // the directory is full, so its names are dropped to make room
+        cache.putMissing(rootUri(), "one-more");
+        assertFalse(cache.isMissing(rootUri(), "missing0"));
+        assertTrue(cache.isMissing(rootUri(), "one-more"));
+    }
+
+    @Test
+    public void zeroTtlDisables() {
+        final NegativeLookupCache cache = new NegativeLookupCache();
+        cache.putMissing(rootUri(), "a.txt");
+        cache.setTtl(0);
+        assertFalse(cache.isMissing(rootUri(), "a.txt"));
+
+        cache.putMissing(rootUri(), "a.txt");
+        assertFalse(cache.isMissing(rootUri(), "a.txt"));
+    }
+
+    @Test
+    public void repeatedMissesSkipTheBackend() throws Exception {
+        // listings expire right away, so only the misses are kept around
+        manager.setCacheLimits(DocumentCache.DEFAULT_MAX_ENTRIES, 50);
+        createFile("present.txt", new byte[]{1});
+
+        assertFalse(manager.exists(treeUrl + "/missing.txt"));
+        SystemClock.sleep(100);
+        backend.resetCallCount();
+        assertFalse(manager.exists(treeUrl + "/missing.txt"));
+        final long cachedCalls = backend.getCallCount();
+
+        manager.setMissingLookupTtl(0);
+        assertFalse(manager.exists(treeUrl + "/missing.txt"));
+        SystemClock.sleep(100);
+        backend.resetCallCount();
+        assertFalse(manager.exists(treeUrl + "/missing.txt"));
+        assertTrue(cachedCalls < backend.getCallCount());
+    }
+
+    @Test
+    public void creatingForgetsTheMiss() throws Exception {
+        assertFalse(manager.exists(treeUrl + "/a.txt"));
+        createFile("a.txt", new byte[]{1});
+        assertTrue(manager.exists(treeUrl + "/a.txt"));
+
+        assertFalse(manager.exists(treeUrl + "/dir"));
+        assertTrue(manager.mkdir(treeUrl + "/dir", false));
+        assertTrue(manager.isDir(treeUrl + "/dir"));
+    }
+
+    @Test
+    public void resetForgetsMissesOfOthers() {
+        assertFalse(manager.exists(treeUrl + "/b.txt"));
+        // created behind our back
+        backend.createDocument(rootUri(), "text/plain", "b.txt");
+        assertFalse(manager.exists(treeUrl + "/b.txt"));
+
+        manager.resetListCache();
+        assertTrue(manager.exists(treeUrl + "/b.txt"));
+    }
+}
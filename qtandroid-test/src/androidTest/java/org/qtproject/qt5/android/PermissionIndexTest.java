@@ -0,0 +1,102 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Looking up permissions and the longest granted Tree through {@link PermissionIndex}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PermissionIndexTest {
+
+    private static final String AUTHORITY = "com.android.externalstorage.documents";
+
+    private static final ContentUriPermission DOCUMENTS = new ContentUriPermission(
+            Uri.parse("content://" + AUTHORITY + "/tree/primary%3ADocuments"), true, true);
+    private static final ContentUriPermission NESTED = new ContentUriPermission(
+            Uri.parse("content://" + AUTHORITY + "/tree/primary%3ADocuments%2Fnested"), true, true);
+    private static final ContentUriPermission READ_ONLY = new ContentUriPermission(
+            Uri.parse("content://" + AUTHORITY + "/tree/primary%3APictures"), true, false);
+
+    private static PermissionIndex.Match findLongest(PermissionIndex index, String url,
+                                                     String openMode) {
+        final Uri uri = Uri.parse(url);
+        final List<String> paths = uri.getPathSegments().subList(1, uri.getPathSegments().size());
+        return index.findLongestTreePrefix(uri, paths, openMode);
+    }
+
+    @Test
+    public void findsTheDeepestTree() {
+        final PermissionIndex index = new PermissionIndex(Arrays.asList(DOCUMENTS, NESTED));
+
+        PermissionIndex.Match match = findLongest(index,
+                "content://" + AUTHORITY + "/tree/primary%3ADocuments/nested/a/b.txt", "rw");
+        assertSame(NESTED, match.permission);
+        assertEquals(2, match.segmentCount);
+
+        match = findLongest(index,
+                "content://" + AUTHORITY + "/tree/primary%3ADocuments/other/b.txt", "rw");
+        assertSame(DOCUMENTS, match.permission);
+        assertEquals(1, match.segmentCount);
+    }
+
+    @Test
+    public void separatorsInASegmentAreSplit() {
+        final PermissionIndex index = new PermissionIndex(Arrays.asList(DOCUMENTS, NESTED));
+
+        final PermissionIndex.Match match = findLongest(index,
+                "content://" + AUTHORITY + "/tree/primary%3ADocuments%2Fnested/a.txt", "rw");
+        assertSame(NESTED, match.permission);
+        assertEquals(1, match.segmentCount);
+    }
+
+    @Test
+    public void matchesWholeSegmentsOnly() {
+        final PermissionIndex index = new PermissionIndex(Arrays.asList(DOCUMENTS));
+
+        assertNull(findLongest(index,
+                "content://" + AUTHORITY + "/tree/primary%3ADocumentsOld/a.txt", "rw"));
+        assertNull(findLongest(index,
+                "content://com.example.other/tree/primary%3ADocuments/a.txt", "rw"));
+    }
+
+    @Test
+    public void modeIsChecked() {
+        final PermissionIndex index = new PermissionIndex(Arrays.asList(DOCUMENTS, READ_ONLY));
+
+        assertNull(findLongest(index,
+                "content://" + AUTHORITY + "/tree/primary%3APictures/a.png", "rw"));
+        assertSame(READ_ONLY, findLongest(index,
+                "content://" + AUTHORITY + "/tree/primary%3APictures/a.png", "r").permission);
+
+        assertSame(READ_ONLY, index.find(READ_ONLY.getUri(), "r"));
+        assertNull(index.find(READ_ONLY.getUri(), "w"));
+    }
+
+    @Test
+    public void findsExactUrisOnly() {
+        final PermissionIndex index = new PermissionIndex(Arrays.asList(DOCUMENTS, NESTED));
+
+        assertSame(DOCUMENTS, index.find(DOCUMENTS.getUri(), "rw"));
+        assertSame(NESTED, index.find(NESTED.getUri(), "rw"));
+        assertNull(index.find(Uri.parse("content://" + AUTHORITY + "/tree/primary%3ADocuments%2Fa"),
+                "rw"));
+        assertEquals(2, index.size());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.sh_zam.qtandroid_test.FakeDocumentsProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * A slow or hung provider shouldn't hold up the calls made to it for longer
+ * than the deadline.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProviderBulkheadsTest extends FakeProviderTestCase {
+    private static final String TAG = "ProviderBulkheadsTest";
+
+    @Test
+    public void hungProviderTimesOut() throws Exception {
+        createFiles(2);
+        manager.setProviderCallLimits(1, 200);
+        FakeDocumentsProvider.setLatencyMs(2000);
+
+        // takes the only slot of the provider
+        final Thread slowThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                manager.exists(testUrl + "/0.test");
+            }
+        });
+        slowThread.start();
+        SystemClock.sleep(50);
+
+        final long start = SystemClock.elapsedRealtime();
+        assertFalse(manager.exists(testUrl + "/1.test"));
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "hungProviderTimesOut: " + elapsed + "ms");
+        assertTrue("waited " + elapsed + "ms for the provider", elapsed < 1000);
+
+        slowThread.join();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Saves replace the document in one step, and leave it as it was when they fail.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReplaceDocumentTest extends InMemoryTestCase {
+
+    private static final String SAVE_PREFIX = ".saving-";
+
+    /**
+     * Fails writing to, or renaming, the temporary documents saves go to, or
+     * doesn't support renames at all.
+     */
+    private static class FailingBackend extends InMemoryDocumentBackend {
+        volatile boolean failWrites = false;
+        volatile boolean failRenames = false;
+        volatile boolean noRenames = false;
+
+        FailingBackend(File contentsDir) {
+            super(contentsDir);
+        }
+
+        @Override
+        public CachedDocumentFile createDocument(Uri parentUri, String mimeType,
+                                                 String displayName) {
+            final CachedDocumentFile file = super.createDocument(parentUri, mimeType, displayName);
+            if (file == null || !noRenames) {
+                return file;
+            }
+            final CachedDocumentFile withoutRename = CachedDocumentFile.fromAttributes(
+                    file.getName(), file.getDocumentId(), file.getMimeType(),
+                    file.getLoadedSize() >= 0 ? file.getLoadedSize() : null,
+                    file.getFlags() & ~DocumentsContract.Document.FLAG_SUPPORTS_RENAME,
+                    file.getLastModified(), file.getUri());
+            withoutRename.setParentUri(parentUri);
+            withoutRename.markLoaded();
+            return withoutRename;
+        }
+
+        @Override
+        public ParcelFileDescriptor openDocument(Uri documentUri, String mode)
+                throws FileNotFoundException {
+            if (failWrites && !"r".equals(mode) && isTemporary(documentUri)) {
+                throw new FileNotFoundException("Failing writes to: " + documentUri);
+            }
+            return super.openDocument(documentUri, mode);
+        }
+
+        @Override
+        public Uri renameDocument(Uri documentUri, String displayName) {
+            if (noRenames || (failRenames && isTemporary(documentUri))) {
+                return null;
+            }
+            return super.renameDocument(documentUri, displayName);
+        }
+
+        private boolean isTemporary(Uri documentUri) {
+            final CachedDocumentFile file = queryDocument(documentUri);
+            return file != null && file.getName().startsWith(SAVE_PREFIX);
+        }
+    }
+
+    @Override
+    InMemoryDocumentBackend newBackend(File contentsDir) {
+        return new FailingBackend(contentsDir);
+    }
+
+    private Uri rootUri() {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+    }
+
+    /**
+     * A document left behind by a save of a previous process, which
+     * SAFFileManager doesn't know about.
+     */
+    private void createLeftover(String name, byte[] contents) throws Exception {
+        final CachedDocumentFile file =
+                backend.createDocument(rootUri(), "text/plain", name);
+        assertNotNull(file);
+        final ParcelFileDescriptor pfd = backend.openDocument(file.getUri(), "w");
+        final FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor());
+        out.write(contents);
+        out.close();
+        pfd.close();
+    }
+
+    private boolean save(String path, byte[] contents) throws Exception {
+        final int fd = manager.beginSave(treeUrl + "/" + path);
+        assertTrue(fd != -1);
+        FakeProviderTestCase.writeFd(fd, contents);
+        return manager.commitSave(fd);
+    }
+
+    @Test
+    public void failedSwapKeepsTheOldContents() throws Exception {
+        createFile("a.txt", new byte[]{1, 2, 3});
+
+        ((FailingBackend) backend).failRenames = true;
+        assertFalse(save("a.txt", new byte[]{9, 9}));
+
+        assertEquals(3, manager.getSize(treeUrl + "/a.txt"));
+        assertEquals(Collections.singletonList("a.txt"),
+                Arrays.asList(manager.listFileNames(treeUrl)));
+    }
+
+    @Test
+    public void replacedLeftoverOfMissingDocumentIsPutBack() throws Exception {
+        createLeftover(".old-a.txt", new byte[]{1, 2, 3});
+
+        // the save fails, but what was left of the document isn't lost
+        ((FailingBackend) backend).failWrites = true;
+        assertFalse(save("a.txt", new byte[]{9, 9}));
+
+        assertEquals(3, manager.getSize(treeUrl + "/a.txt"));
+        assertEquals(Collections.singletonList("a.txt"),
+                Arrays.asList(manager.listFileNames(treeUrl)));
+    }
+
+    /**
+     * The old document had been renamed aside, so the new contents had been
+     * written in full.
+     */
+    @Test
+    public void interruptedSwapIsCompleted() throws Exception {
+        createLeftover(SAVE_PREFIX + "a.txt", new byte[]{4, 5});
+        createLeftover(".old-a.txt", new byte[]{1, 2, 3});
+
+        ((FailingBackend) backend).failWrites = true;
+        assertFalse(save("a.txt", new byte[]{9, 9}));
+
+        assertEquals(2, manager.getSize(treeUrl + "/a.txt"));
+        assertEquals(Collections.singletonList("a.txt"),
+                Arrays.asList(manager.listFileNames(treeUrl)));
+    }
+
+    /**
+     * A temporary document on its own may not have been written in full, e.g
+     * the first save of the document was interrupted.
+     */
+    @Test
+    public void loneTemporaryLeftoverIsDropped() throws Exception {
+        createLeftover(SAVE_PREFIX + "a.txt", new byte[]{1});
+
+        ((FailingBackend) backend).failWrites = true;
+        assertFalse(save("a.txt", new byte[]{9, 9}));
+
+        assertFalse(manager.exists(treeUrl + "/a.txt"));
+        assertEquals(0, manager.listFileNames(treeUrl).length);
+    }
+
+    @Test
+    public void newDocumentIsSavedWithoutRenames() throws Exception {
+        ((FailingBackend) backend).noRenames = true;
+        assertTrue(save("a.txt", new byte[]{7, 7, 7}));
+
+        assertEquals(3, manager.getSize(treeUrl + "/a.txt"));
+        assertEquals(Collections.singletonList("a.txt"),
+                Arrays.asList(manager.listFileNames(treeUrl)));
+    }
+
+    @Test
+    public void leftoversAreCleanedUp() throws Exception {
+        createFile("a.txt", new byte[]{1, 2, 3});
+        createLeftover(SAVE_PREFIX + "a.txt", new byte[]{4});
+        createLeftover(".old-a.txt", new byte[]{5});
+        // as if it was a new process, which doesn't know about the leftovers yet
+        manager = new SAFFileManager(null, backend);
+
+        assertTrue(save("a.txt", new byte[]{9, 9}));
+
+        assertEquals(2, manager.getSize(treeUrl + "/a.txt"));
+        assertEquals(Collections.singletonList("a.txt"),
+                Arrays.asList(manager.listFileNames(treeUrl)));
+    }
+}
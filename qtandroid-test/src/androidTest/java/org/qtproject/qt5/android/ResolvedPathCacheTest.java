@@ -0,0 +1,113 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+/**
+ * The memo of what the Urls native code sends us resolved to, see
+ * {@link ResolvedPathCache}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ResolvedPathCacheTest extends InMemoryTestCase {
+
+    private ResolvedPathCache resolvedPaths() throws Exception {
+        final Field field = SAFFileManager.class.getDeclaredField("mResolvedPaths");
+        field.setAccessible(true);
+        return (ResolvedPathCache) field.get(manager);
+    }
+
+    @Test
+    public void documentsAreKeptPerMode() {
+        final ResolvedPathCache cache = new ResolvedPathCache();
+        final Uri documentUri = Uri.parse("content://org.example/document/1");
+        cache.putDocument(documentUri.toString(), "r", documentUri);
+
+        assertSame(documentUri, cache.get(documentUri.toString(), "r").documentUri);
+        assertNull(cache.get(documentUri.toString(), "w"));
+
+        // every mode other than "r" needs the same permission
+        cache.putDocument(documentUri.toString(), "rw", documentUri);
+        assertNotNull(cache.get(documentUri.toString(), "wt"));
+    }
+
+    @Test
+    public void treeFilesAreKeptForAllModes() {
+        final ResolvedPathCache cache = new ResolvedPathCache();
+        final SAFFile safFile = new SAFFile(treeUri, new ArrayList<String>());
+        cache.putTreeFile(treeUrl + "/a.txt", safFile, treeUri);
+
+        assertSame(safFile, cache.get(treeUrl + "/a.txt", "r").safFile);
+        assertSame(safFile, cache.get(treeUrl + "/a.txt", "rw").safFile);
+
+        cache.clear();
+        assertNull(cache.get(treeUrl + "/a.txt", "r"));
+    }
+
+    @Test
+    public void repeatedLookupsSkipTheBackend() throws Exception {
+        createFile("a/b/c.txt", new byte[]{1, 2, 3});
+        assertTrue(manager.exists(treeUrl + "/a/b/c.txt"));
+        assertNotNull(resolvedPaths().get(treeUrl + "/a/b/c.txt", "r"));
+
+        backend.resetCallCount();
+        assertTrue(manager.exists(treeUrl + "/a/b/c.txt"));
+        assertEquals(3, manager.getSize(treeUrl + "/a/b/c.txt"));
+        assertEquals(0, backend.getCallCount());
+    }
+
+    /**
+     * The in-memory backend keeps the document ids across renames and moves,
+     * like most providers which aren't backed by a filesystem.
+     */
+    @Test
+    public void oldPathIsntServedAfterRename() throws Exception {
+        createFile("a.txt", new byte[]{1});
+        assertTrue(manager.exists(treeUrl + "/a.txt"));
+
+        assertTrue(manager.rename(treeUrl + "/a.txt", "b.txt"));
+        assertFalse(manager.exists(treeUrl + "/a.txt"));
+        assertTrue(manager.exists(treeUrl + "/b.txt"));
+    }
+
+    @Test
+    public void oldPathIsntServedAfterMove() throws Exception {
+        createFile("a/c.txt", new byte[]{1});
+        assertTrue(manager.mkdir(treeUrl + "/b", false));
+        assertTrue(manager.exists(treeUrl + "/a/c.txt"));
+
+        assertTrue(manager.move(treeUrl + "/a/c.txt", treeUrl + "/b/c.txt"));
+        assertFalse(manager.exists(treeUrl + "/a/c.txt"));
+        assertTrue(manager.exists(treeUrl + "/b/c.txt"));
+    }
+
+    @Test
+    public void changedPermissionsClearTheMemo() throws Exception {
+        createFile("a.txt", new byte[]{1});
+        assertTrue(manager.exists(treeUrl + "/a.txt"));
+        assertNotNull(resolvedPaths().get(treeUrl + "/a.txt", "r"));
+
+        backend.addTree("other");
+        manager.resetCachedPermission();
+        assertNull(resolvedPaths().get(treeUrl + "/a.txt", "r"));
+        assertTrue(manager.exists(treeUrl + "/a.txt"));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.sh_zam.qtandroid_test.FakeDocumentsProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Operations and the provider calls they make, see {@link SAFMetrics}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SAFMetricsTest extends FakeProviderTestCase {
+
+    private static long calls(long[] metrics, int op) {
+        return metrics[op * SAFMetrics.SNAPSHOT_STRIDE + SAFMetrics.SNAPSHOT_CALLS];
+    }
+
+    private static long providerCalls(long[] metrics, int op) {
+        return metrics[op * SAFMetrics.SNAPSHOT_STRIDE + SAFMetrics.SNAPSHOT_PROVIDER_CALLS];
+    }
+
+    @Test
+    public void statIsCountedOnce() throws Exception {
+        createFiles(1);
+        manager.resetMetrics();
+
+        assertNotNull(manager.stat(testUrl + "/0.test"));
+        final long[] metrics = manager.getMetrics();
+        assertEquals(1, calls(metrics, SAFMetrics.OP_STAT));
+        assertTrue(providerCalls(metrics, SAFMetrics.OP_STAT) > 0);
+    }
+
+    @Test
+    public void nestedOperationsBelongToTheOuterOne() {
+        manager.resetMetrics();
+
+        assertTrue(manager.mkdir(testUrl + "/a/b", true));
+        final long[] metrics = manager.getMetrics();
+        assertEquals(1, calls(metrics, SAFMetrics.OP_MKDIR));
+        // mkdir checks isDir first, which isn't an operation of its own
+        assertEquals(0, calls(metrics, SAFMetrics.OP_IS_DIR));
+        assertEquals(0, providerCalls(metrics, SAFMetrics.OP_IS_DIR));
+        assertTrue(providerCalls(metrics, SAFMetrics.OP_MKDIR)
+                >= FakeDocumentsProvider.getCreateCount());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.sh_zam.qtandroid_test.FakeDocumentsProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Saves through {@link SAFFileManager#beginSave(String)}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaveTransactionTest extends FakeProviderTestCase {
+
+    @Test
+    public void saveTransaction() throws Exception {
+        final String name = "saved.test";
+        final String url = testUrl + "/" + name;
+        final File backingFile = new File(testDir, name);
+        final byte[] oldContents = "old contents".getBytes(StandardCharsets.UTF_8);
+        final byte[] newContents = "the new, longer contents".getBytes(StandardCharsets.UTF_8);
+        writeFile(backingFile, oldContents);
+        assertEquals(oldContents.length, manager.getSize(url));
+
+        // an aborted save leaves the document alone
+        int fd = manager.beginSave(url);
+        assertTrue(fd != -1);
+        writeFd(fd, newContents);
+        manager.abortSave(fd);
+        assertEquals(oldContents.length, backingFile.length());
+        assertEquals(oldContents.length, manager.getSize(url));
+
+        FakeDocumentsProvider.resetCounters();
+        fd = manager.beginSave(url);
+        assertTrue(fd != -1);
+        writeFd(fd, newContents);
+        // nothing reaches the provider before the commit
+        assertEquals(0, FakeDocumentsProvider.getOpenCount());
+        assertEquals(oldContents.length, backingFile.length());
+        assertTrue(manager.commitSave(fd));
+
+        assertEquals(newContents.length, backingFile.length());
+        assertEquals(newContents.length, manager.getSize(url));
+        final String[] names = testDir.list();
+        assertNotNull(names);
+        assertEquals(1, names.length);
+        assertEquals(name, names[0]);
+
+        // a save creates the document if it doesn't exist
+        final String newUrl = testUrl + "/dir/created.test";
+        fd = manager.beginSave(newUrl);
+        assertTrue(fd != -1);
+        assertFalse(manager.exists(newUrl));
+        writeFd(fd, newContents);
+        assertTrue(manager.commitSave(fd));
+        assertEquals(newContents.length, new File(testDir, "dir/created.test").length());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.qtproject.qt5.android.DocumentCacheTest.directory;
+import static org.qtproject.qt5.android.DocumentCacheTest.document;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Dropping a directory and everything under it from the {@link DocumentCache},
+ * through the parent to children links it keeps.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SubtreeInvalidationTest {
+
+    @Test
+    public void dropsDescendantsOnly() {
+        final DocumentCache cache = new DocumentCache(16, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile root = directory("root", null);
+        final CachedDocumentFile a = directory("a", root);
+        final CachedDocumentFile b = directory("a/b", a);
+        final CachedDocumentFile c = document("a/b/c", b);
+        final CachedDocumentFile sibling = document("sibling", root);
+        for (CachedDocumentFile file : Arrays.asList(root, a, b, c, sibling)) {
+            cache.put(file);
+        }
+        cache.putDirectory(new CachedDirectory(b.getUri(), Arrays.asList(c)));
+
+        cache.invalidateSubtree(a.getUri());
+
+        assertNull(cache.get(b.getUri()));
+        assertNull(cache.get(c.getUri()));
+        assertNull(cache.getDirectory(b.getUri()));
+        assertNotNull(cache.get(a.getUri()));
+        assertNotNull(cache.get(root.getUri()));
+        assertNotNull(cache.get(sibling.getUri()));
+    }
+
+    @Test
+    public void evictedDirectoryDoesntCutItsSubtreeOff() {
+        final DocumentCache cache = new DocumentCache(3, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile a = directory("a", null);
+        final CachedDocumentFile b = directory("a/b", a);
+        final CachedDocumentFile c = document("a/b/c", b);
+        cache.put(a);
+        cache.put(b);
+        cache.put(c);
+
+        // b is the least recently used one now
+        cache.get(a.getUri());
+        cache.get(c.getUri());
+        cache.put(document("other", null));
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(b.getUri()));
+
+        cache.invalidateSubtree(a.getUri());
+        assertNull(cache.get(c.getUri()));
+        assertNotNull(cache.get(a.getUri()));
+    }
+
+    @Test
+    public void invalidateChildrenLeavesGrandchildren() {
+        final DocumentCache cache = new DocumentCache(16, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile a = directory("a", null);
+        final CachedDocumentFile b = directory("a/b", a);
+        final CachedDocumentFile c = document("a/b/c", b);
+        cache.put(a);
+        cache.put(b);
+        cache.put(c);
+        cache.putDirectory(new CachedDirectory(a.getUri(), Arrays.asList(b)));
+
+        cache.invalidateChildren(a.getUri());
+
+        assertNull(cache.getDirectory(a.getUri()));
+        assertNull(cache.get(b.getUri()));
+        assertNotNull(cache.get(c.getUri()));
+    }
+
+    @Test
+    public void deletingAndRenamingDropTheSubtree() {
+        final DocumentCache cache = new DocumentCache(16, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile root = directory("root", null);
+        final CachedDocumentFile a = directory("a", root);
+        final CachedDocumentFile b = document("a/b", a);
+        final CachedDocumentFile d = directory("d", root);
+        final CachedDocumentFile e = document("d/e", d);
+        for (CachedDocumentFile file : Arrays.asList(root, a, b, d, e)) {
+            cache.put(file);
+        }
+        cache.putDirectory(new CachedDirectory(root.getUri(), Arrays.asList(a, d)));
+
+        cache.onDocumentDeleted(a);
+        assertNull(cache.get(a.getUri()));
+        assertNull(cache.get(b.getUri()));
+        assertNull(cache.getDirectory(root.getUri()));
+
+        final CachedDocumentFile renamed = directory("renamed", root);
+        cache.onDocumentRenamed(d.getUri(), renamed);
+        assertNull(cache.get(d.getUri()));
+        assertNull(cache.get(e.getUri()));
+        assertNotNull(cache.get(renamed.getUri()));
+    }
+
+    @Test
+    public void reachesThroughLargeListings() {
+        final DocumentCache cache = new DocumentCache(4, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile a = directory("a", null);
+        final CachedDocumentFile b = directory("a/b", a);
+        final CachedDocumentFile c = document("a/b/c", b);
+        final ArrayList<CachedDocumentFile> children = new ArrayList<>();
+        children.add(b);
+        for (int i = 0; i < 8; ++i) {
+            children.add(document("a/" + i, a));
+        }
+        // too large for b to get an entry of its own
+        cache.putDirectory(new CachedDirectory(a.getUri(), children));
+        cache.putDirectory(new CachedDirectory(b.getUri(), Arrays.asList(c)));
+        assertNull(cache.get(b.getUri()));
+        assertNotNull(cache.get(c.getUri()));
+
+        cache.invalidateSubtree(a.getUri());
+        assertNull(cache.getDirectory(b.getUri()));
+        assertNull(cache.get(c.getUri()));
+    }
+
+    @Test
+    public void clearingForgetsTheLinks() {
+        final DocumentCache cache = new DocumentCache(16, DocumentCache.NO_EXPIRY);
+        final CachedDocumentFile a = directory("a", null);
+        final CachedDocumentFile b = document("a/b", a);
+        cache.put(a);
+        cache.put(b);
+        cache.clear();
+
+        // put back without its parent, it shouldn't be reached from a anymore
+        final CachedDocumentFile orphan = document("a/b", null);
+        cache.put(orphan);
+        cache.putDirectory(new CachedDirectory(a.getUri(), new ArrayList<CachedDocumentFile>()));
+        cache.invalidateSubtree(a.getUri());
+        assertNotNull(cache.get(orphan.getUri()));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A call which can't be cancelled, stuck in the provider, only holds up the
+ * operations on its own Tree.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TreeLockTest extends InMemoryTestCase {
+
+    /**
+     * Creating documents in the stuck Tree doesn't return until released.
+     */
+    private static class StuckBackend extends InMemoryDocumentBackend {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        volatile String stuckTreeId;
+
+        StuckBackend(File contentsDir) {
+            super(contentsDir);
+        }
+
+        @Override
+        public CachedDocumentFile createDocument(Uri parentUri, String mimeType,
+                                                 String displayName) {
+            if (DocumentsContract.getTreeDocumentId(parentUri).equals(stuckTreeId)) {
+                entered.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.createDocument(parentUri, mimeType, displayName);
+        }
+    }
+
+    @Override
+    InMemoryDocumentBackend newBackend(File contentsDir) {
+        return new StuckBackend(contentsDir);
+    }
+
+    @Test
+    public void stuckTreeDoesntHoldUpOthers() throws Exception {
+        final StuckBackend stuckBackend = (StuckBackend) backend;
+        final String otherTreeUrl = backend.addTree("other").toString();
+        stuckBackend.stuckTreeId = DocumentsContract.getTreeDocumentId(treeUri);
+        // permissions are read once, the other Tree is added before we ask
+        manager.resetCachedPermission();
+
+        final Thread stuckThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                manager.mkdir(treeUrl + "/stuck", false);
+            }
+        });
+        stuckThread.start();
+        assertTrue(stuckBackend.entered.await(5, TimeUnit.SECONDS));
+
+        try {
+            // different Tree, so it doesn't wait for the lock held by the stuck thread
+            final long start = System.nanoTime();
+            assertTrue(manager.mkdir(otherTreeUrl + "/a", false));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        } finally {
+            stuckBackend.released.countDown();
+            stuckThread.join();
+        }
+        assertTrue(manager.isDir(treeUrl + "/stuck"));
+    }
+}
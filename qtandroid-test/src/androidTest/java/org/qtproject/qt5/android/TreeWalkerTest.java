@@ -0,0 +1,150 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.qtproject.qt5.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walking a directory recursively with walkStart() and walkNext().
+ */
+@RunWith(AndroidJUnit4.class)
+public class TreeWalkerTest extends InMemoryTestCase {
+
+    @Before
+    public void createTree() throws Exception {
+        createFile("a.txt", new byte[]{1});
+        createFile("d/b.txt", new byte[]{1, 2});
+        createFile("d/e/c.txt", new byte[]{1, 2, 3});
+        createFile("d/e/f.png", new byte[]{1, 2, 3, 4});
+    }
+
+    private Set<String> walk(int maxDepth, String nameFilter) {
+        final int handle = manager.walkStart(treeUrl, maxDepth, nameFilter);
+        assertTrue(handle >= 0);
+        final Set<String> paths = new HashSet<>();
+        try {
+            DocumentStats stats;
+            // small batches, so that we go through more than one
+            while ((stats = manager.walkNext(handle, 2)).size() > 0) {
+                assertTrue(stats.size() <= 2);
+                paths.addAll(Arrays.asList(stats.names));
+            }
+        } finally {
+            manager.walkClose(handle);
+        }
+        return paths;
+    }
+
+    @Test
+    public void walksEverything() {
+        assertEquals(new HashSet<>(Arrays.asList("a.txt", "d", "d/b.txt", "d/e",
+                "d/e/c.txt", "d/e/f.png")), walk(-1, null));
+    }
+
+    @Test
+    public void stopsAtMaxDepth() {
+        assertEquals(new HashSet<>(Arrays.asList("a.txt", "d")), walk(1, null));
+        assertEquals(new HashSet<>(Arrays.asList("a.txt", "d", "d/b.txt", "d/e")),
+                walk(2, null));
+    }
+
+    @Test
+    public void filtersNamesButWalksAllDirectories() {
+        assertEquals(new HashSet<>(Arrays.asList("a.txt", "d/b.txt", "d/e/c.txt")),
+                walk(-1, ".*\\.txt"));
+    }
+
+    @Test
+    public void invalidWalksAreRefused() {
+        assertEquals(-1, manager.walkStart(treeUrl + "/a.txt", -1, null));
+        assertEquals(-1, manager.walkStart(treeUrl + "/missing", -1, null));
+        assertEquals(-1, manager.walkStart(treeUrl, -1, "("));
+        assertNull(manager.walkNext(12345, 10));
+    }
+
+    @Test
+    public void readerHoldsUpTheListing() throws Exception {
+        final int count = TreeWalker.QUEUE_CAPACITY * 2;
+        final List<CachedDocumentFile> children = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            children.add(DocumentCacheTest.document(String.valueOf(i), null));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final TreeWalker walker = new TreeWalker(executor, new TreeWalker.Lister() {
+                @Override
+                public List<CachedDocumentFile> list(Uri directoryUri) {
+                    return children;
+                }
+            }, 1, null);
+            walker.start(treeUri);
+
+            final Set<String> paths = new HashSet<>();
+            List<TreeWalker.Result> batch;
+            while (!(batch = walker.next(1000)).isEmpty()) {
+                for (TreeWalker.Result result : batch) {
+                    paths.add(result.path);
+                }
+            }
+            // nothing is dropped while the queue is full
+            assertEquals(count, paths.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void abandonedWalkFreesItsThreads() throws Exception {
+        final List<CachedDocumentFile> children = new ArrayList<>();
+        for (int i = 0; i < TreeWalker.QUEUE_CAPACITY + 1; ++i) {
+            children.add(DocumentCacheTest.document(String.valueOf(i), null));
+        }
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final TreeWalker walker = new TreeWalker(executor, new TreeWalker.Lister() {
+                @Override
+                public List<CachedDocumentFile> list(Uri directoryUri) {
+                    return children;
+                }
+            }, 1, null);
+            walker.setAbandonAfterMs(200);
+            walker.start(treeUri);
+
+            // never read from, the only thread has to be given back
+            final Future<?> next = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            next.get(5, TimeUnit.SECONDS);
+            assertTrue(walker.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * SPDX-FileCopyrightText: 2021 Sharaf Zaman <sharafzaz121@gmail.com>
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+package com.sh_zam.qtandroid_test;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract.Document;
+import android.provider.DocumentsContract.Root;
+import android.provider.DocumentsProvider;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DocumentsProvider backed by a directory in the app's files dir, so that the
+ * tests can run against a Tree without anyone having to pick one. Document ids
+ * are paths relative to that directory, starting with {@link #ROOT_ID}.
+ * <p>
+ * Every call is counted, so tests can tell how many times we went to the provider.
+ */
+public class FakeDocumentsProvider extends DocumentsProvider {
+    public static final String AUTHORITY = "com.sh_zam.qtandroid_test.fakedocuments";
+    public static final String ROOT_ID = "root";
+
+    private static final String[] DEFAULT_ROOT_PROJECTION = new String[]{
+            Root.COLUMN_ROOT_ID, Root.COLUMN_DOCUMENT_ID, Root.COLUMN_FLAGS,
+            Root.COLUMN_TITLE, Root.COLUMN_ICON
+    };
+    private static final String[] DEFAULT_DOCUMENT_PROJECTION = new String[]{
+            Document.COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME, Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE, Document.COLUMN_FLAGS, Document.COLUMN_LAST_MODIFIED
+    };
+
+    private static final AtomicInteger sQueryDocumentCount = new AtomicInteger();
+    private static final AtomicInteger sQueryChildrenCount = new AtomicInteger();
+    private static final AtomicInteger sOpenCount = new AtomicInteger();
+    private static final AtomicInteger sCreateCount = new AtomicInteger();
+    private static final AtomicInteger sDeleteCount = new AtomicInteger();
+    private static final AtomicInteger sRenameCount = new AtomicInteger();
+    private static volatile long sLatencyMs = 0;
+
+    public static File getRootDir(Context context) {
+        return new File(context.getFilesDir(), "fake_documents");
+    }
+
+    public static void resetCounters() {
+        sQueryDocumentCount.set(0);
+        sQueryChildrenCount.set(0);
+        sOpenCount.set(0);
+        sCreateCount.set(0);
+        sDeleteCount.set(0);
+        sRenameCount.set(0);
+    }
+
+    /**
+     * @return queries for single documents and for children.
+     */
+    public static int getQueryCount() {
+        return sQueryDocumentCount.get() + sQueryChildrenCount.get();
+    }
+
+    public static int getQueryChildrenCount() {
+        return sQueryChildrenCount.get();
+    }
+
+    public static int getOpenCount() {
+        return sOpenCount.get();
+    }
+
+    public static int getCreateCount() {
+        return sCreateCount.get();
+    }
+
+    public static int getDeleteCount() {
+        return sDeleteCount.get();
+    }
+
+    public static int getRenameCount() {
+        return sRenameCount.get();
+    }
+
+    /**
+     * Make every call take at least this long, to act like a remote provider.
+     */
+    public static void setLatencyMs(long latencyMs) {
+        sLatencyMs = latencyMs;
+    }
+
+    @Override
+    public boolean onCreate() {
+        final File root = getRootDir(getContext());
+        return root.isDirectory() || root.mkdirs();
+    }
+
+    @Override
+    public Cursor queryRoots(String[] projection) {
+        final MatrixCursor result = new MatrixCursor(
+                projection != null ? projection : DEFAULT_ROOT_PROJECTION);
+        result.newRow()
+                .add(Root.COLUMN_ROOT_ID, ROOT_ID)
+                .add(Root.COLUMN_DOCUMENT_ID, ROOT_ID)
+                .add(Root.COLUMN_FLAGS, Root.FLAG_SUPPORTS_CREATE | Root.FLAG_SUPPORTS_IS_CHILD)
+                .add(Root.COLUMN_TITLE, "Fake documents")
+                .add(Root.COLUMN_ICON, R.mipmap.ic_launcher);
+        return result;
+    }
+
+    @Override
+    public Cursor queryDocument(String documentId, String[] projection)
+            throws FileNotFoundException {
+        sQueryDocumentCount.incrementAndGet();
+        simulateLatency();
+
+        final MatrixCursor result = new MatrixCursor(
+                projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION);
+        addRow(result, documentId, getFile(documentId));
+        return result;
+    }
+
+    @Override
+    public Cursor queryChildDocuments(String parentDocumentId, String[] projection,
+                                      String sortOrder) throws FileNotFoundException {
+        sQueryChildrenCount.incrementAndGet();
+        simulateLatency();
+
+        final MatrixCursor result = new MatrixCursor(
+                projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION);
+        final File[] children = getFile(parentDocumentId).listFiles();
+        if (children != null) {
+            for (File child : children) {
+                addRow(result, parentDocumentId + "/" + child.getName(), child);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ParcelFileDescriptor openDocument(String documentId, String mode,
+                                             CancellationSignal signal)
+            throws FileNotFoundException {
+        sOpenCount.incrementAndGet();
+        simulateLatency();
+
+        return ParcelFileDescriptor.open(getFile(documentId), ParcelFileDescriptor.parseMode(mode));
+    }
+
+    @Override
+    public String createDocument(String parentDocumentId, String mimeType, String displayName)
+            throws FileNotFoundException {
+        sCreateCount.incrementAndGet();
+        simulateLatency();
+
+        final File file = new File(getFile(parentDocumentId), displayName);
+        try {
+            final boolean created = Document.MIME_TYPE_DIR.equals(mimeType)
+                    ? file.mkdir() : file.createNewFile();
+            if (!created) {
+                throw new FileNotFoundException("Couldn't create: " + file);
+            }
+        } catch (IOException e) {
+            throw new FileNotFoundException("Couldn't create: " + file + ", " + e);
+        }
+        return parentDocumentId + "/" + displayName;
+    }
+
+    @Override
+    public void deleteDocument(String documentId) throws FileNotFoundException {
+        sDeleteCount.incrementAndGet();
+        simulateLatency();
+
+        if (!deleteRecursively(getFile(documentId))) {
+            throw new FileNotFoundException("Couldn't delete: " + documentId);
+        }
+    }
+
+    @Override
+    public String renameDocument(String documentId, String displayName)
+            throws FileNotFoundException {
+        sRenameCount.incrementAndGet();
+        simulateLatency();
+
+        final File file = getFile(documentId);
+        if (!file.renameTo(new File(file.getParentFile(), displayName))) {
+            throw new FileNotFoundException("Couldn't rename: " + documentId);
+        }
+        return documentId.substring(0, documentId.lastIndexOf('/') + 1) + displayName;
+    }
+
+    @Override
+    public boolean isChildDocument(String parentDocumentId, String documentId) {
+        return documentId.startsWith(parentDocumentId + "/");
+    }
+
+    private File getFile(String documentId) throws FileNotFoundException {
+        if (!documentId.equals(ROOT_ID) && !documentId.startsWith(ROOT_ID + "/")) {
+            throw new FileNotFoundException("Invalid document id: " + documentId);
+        }
+        final File file = new File(getRootDir(getContext()), documentId.substring(ROOT_ID.length()));
+        if (!file.exists()) {
+            throw new FileNotFoundException("Document doesn't exist: " + documentId);
+        }
+        return file;
+    }
+
+    private static void addRow(MatrixCursor result, String documentId, File file) {
+        int flags;
+        String mimeType;
+        if (file.isDirectory()) {
+            mimeType = Document.MIME_TYPE_DIR;
+            flags = Document.FLAG_DIR_SUPPORTS_CREATE;
+        } else {
+            mimeType = getMimeType(file.getName());
+            flags = Document.FLAG_SUPPORTS_WRITE;
+        }
+        if (!documentId.equals(ROOT_ID)) {
+            flags |= Document.FLAG_SUPPORTS_DELETE | Document.FLAG_SUPPORTS_RENAME;
+        }
+
+        result.newRow()
+                .add(Document.COLUMN_DOCUMENT_ID, documentId)
+                .add(Document.COLUMN_DISPLAY_NAME, file.getName())
+                .add(Document.COLUMN_MIME_TYPE, mimeType)
+                .add(Document.COLUMN_SIZE, file.length())
+                .add(Document.COLUMN_FLAGS, flags)
+                .add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
+    }
+
+    private static String getMimeType(String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            final String mimeType = MimeTypeMap.getSingleton()
+                    .getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase());
+            if (mimeType != null) {
+                return mimeType;
+            }
+        }
+        return "application/octet-stream";
+    }
+
+    private static boolean deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete();
+    }
+
+    private static void simulateLatency() {
+        final long latency = sLatencyMs;
+        if (latency > 0) {
+            SystemClock.sleep(latency);
+        }
+    }
+}
@@ -19,6 +19,27 @@ JAVASOURCES += \
     $$PATHPREFIX/SAFFileManager.java \
     $$PATHPREFIX/SAFFile.java \
     $$PATHPREFIX/CachedDocumentFile.java \
+    $$PATHPREFIX/DocumentCache.java \
+    $$PATHPREFIX/CachedDirectory.java \
+    $$PATHPREFIX/PermissionIndex.java \
+    $$PATHPREFIX/DocumentStats.java \
+    $$PATHPREFIX/DirectoryEnumerator.java \
+    $$PATHPREFIX/DirectoryPrefetcher.java \
+    $$PATHPREFIX/FileDescriptorRegistry.java \
+    $$PATHPREFIX/MappedDocument.java \
+    $$PATHPREFIX/DocumentTransfer.java \
+    $$PATHPREFIX/TreeWalker.java \
+    $$PATHPREFIX/DirectoryObserver.java \
+    $$PATHPREFIX/DocumentStore.java \
+    $$PATHPREFIX/NegativeLookupCache.java \
+    $$PATHPREFIX/ResolvedPathCache.java \
+    $$PATHPREFIX/SAFMetrics.java \
+    $$PATHPREFIX/LocalStorageBackend.java \
+    $$PATHPREFIX/DocumentBackend.java \
+    $$PATHPREFIX/ProviderDocumentBackend.java \
+    $$PATHPREFIX/ProviderBulkheads.java \
+    $$PATHPREFIX/DocumentMirror.java \
+    $$PATHPREFIX/SaveTransaction.java \
     $$PATHPREFIX/QtNativeLibrariesDir.java \
     $$PATHPREFIX/QtSurface.java \
     $$PATHPREFIX/ExtractStyle.java \
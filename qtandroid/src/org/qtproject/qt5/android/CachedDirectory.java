@@ -0,0 +1,62 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Listing of a directory, filled from a single child documents query, which lets
+ * us look up its children by name without going to the provider again.
+ */
+class CachedDirectory {
+    private final Uri uri;
+    private final List<CachedDocumentFile> children;
+    private final HashMap<String, CachedDocumentFile> childrenByName;
+
+    CachedDirectory(Uri uri, List<CachedDocumentFile> children) {
+        this.uri = uri;
+        this.children = new ArrayList<>(children);
+        this.childrenByName = new HashMap<>(children.size() * 2);
+        for (CachedDocumentFile child : children) {
+            // in case of duplicate names, the first one wins
+            if (!childrenByName.containsKey(child.getName())) {
+                childrenByName.put(child.getName(), child);
+            }
+        }
+    }
+
+    /**
+     * @return directory's document uri
+     */
+    Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * @return the child with the display name, or null if the directory doesn't have one.
+     */
+    synchronized CachedDocumentFile find(String name) {
+        return childrenByName.get(name);
+    }
+
+    synchronized List<CachedDocumentFile> getChildren() {
+        return new ArrayList<>(children);
+    }
+
+    synchronized int size() {
+        return children.size();
+    }
+
+    /**
+     * Used when we create a document ourselves, so we don't have to query
+     * the whole directory again.
+     */
+    synchronized void addChild(CachedDocumentFile child) {
+        children.add(child);
+        if (!childrenByName.containsKey(child.getName())) {
+            childrenByName.put(child.getName(), child);
+        }
+    }
+}
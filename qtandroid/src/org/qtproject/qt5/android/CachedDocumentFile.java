@@ -1,68 +1,56 @@
 package org.qtproject.qt5.android;
 
-import android.content.ContentResolver;
-import android.content.Context;
-import android.database.Cursor;
 import android.net.Uri;
-import android.os.Build;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.text.TextUtils;
-import android.util.Log;
 
+/**
+ * A document and its attributes as they were when they were last loaded through
+ * a {@link DocumentBackend}. It never talks to the provider itself, loading and
+ * refreshing them is up to {@link SAFFileManager}.
+ */
 public class CachedDocumentFile {
 
-    private static final String TAG = "CachedDocumentFile";
-    private String name;
+    private volatile String name;
     private final String mimeType;
     private final String documentId;
-    // TODO(sh_zam): do something
-    private Integer size;
-    private Uri uri;
-    private final Context ctx;
-    private Boolean exists = null;
-    private Boolean writable = null;
+    private volatile Uri uri;
+    // document uri of the directory we were listed from, if we know it
+    private Uri parentUri;
 
-    public CachedDocumentFile(Context context, String name, String documentId, String mimeType, Integer size, Uri uri) {
+    // Attributes, loaded together from a single row. Guarded by "this".
+    private Long size;
+    private Boolean exists = null;
+    // null if the document wasn't loaded with its flags
+    private Integer flags = null;
+    private Long lastModified = null;
+    // elapsedRealtime() of when we last read the attributes from the provider,
+    // 0 if we haven't or they have been marked stale.
+    private long loadedAt = 0;
+
+    public CachedDocumentFile(String name, String documentId, String mimeType, Uri uri) {
         this.name = name;
         this.documentId = documentId;
         this.mimeType = mimeType;
-        this.size = size;
         this.uri = uri;
-        this.ctx = context;
-    }
-
-    public CachedDocumentFile(Context context, String name, String documentId, String mimeType, Uri uri) {
-        this(context, name, documentId, mimeType, -1, uri);
-    }
-
-    public static CachedDocumentFile fromFileUri(Context context, Uri uri) {
-        final String[] columns = new String[]{
-                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                DocumentsContract.Document.COLUMN_MIME_TYPE,
-                DocumentsContract.Document.COLUMN_SIZE,
-        };
-
-        Cursor cursor = null;
-        try {
-            final ContentResolver resolver = context.getContentResolver();
-            cursor = resolver.query(uri, columns, null, null, null);
-
-            if (cursor != null && cursor.moveToFirst()) {
-                return new CachedDocumentFile(context,
-                        SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_DISPLAY_NAME),
-                        SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_DOCUMENT_ID),
-                        SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_MIME_TYPE),
-                        SAFUtils.getColumnValIntegerOrDefault(cursor, DocumentsContract.Document.COLUMN_SIZE, -1),
-                        uri);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "fromFileUri(): " + e);
-        } finally {
-            if (cursor != null)
-                cursor.close();
-        }
-        return null;
+    }
+
+    /**
+     * Create the document from attributes its {@link DocumentBackend} gave us,
+     * or which we loaded earlier, e.g from the {@link DocumentStore}. Unless
+     * {@link #markLoaded()} is called, we can't vouch for the document's existence.
+     *
+     * @param size null if unknown
+     */
+    static CachedDocumentFile fromAttributes(String name, String documentId,
+                                             String mimeType, Long size, int flags,
+                                             long lastModified, Uri uri) {
+        final CachedDocumentFile file = new CachedDocumentFile(name, documentId, mimeType, uri);
+        file.size = size;
+        file.flags = flags;
+        file.lastModified = lastModified;
+        return file;
     }
 
     public String getName() {
@@ -84,6 +72,17 @@ public class CachedDocumentFile {
         return uri;
     }
 
+    /**
+     * @return document uri of the parent directory or null if it isn't known
+     */
+    Uri getParentUri() {
+        return parentUri;
+    }
+
+    void setParentUri(Uri parentUri) {
+        this.parentUri = parentUri;
+    }
+
     public boolean isFile() {
         return !isDirectory() && !TextUtils.isEmpty(mimeType);
     }
@@ -92,121 +91,134 @@ public class CachedDocumentFile {
         return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
     }
 
-    public long getSize() {
-        return queryForLong(DocumentsContract.Document.COLUMN_SIZE, 0);
+    /**
+     * @return true if flags, size and last modified time were loaded along
+     * with the document, so they can be used without querying again.
+     */
+    synchronized boolean hasAttributes() {
+        return flags != null;
     }
 
-    public boolean rename(String displayName) {
-        try {
-            final Uri newUri = DocumentsContract.renameDocument(
-                    ctx.getContentResolver(), uri, displayName);
-            if (newUri == null || newUri == uri) {
-                return false;
-            }
-            this.name = displayName;
-            this.uri = newUri;
-            return true;
-        } catch (Exception e) {
-            // HACK: see https://crbug.com/1246925.
-            if (SAFFileManager.isArc()) {
-                String oldUriStr = uri.toString();
-                this.uri = Uri.parse(oldUriStr.replaceFirst(this.name + "$", displayName));
-                this.exists = null;
-                if (exists()) {
-                    this.name = displayName;
-                    return true;
-                } else {
-                    this.uri = Uri.parse(oldUriStr);
-                    return false;
-                }
-            }
-            Log.e(TAG, "rename(): Rename failed: " + e);
-            return false;
-        }
+    /**
+     * @return true if the document was loaded with its flags and has the
+     * {@code DocumentsContract.Document.FLAG_*} set.
+     */
+    synchronized boolean hasFlag(int flag) {
+        return flags != null && (flags & flag) != 0;
+    }
+
+    /**
+     * @return {@code DocumentsContract.Document.FLAG_*} the document was loaded
+     * with, 0 if they weren't loaded.
+     */
+    synchronized int getFlags() {
+        return flags != null ? flags : 0;
+    }
+
+    /**
+     * @return size as it was when the document was loaded, -1 if unknown.
+     */
+    synchronized long getLoadedSize() {
+        return size != null ? size : -1;
+    }
+
+    /**
+     * @return last modified time in milliseconds since epoch, 0 if unknown.
+     */
+    synchronized long getLastModified() {
+        return lastModified != null ? lastModified : 0;
+    }
+
+    /**
+     * @return milliseconds since the attributes were read from the provider,
+     * -1 if they haven't been or have been marked stale.
+     */
+    synchronized long getAttributesAge() {
+        return loadedAt != 0 ? SystemClock.elapsedRealtime() - loadedAt : -1;
     }
 
-    public boolean canWrite() {
-        if (writable != null) {
-            return writable;
+    /**
+     * The attributes we were created with are current, e.g because they were
+     * just read from the filesystem.
+     */
+    synchronized void markLoaded() {
+        exists = true;
+        loadedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * The next call needing the size or existence of the document will query
+     * the provider again, e.g because it is being written to.
+     */
+    synchronized void markStale() {
+        loadedAt = 0;
+    }
+
+    /**
+     * Take the attributes of a copy of the document we just loaded.
+     */
+    void setAttributes(CachedDocumentFile latest) {
+        final Long latestSize;
+        final Integer latestFlags;
+        final Long latestLastModified;
+        synchronized (latest) {
+            latestSize = latest.size;
+            latestFlags = latest.flags;
+            latestLastModified = latest.lastModified;
         }
-        writable = false;
-        Cursor cursor = null;
-        try {
-            final ContentResolver resolver = ctx.getContentResolver();
-            final String[] columns = {DocumentsContract.Document.COLUMN_FLAGS,
-                    DocumentsContract.Document.COLUMN_MIME_TYPE};
-            cursor = resolver.query(uri, columns, null, null, null);
-            int flags = 0;
-            String mimeType = null;
-            if (cursor != null) {
-                if (cursor.moveToFirst()) {
-                    flags = SAFUtils.getColumnValIntegerOrDefault(cursor,
-                            DocumentsContract.Document.COLUMN_FLAGS, 0);
-                    mimeType = SAFUtils.getColumnValStringOrNull(cursor,
-                            DocumentsContract.Document.COLUMN_MIME_TYPE);
-                }
-            }
-
-            if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType) &&
-                    (flags & DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE) != 0) {
-                writable = true;
-            } else if ((flags & DocumentsContract.Document.FLAG_SUPPORTS_WRITE) != 0) {
-                writable = true;
-            }
-
-        } catch (Exception e) {
-            Log.e(TAG, "canWrite(): Failed query: " + e);
-            writable = false;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        synchronized (this) {
+            size = latestSize;
+            flags = latestFlags;
+            lastModified = latestLastModified;
+            exists = true;
+            loadedAt = SystemClock.elapsedRealtime();
         }
-        return writable;
     }
 
-    public boolean exists() {
-        if (exists != null) {
-            return exists;
-        }
+    /**
+     * The backend told us the document doesn't exist (anymore).
+     */
+    synchronized void markMissing() {
+        exists = false;
+        loadedAt = SystemClock.elapsedRealtime();
+    }
 
-        Cursor cursor = null;
-        try {
-            final ContentResolver resolver = ctx.getContentResolver();
-            final String[] columns = {DocumentsContract.Document.COLUMN_DOCUMENT_ID};
-            cursor = resolver.query(uri, columns, null, null, null);
-            exists = cursor !=null && cursor.getCount() > 0;
-        } catch (Exception e) {
-            Log.e(TAG, "exists(): Failed query: " + e);
-            exists = false;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+    /**
+     * @return size as it was when the attributes were loaded, 0 if unknown.
+     */
+    public synchronized long getSize() {
+        return size != null ? size : 0;
+    }
+
+    /**
+     * The document has been renamed through its {@link DocumentBackend}.
+     */
+    void setRenamed(String displayName, Uri newUri) {
+        this.name = displayName;
+        this.uri = newUri;
+    }
+
+    /**
+     * @return true if the flags we were loaded with allow writing, false if
+     * they don't or we weren't loaded with them.
+     */
+    public synchronized boolean canWrite() {
+        return flags != null && !Boolean.FALSE.equals(exists) && isWritable(mimeType, flags);
+    }
 
-        return exists;
-    }
-
-    private long queryForLong(String column, long defaultValue) {
-        Cursor cursor = null;
-        try {
-            final ContentResolver resolver = ctx.getContentResolver();
-            final String[] columns = {column};
-            cursor = resolver.query(uri, columns, null, null, null);
-            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
-                return cursor.getLong(0);
-            } else {
-                return defaultValue;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "queryForLong(): Failed query: " + e);
-            return defaultValue;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+    private static boolean isWritable(String mimeType, int flags) {
+        if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType) &&
+                (flags & DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE) != 0) {
+            return true;
         }
+        return (flags & DocumentsContract.Document.FLAG_SUPPORTS_WRITE) != 0;
+    }
+
+    /**
+     * @return true if the document existed when it was last loaded.
+     */
+    public synchronized boolean exists() {
+        return Boolean.TRUE.equals(exists);
     }
 
     @Override
@@ -47,6 +47,20 @@ public class ContentUriPermission {
         return (mModeFlags & Intent.FLAG_GRANT_WRITE_URI_PERMISSION) != 0;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof ContentUriPermission) {
+            final ContentUriPermission permission = (ContentUriPermission) other;
+            return mModeFlags == permission.mModeFlags && mUri.equals(permission.mUri);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mUri.hashCode() + mModeFlags;
+    }
+
     @NonNull
     @Override
     public String toString() {
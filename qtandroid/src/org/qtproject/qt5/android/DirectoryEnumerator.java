@@ -0,0 +1,76 @@
+package org.qtproject.qt5.android;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the children of a directory in fixed size batches, straight off the
+ * cursor a {@link DocumentBackend} opened for them. Unlike a listing, at most
+ * one batch is held in memory, which matters for directories with tens of
+ * thousands of documents.
+ */
+class DirectoryEnumerator {
+
+    private static final String TAG = "DirectoryEnumerator";
+
+    private final Uri mDirectoryUri;
+    private Cursor mCursor;
+
+    /**
+     * @param directoryUri a Uri with both "tree" and "document".
+     * @param cursor children of the directory, queried with
+     *               {@link ProviderDocumentBackend#DOCUMENT_COLUMNS}.
+     */
+    DirectoryEnumerator(Uri directoryUri, Cursor cursor) {
+        mDirectoryUri = directoryUri;
+        mCursor = cursor;
+    }
+
+    Uri getDirectoryUri() {
+        return mDirectoryUri;
+    }
+
+    /**
+     * @param count maximum number of documents to read
+     * @return the next documents, an empty list once we have reached the end.
+     */
+    List<CachedDocumentFile> next(int count) {
+        final List<CachedDocumentFile> batch = new ArrayList<>(Math.max(count, 0));
+        if (mCursor == null) {
+            return batch;
+        }
+
+        try {
+            while (batch.size() < count && mCursor.moveToNext()) {
+                final String docId = SAFUtils.getColumnValStringOrNull(mCursor,
+                        DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+                final CachedDocumentFile file = ProviderDocumentBackend.fromCursor(mCursor,
+                        DocumentsContract.buildDocumentUriUsingTree(mDirectoryUri, docId));
+                file.setParentUri(mDirectoryUri);
+                batch.add(file);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "next(): Failed reading the cursor: " + e);
+            close();
+            return batch;
+        }
+
+        // nothing more to read, no point holding on to the cursor
+        if (batch.size() < count) {
+            close();
+        }
+        return batch;
+    }
+
+    void close() {
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+    }
+}
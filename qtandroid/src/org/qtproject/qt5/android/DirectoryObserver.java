@@ -0,0 +1,167 @@
+package org.qtproject.qt5.android;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches the children of the directories we have indexed, so that changes made
+ * behind our back (by other apps, or the provider syncing) drop the cached listing
+ * of just that directory.
+ * <p>
+ * Notifications tend to come in bursts, e.g a sync adding many files, so they are
+ * coalesced and delivered at most once every {@link #DEBOUNCE_MS} per directory.
+ * The number of observers is bounded, the least recently watched directory
+ * stops being observed first.
+ */
+class DirectoryObserver {
+
+    private static final String TAG = "DirectoryObserver";
+
+    static final int MAX_OBSERVERS = 256;
+    static final long DEBOUNCE_MS = 250;
+
+    interface Listener {
+        /**
+         * Called on the observer's thread.
+         */
+        void onDirectoryChanged(Uri directoryUri);
+    }
+
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final HandlerThread mThread;
+
+    // access ordered, so the eldest entry is the least recently watched one
+    private final LinkedHashMap<Uri, ContentObserver> mObservers =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Uri> mChanged = new HashSet<>();
+    private boolean mFlushScheduled = false;
+    private boolean mQuit = false;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            final List<Uri> changed;
+            synchronized (DirectoryObserver.this) {
+                changed = new ArrayList<>(mChanged);
+                mChanged.clear();
+                mFlushScheduled = false;
+            }
+            for (Uri uri : changed) {
+                mListener.onDirectoryChanged(uri);
+            }
+        }
+    };
+
+    DirectoryObserver(ContentResolver resolver, Listener listener) {
+        mResolver = resolver;
+        mListener = listener;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Start observing the children of the directory, does nothing if we
+     * already are.
+     *
+     * @param directoryUri a Uri with both "tree" and "document".
+     */
+    void watch(final Uri directoryUri) {
+        final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(directoryUri,
+                DocumentsContract.getDocumentId(directoryUri));
+        ContentObserver evicted = null;
+        // Registered with the lock held, so that unwatch(), an eviction or quit()
+        // can't see an observer which isn't registered yet; it would be leaked.
+        synchronized (this) {
+            if (mQuit || mObservers.get(directoryUri) != null) {
+                return;
+            }
+
+            final ContentObserver observer = new ContentObserver(mHandler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    changed(directoryUri);
+                }
+            };
+            try {
+                mResolver.registerContentObserver(childrenUri, false, observer);
+            } catch (SecurityException e) {
+                Log.w(TAG, "watch(): Couldn't observe: " + childrenUri + ", " + e);
+                return;
+            }
+            mObservers.put(directoryUri, observer);
+
+            if (mObservers.size() > MAX_OBSERVERS) {
+                final Iterator<Map.Entry<Uri, ContentObserver>> iterator =
+                        mObservers.entrySet().iterator();
+                evicted = iterator.next().getValue();
+                iterator.remove();
+            }
+        }
+
+        if (evicted != null) {
+            mResolver.unregisterContentObserver(evicted);
+        }
+    }
+
+    void unwatch(Uri directoryUri) {
+        final ContentObserver observer;
+        synchronized (this) {
+            observer = mObservers.remove(directoryUri);
+        }
+        if (observer != null) {
+            mResolver.unregisterContentObserver(observer);
+        }
+    }
+
+    /**
+     * Stop observing everything, the instance can't be used after this.
+     */
+    void quit() {
+        final List<ContentObserver> observers;
+        synchronized (this) {
+            mQuit = true;
+            observers = new ArrayList<>(mObservers.values());
+            mObservers.clear();
+            mChanged.clear();
+        }
+        for (ContentObserver observer : observers) {
+            mResolver.unregisterContentObserver(observer);
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+    }
+
+    synchronized int size() {
+        return mObservers.size();
+    }
+
+    private synchronized void changed(Uri directoryUri) {
+        mChanged.add(directoryUri);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, DEBOUNCE_MS);
+        }
+    }
+}
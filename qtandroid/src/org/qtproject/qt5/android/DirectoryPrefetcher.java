@@ -0,0 +1,116 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up the listings of subdirectories in the background, after the user
+ * has opened their parent. Each new request cancels the pending work of the
+ * previous one, because that means the user has navigated elsewhere.
+ */
+class DirectoryPrefetcher {
+
+    private static final String TAG = "DirectoryPrefetcher";
+
+    static final int MAX_DIRECTORIES_PER_LISTING = 16;
+    private static final int THREAD_COUNT = 2;
+    private static final int QUEUE_CAPACITY = 64;
+
+    interface Loader {
+        /**
+         * Query and cache the listing of the directory, if it isn't already cached.
+         * Called on a background thread.
+         */
+        void load(Uri directoryUri);
+    }
+
+    private final Loader mLoader;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final ThreadPoolExecutor mExecutor;
+
+    DirectoryPrefetcher(Loader loader) {
+        mLoader = loader;
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "SAFPrefetch-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                // if we can't keep up, it's fine to not prefetch
+                new ThreadPoolExecutor.DiscardPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Cancel whatever is pending and start prefetching the subdirectories in
+     * {@code children}. Most recently modified directories are prefetched first.
+     */
+    void prefetch(List<CachedDocumentFile> children) {
+        final int generation = cancel();
+
+        final List<CachedDocumentFile> directories = new ArrayList<>();
+        for (CachedDocumentFile child : children) {
+            if (child.isDirectory()) {
+                directories.add(child);
+            }
+        }
+        Collections.sort(directories, new Comparator<CachedDocumentFile>() {
+            @Override
+            public int compare(CachedDocumentFile a, CachedDocumentFile b) {
+                return Long.compare(b.getLastModified(), a.getLastModified());
+            }
+        });
+
+        final int count = Math.min(directories.size(), MAX_DIRECTORIES_PER_LISTING);
+        for (int i = 0; i < count; ++i) {
+            final Uri directoryUri = directories.get(i).getUri();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneration.get() != generation) {
+                        return;
+                    }
+                    try {
+                        mLoader.load(directoryUri);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Prefetch failed: uri = " + directoryUri + ", " + e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop all the pending prefetches, the ones already running are left to finish.
+     *
+     * @return the new generation
+     */
+    int cancel() {
+        mExecutor.getQueue().clear();
+        return mGeneration.incrementAndGet();
+    }
+}
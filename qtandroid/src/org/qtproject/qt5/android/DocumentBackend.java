@@ -0,0 +1,73 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileNotFoundException;
+import java.util.List;
+
+/**
+ * Where the documents come from. The resolution and caching in {@link SAFFileManager}
+ * only talk to the documents through this, so tests can run them against
+ * an in-memory backend as well as the real providers
+ * ({@link ProviderDocumentBackend}).
+ * <p>
+ * Failures are reported by returning null (or false), only
+ * {@link #openDocument(Uri, String)} throws.
+ */
+interface DocumentBackend {
+
+    /**
+     * @return Uris we have been granted persisted permissions to.
+     */
+    List<ContentUriPermission> getPersistedPermissions();
+
+    /**
+     * @param documentTreeUri a Uri with both "tree" and "document".
+     * @return children of the directory with their attributes loaded, null
+     * if the directory couldn't be listed.
+     */
+    List<CachedDocumentFile> queryChildren(Uri documentTreeUri);
+
+    /**
+     * Like {@link #queryChildren(Uri)}, for directories too large to be held
+     * in memory all at once.
+     *
+     * @param documentTreeUri a Uri with both "tree" and "document".
+     * @return the enumerator, null if the directory couldn't be listed.
+     */
+    DirectoryEnumerator openChildren(Uri documentTreeUri);
+
+    /**
+     * @return the document with its attributes loaded, null if it doesn't exist
+     * or we couldn't ask; {@link ProviderBulkheads#lastCallTimedOut()} tells
+     * the two apart.
+     */
+    CachedDocumentFile queryDocument(Uri documentUri);
+
+    /**
+     * @return the new document, null if it couldn't be created.
+     */
+    CachedDocumentFile createDocument(Uri parentUri, String mimeType, String displayName);
+
+    boolean deleteDocument(Uri documentUri);
+
+    /**
+     * @return Uri of the document after the rename, null if it failed.
+     */
+    Uri renameDocument(Uri documentUri, String displayName);
+
+    /**
+     * @return Uri of the copy, null if the backend can't do it, in which case
+     * the contents are to be copied by the caller.
+     */
+    Uri copyDocument(Uri documentUri, Uri targetParentUri);
+
+    /**
+     * @return Uri of the moved document, null if the backend can't do it, in
+     * which case the contents are to be copied by the caller.
+     */
+    Uri moveDocument(Uri documentUri, Uri sourceParentUri, Uri targetParentUri);
+
+    ParcelFileDescriptor openDocument(Uri documentUri, String mode) throws FileNotFoundException;
+}
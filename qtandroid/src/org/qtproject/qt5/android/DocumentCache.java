@@ -0,0 +1,497 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded LRU cache of {@link CachedDocumentFile}s keyed by their document Uri,
+ * along with the {@link CachedDirectory} listings of the directories we have looked into.
+ * <p>
+ * Every entry can carry its own time to live, after which it is treated as a
+ * miss and dropped, so that a long running session doesn't keep serving
+ * documents which may have been changed behind our back.
+ * <p>
+ * We also keep a graph of parent to children links for the documents whose parent
+ * we know, so that dropping a directory and everything under it costs time
+ * proportional to the subtree, rather than the size of the cache.
+ * <p>
+ * Listings are bounded by the number of children they hold, rather than their
+ * count. The children of a listing larger than a quarter of the entries' bound
+ * are only kept in the listing, so that one large directory doesn't evict
+ * every other document.
+ */
+class DocumentCache {
+
+    private static final String TAG = "DocumentCache";
+
+    static final int DEFAULT_MAX_ENTRIES = 4096;
+    // children the listings may hold in all, per entry
+    static final int DIRECTORY_CHILDREN_PER_ENTRY = 4;
+    static final long DEFAULT_TTL_MS = 60 * 1000;
+    static final long NO_EXPIRY = 0;
+
+    private static class Entry<T> {
+        final T value;
+        final long expiresAt;
+        // fixed once put, so that LruCache's accounting adds up
+        final int weight;
+
+        Entry(T value, long ttlMs) {
+            this(value, ttlMs, 1);
+        }
+
+        Entry(T value, long ttlMs, int weight) {
+            this.value = value;
+            this.expiresAt = ttlMs > 0 ? SystemClock.elapsedRealtime() + ttlMs : Long.MAX_VALUE;
+            this.weight = weight;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    /**
+     * Told about the changes made through the invalidation hooks, e.g to keep
+     * a copy of the listings elsewhere in step.
+     */
+    interface MutationListener {
+        void onChildrenChanged(Uri directoryUri);
+
+        /**
+         * The directory is gone, or has been renamed, along with everything under it.
+         */
+        void onDirectoryRemoved(Uri directoryUri);
+    }
+
+    private final LruCache<Uri, Entry<CachedDocumentFile>> mEntries;
+    private final LruCache<Uri, Entry<CachedDirectory>> mDirectories;
+    private volatile long mDefaultTtl;
+    private final NegativeLookupCache mMissing = new NegativeLookupCache();
+    private volatile MutationListener mMutationListener;
+
+    // Links are kept for as long as the document is cached, or one of its
+    // descendants is, so that an evicted directory doesn't cut its subtree off.
+    private final Object mGraphLock = new Object();
+    private final HashMap<Uri, Set<Uri>> mChildren = new HashMap<>();
+    private final HashMap<Uri, Uri> mParents = new HashMap<>();
+    private final HashSet<Uri> mLinkedEntries = new HashSet<>();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mExpirations = new AtomicLong();
+
+    DocumentCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS);
+    }
+
+    DocumentCache(int maxEntries, long defaultTtlMs) {
+        mDefaultTtl = defaultTtlMs;
+        mEntries = new LruCache<Uri, Entry<CachedDocumentFile>>(maxEntries) {
+            @Override
+            protected void entryRemoved(boolean evicted, Uri key,
+                                        Entry<CachedDocumentFile> oldValue,
+                                        Entry<CachedDocumentFile> newValue) {
+                if (evicted) {
+                    mEvictions.incrementAndGet();
+                }
+                // when replaced, put() takes care of the links
+                if (newValue == null) {
+                    unlink(key);
+                }
+            }
+        };
+        mDirectories = new LruCache<Uri, Entry<CachedDirectory>>(
+                maxEntries * DIRECTORY_CHILDREN_PER_ENTRY) {
+            @Override
+            protected int sizeOf(Uri key, Entry<CachedDirectory> value) {
+                return value.weight;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Uri key,
+                                        Entry<CachedDirectory> oldValue,
+                                        Entry<CachedDirectory> newValue) {
+                for (CachedDocumentFile child : oldValue.value.getChildren()) {
+                    unlinkListed(child.getUri());
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the cached document or null if it isn't in the cache or has expired.
+     */
+    CachedDocumentFile get(Uri uri) {
+        final Entry<CachedDocumentFile> entry = mEntries.get(uri);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.isExpired(SystemClock.elapsedRealtime())) {
+            mEntries.remove(uri);
+            mExpirations.incrementAndGet();
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        mHits.incrementAndGet();
+        return entry.value;
+    }
+
+    void put(CachedDocumentFile file) {
+        put(file, mDefaultTtl);
+    }
+
+    /**
+     * @param ttlMs time after which the entry is considered stale,
+     *              {@link #NO_EXPIRY} to keep it until it is evicted.
+     */
+    void put(CachedDocumentFile file, long ttlMs) {
+        mEntries.put(file.getUri(), new Entry<>(file, ttlMs));
+        link(file.getParentUri(), file.getUri(), true);
+    }
+
+    void remove(Uri uri) {
+        mEntries.remove(uri);
+    }
+
+    /**
+     * @return the listing of the directory, or null if we haven't indexed it
+     * or the listing has expired.
+     */
+    CachedDirectory getDirectory(Uri uri) {
+        final Entry<CachedDirectory> entry = mDirectories.get(uri);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.isExpired(SystemClock.elapsedRealtime())) {
+            mDirectories.remove(uri);
+            mExpirations.incrementAndGet();
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        mHits.incrementAndGet();
+        return entry.value;
+    }
+
+    void putDirectory(CachedDirectory directory) {
+        final List<CachedDocumentFile> children = directory.getChildren();
+        final int weight = 1 + children.size();
+        if (weight > mDirectories.maxSize()) {
+            Log.d(TAG, "putDirectory(): Too large to be cached: " + directory.getUri()
+                    + ", children = " + children.size());
+            mDirectories.remove(directory.getUri());
+            return;
+        }
+        mDirectories.put(directory.getUri(), new Entry<>(directory, mDefaultTtl, weight));
+
+        // linked after the put, which unlinks the listing it replaces
+        final boolean large = children.size() > mEntries.maxSize() / 4;
+        for (CachedDocumentFile child : children) {
+            if (large) {
+                link(directory.getUri(), child.getUri(), false);
+            } else {
+                put(child);
+            }
+        }
+    }
+
+    /**
+     * Drops the listing of the directory as a whole, the next lookup in it
+     * will have to query the provider.
+     */
+    void invalidateDirectory(Uri uri) {
+        if (uri != null) {
+            mDirectories.remove(uri);
+            mMissing.invalidate(uri);
+        }
+    }
+
+    /**
+     * @return true if we recently failed to find the name in the directory.
+     */
+    boolean isKnownMissing(Uri directoryUri, String name) {
+        return mMissing.isMissing(directoryUri, name);
+    }
+
+    void putMissing(Uri directoryUri, String name) {
+        mMissing.putMissing(directoryUri, name);
+    }
+
+    /**
+     * @param ttlMs how long a failed lookup is remembered, 0 to not remember them.
+     */
+    void setMissingTtl(long ttlMs) {
+        mMissing.setTtl(ttlMs);
+    }
+
+    /**
+     * Drops the listing of the directory and its children's entries, e.g because
+     * the provider told us they changed. Unlike {@link #invalidateSubtree(Uri)},
+     * the grandchildren are left alone.
+     */
+    void invalidateChildren(Uri uri) {
+        final ArrayList<Uri> children;
+        synchronized (mGraphLock) {
+            final Set<Uri> linked = mChildren.get(uri);
+            children = linked != null ? new ArrayList<>(linked) : new ArrayList<Uri>();
+        }
+
+        mDirectories.remove(uri);
+        mMissing.invalidate(uri);
+        for (Uri child : children) {
+            mEntries.remove(child);
+        }
+    }
+
+    void clearDirectories() {
+        mDirectories.evictAll();
+        mMissing.clear();
+    }
+
+    void clear() {
+        mEntries.evictAll();
+        mDirectories.evictAll();
+        mMissing.clear();
+        synchronized (mGraphLock) {
+            mChildren.clear();
+            mParents.clear();
+            mLinkedEntries.clear();
+        }
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    void setMaxEntries(int maxEntries) {
+        mEntries.resize(maxEntries);
+        mDirectories.resize(maxEntries * DIRECTORY_CHILDREN_PER_ENTRY);
+    }
+
+    void setDefaultTtl(long ttlMs) {
+        mDefaultTtl = ttlMs;
+    }
+
+    void setMutationListener(MutationListener listener) {
+        mMutationListener = listener;
+    }
+
+    // Invalidation hooks, these should be called by whoever mutates the documents
+
+    void onDocumentCreated(CachedDocumentFile file) {
+        onDocumentAdded(file);
+        if (file.isDirectory()) {
+            // a directory we just created can't have anything in it
+            putDirectory(new CachedDirectory(file.getUri(),
+                    new ArrayList<CachedDocumentFile>()));
+        }
+    }
+
+    /**
+     * The document has been added to its parent, e.g by a copy, but unlike
+     * {@link #onDocumentCreated(CachedDocumentFile)} it may have contents.
+     */
+    void onDocumentAdded(CachedDocumentFile file) {
+        put(file);
+        mMissing.invalidate(file.getParentUri());
+        final Entry<CachedDirectory> parent = file.getParentUri() != null
+                ? mDirectories.get(file.getParentUri()) : null;
+        if (parent != null) {
+            parent.value.addChild(file);
+        }
+        notifyChildrenChanged(file.getParentUri());
+    }
+
+    void onDocumentDeleted(CachedDocumentFile file) {
+        if (file.isDirectory()) {
+            invalidateSubtree(file.getUri());
+            notifyDirectoryRemoved(file.getUri());
+        }
+        remove(file.getUri());
+        invalidateDirectory(file.getParentUri());
+        notifyChildrenChanged(file.getParentUri());
+    }
+
+    void onDocumentRenamed(Uri oldUri, CachedDocumentFile file) {
+        // children's document ids may have the old name baked in
+        invalidateSubtree(oldUri);
+        remove(oldUri);
+        invalidateDirectory(file.getParentUri());
+        put(file);
+        if (file.isDirectory()) {
+            notifyDirectoryRemoved(oldUri);
+        }
+        notifyChildrenChanged(file.getParentUri());
+    }
+
+    private void notifyChildrenChanged(Uri directoryUri) {
+        final MutationListener listener = mMutationListener;
+        if (listener != null && directoryUri != null) {
+            listener.onChildrenChanged(directoryUri);
+        }
+    }
+
+    private void notifyDirectoryRemoved(Uri directoryUri) {
+        final MutationListener listener = mMutationListener;
+        if (listener != null) {
+            listener.onDirectoryRemoved(directoryUri);
+        }
+    }
+
+    /**
+     * Remove everything under the directory, along with the directory's own listing.
+     * The directory's entry itself is left alone.
+     *
+     * @param removedUri The document to be deleted
+     */
+    void invalidateSubtree(Uri removedUri) {
+        final ArrayList<Uri> removed = new ArrayList<>();
+        synchronized (mGraphLock) {
+            final ArrayDeque<Uri> pending = new ArrayDeque<>();
+            pending.push(removedUri);
+            while (!pending.isEmpty()) {
+                final Set<Uri> children = mChildren.remove(pending.pop());
+                if (children == null) {
+                    continue;
+                }
+                for (Uri child : children) {
+                    mParents.remove(child);
+                    mLinkedEntries.remove(child);
+                    removed.add(child);
+                    pending.push(child);
+                }
+            }
+        }
+
+        mDirectories.remove(removedUri);
+        mMissing.invalidate(removedUri);
+        for (Uri uri : removed) {
+            mEntries.remove(uri);
+            mDirectories.remove(uri);
+            mMissing.invalidate(uri);
+        }
+    }
+
+    /**
+     * @param cached whether the child has an entry of its own, rather than only
+     *               being held in its parent's listing.
+     */
+    private void link(Uri parent, Uri child, boolean cached) {
+        if (parent == null) {
+            return;
+        }
+        synchronized (mGraphLock) {
+            if (cached) {
+                mLinkedEntries.add(child);
+            }
+            final Uri oldParent = mParents.put(child, parent);
+            if (oldParent != null && !oldParent.equals(parent)) {
+                removeChildLink(oldParent, child);
+            }
+            Set<Uri> children = mChildren.get(parent);
+            if (children == null) {
+                children = new HashSet<>();
+                mChildren.put(parent, children);
+            }
+            children.add(child);
+        }
+    }
+
+    /**
+     * Drop the links of a document which is no longer in the cache, unless it
+     * still has descendants cached. Walks up, because the parent may be
+     * held in the graph only for our sake.
+     */
+    private void unlink(Uri uri) {
+        synchronized (mGraphLock) {
+            mLinkedEntries.remove(uri);
+            Uri current = uri;
+            while (current != null) {
+                final Set<Uri> children = mChildren.get(current);
+                if ((children != null && !children.isEmpty())
+                        || mLinkedEntries.contains(current)) {
+                    return;
+                }
+                mChildren.remove(current);
+                final Uri parent = mParents.remove(current);
+                if (parent != null) {
+                    removeChildLink(parent, current);
+                }
+                current = parent;
+            }
+        }
+    }
+
+    /**
+     * Drop the links of a child whose parent's listing is gone, unless it
+     * has an entry of its own.
+     */
+    private void unlinkListed(Uri uri) {
+        synchronized (mGraphLock) {
+            if (!mLinkedEntries.contains(uri)) {
+                unlink(uri);
+            }
+        }
+    }
+
+    private void removeChildLink(Uri parent, Uri child) {
+        final Set<Uri> children = mChildren.get(parent);
+        if (children != null) {
+            children.remove(child);
+        }
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    long getExpirationCount() {
+        return mExpirations.get();
+    }
+
+    /**
+     * @return {hits, misses, evictions, expirations, size}
+     */
+    long[] getStatistics() {
+        return new long[]{getHitCount(), getMissCount(), getEvictionCount(),
+                getExpirationCount(), size()};
+    }
+
+    void resetStatistics() {
+        mHits.set(0);
+        mMisses.set(0);
+        mEvictions.set(0);
+        mExpirations.set(0);
+    }
+
+    void logStatistics() {
+        Log.d(TAG, "hits = " + getHitCount() + ", misses = " + getMissCount()
+                + ", evictions = " + getEvictionCount() + ", expirations = "
+                + getExpirationCount() + ", size = " + size());
+    }
+}
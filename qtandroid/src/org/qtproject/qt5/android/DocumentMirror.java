@@ -0,0 +1,309 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local copies of documents, for providers which hand out pipes rather than
+ * seekable descriptors. A document is streamed from the provider once, and
+ * native code is given a descriptor of the local copy instead.
+ * <p>
+ * Copies are keyed by the document's Uri and last modified time, so a document
+ * changed by someone else is never served from a stale copy. They are kept in
+ * the app's cache dir, bounded in total size and evicted least recently used
+ * first. The order survives restarts through the files' modification times.
+ * <p>
+ * Documents opened for writing get a working copy of their own, which isn't
+ * part of the cache until it has been written back.
+ */
+class DocumentMirror {
+
+    private static final String TAG = "DocumentMirror";
+
+    private static final String DIRECTORY_NAME = "saf_mirror";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // never mirror
+    static final int MODE_OFF = 0;
+    // mirror the documents of providers which have given us a pipe
+    static final int MODE_NON_SEEKABLE = 1;
+    // mirror every document
+    static final int MODE_ALWAYS = 2;
+
+    static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * A local copy native code is writing to.
+     */
+    static class WorkingCopy {
+        final Uri uri;
+        final File file;
+        // last modified time of the document the copy was taken from, 0 if
+        // it started out empty or we don't know
+        final long sourceLastModified;
+        final boolean truncated;
+        private final long mLengthAtOpen;
+        // null if it is truncated, and so changed whatever is written to it,
+        // or we couldn't read it
+        private final byte[] mDigestAtOpen;
+
+        WorkingCopy(Uri uri, File file, long sourceLastModified, boolean truncated) {
+            this.uri = uri;
+            this.file = file;
+            this.sourceLastModified = sourceLastModified;
+            this.truncated = truncated;
+            mLengthAtOpen = file.length();
+            // the modification time may not change for a write which keeps the
+            // size, as it only has the filesystem's granularity; the contents do
+            mDigestAtOpen = truncated ? null : digest(file);
+        }
+
+        /**
+         * @return true if native code may have changed it.
+         */
+        boolean isModified() {
+            if (mDigestAtOpen == null || file.length() != mLengthAtOpen) {
+                return true;
+            }
+            final byte[] digest = digest(file);
+            return digest == null || !Arrays.equals(mDigestAtOpen, digest);
+        }
+    }
+
+    private final File mDirectory;
+    private volatile int mMode;
+    // file name -> size, least recently used first. Guarded by "this".
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes = 0;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private final Map<String, Boolean> mNonSeekableAuthorities = new ConcurrentHashMap<>();
+
+    DocumentMirror(File cacheDir, int mode) {
+        mDirectory = new File(cacheDir, DIRECTORY_NAME);
+        mMode = mode;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Couldn't create: " + mDirectory);
+        }
+        loadEntries();
+    }
+
+    void setMode(int mode) {
+        mMode = mode;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        evictLocked(null);
+    }
+
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return true if documents of the Uri's authority are to be opened through
+     * a local copy.
+     */
+    boolean shouldMirror(Uri uri) {
+        return mMode == MODE_ALWAYS
+                || (mMode == MODE_NON_SEEKABLE && mNonSeekableAuthorities.containsKey(authorityOf(uri)));
+    }
+
+    /**
+     * The provider gave us a descriptor we can't seek.
+     */
+    void setNonSeekable(Uri uri) {
+        if (mNonSeekableAuthorities.put(authorityOf(uri), true) == null) {
+            Log.i(TAG, "Mirroring the documents of: " + uri.getAuthority());
+        }
+    }
+
+    /**
+     * @return the copy of the document as it was at {@code lastModified}, null
+     * if we don't have it.
+     */
+    File get(Uri uri, long lastModified) {
+        if (lastModified == 0) {
+            return null;
+        }
+        final String name = fileName(uri, lastModified);
+        synchronized (this) {
+            // get() rather than containsKey(), so it counts as a use
+            if (mEntries.get(name) == null) {
+                return null;
+            }
+        }
+        final File file = new File(mDirectory, name);
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            // it has been removed under us, e.g the system cleared the cache
+            synchronized (this) {
+                removeLocked(name);
+            }
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * @return a new empty file, to be filled and then added with
+     * {@link #put(Uri, long, File)} or deleted.
+     */
+    File createTempFile() throws IOException {
+        return File.createTempFile("mirror", TEMP_SUFFIX, mDirectory);
+    }
+
+    /**
+     * Add the file as the copy of the document at {@code lastModified}. The file
+     * is moved into the cache, descriptors already open on it stay valid even
+     * if it is evicted right away.
+     *
+     * @return false if it couldn't be added, the file is deleted then.
+     */
+    boolean put(Uri uri, long lastModified, File file) {
+        if (lastModified == 0) {
+            deleteFile(file);
+            return false;
+        }
+        final String name = fileName(uri, lastModified);
+        final File target = new File(mDirectory, name);
+        synchronized (this) {
+            removeLocked(name);
+            if (!file.renameTo(target)) {
+                Log.w(TAG, "put(): Couldn't move " + file + " to " + target);
+                deleteFile(file);
+                return false;
+            }
+            final long size = target.length();
+            mEntries.put(name, size);
+            mTotalBytes += size;
+            evictLocked(name);
+        }
+        return true;
+    }
+
+    synchronized void clear() {
+        for (String name : new ArrayList<>(mEntries.keySet())) {
+            removeLocked(name);
+        }
+    }
+
+    private void removeLocked(String name) {
+        final Long size = mEntries.remove(name);
+        if (size != null) {
+            mTotalBytes -= size;
+            deleteFile(new File(mDirectory, name));
+        }
+    }
+
+    /**
+     * @param keep entry which isn't to be evicted while there are others, e.g
+     *             the one just added.
+     */
+    private void evictLocked(String keep) {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(keep) && mEntries.size() > 1) {
+                continue;
+            }
+            iterator.remove();
+            mTotalBytes -= entry.getValue();
+            deleteFile(new File(mDirectory, entry.getKey()));
+        }
+    }
+
+    private void loadEntries() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final List<File> entries = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : entries) {
+                // leftovers of a previous process
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    deleteFile(file);
+                    continue;
+                }
+                mEntries.put(file.getName(), file.length());
+                mTotalBytes += file.length();
+            }
+            evictLocked(null);
+        }
+    }
+
+    private static String authorityOf(Uri uri) {
+        return uri.getAuthority() != null ? uri.getAuthority() : "";
+    }
+
+    /**
+     * @return digest of the file's contents, null if it can't be read.
+     */
+    private static byte[] digest(File file) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final InputStream in = new FileInputStream(file);
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            return digest.digest();
+        } catch (IOException e) {
+            Log.w(TAG, "digest(): Couldn't read: " + file + ", " + e);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fileName(Uri uri, long lastModified) {
+        final String key = uri.toString() + "\n" + lastModified;
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes(Charset.forName("UTF-8")));
+            final StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Android device has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Couldn't delete: " + file);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.qtproject.qt5.android;
+
+/**
+ * Metadata of a batch of documents, laid out as parallel arrays so that native
+ * code can read all of it with a handful of JNI calls.
+ */
+// Native usage
+@SuppressWarnings("UnusedDeclaration")
+public class DocumentStats {
+    public static final int FLAG_EXISTS = 1;
+    public static final int FLAG_DIRECTORY = 1 << 1;
+    public static final int FLAG_WRITABLE = 1 << 2;
+
+    public final String[] names;
+    public final long[] sizes;
+    public final long[] lastModified;
+    public final int[] flags;
+
+    DocumentStats(int count) {
+        names = new String[count];
+        sizes = new long[count];
+        lastModified = new long[count];
+        flags = new int[count];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param file     document, should have its attributes loaded
+     * @param writable whether we may write to it, the document's flags are
+     *                 only half of the story
+     */
+    void set(int index, CachedDocumentFile file, boolean writable) {
+        names[index] = file.getName();
+        sizes[index] = file.isDirectory() ? 0 : Math.max(file.getLoadedSize(), 0);
+        lastModified[index] = file.getLastModified();
+
+        int fileFlags = FLAG_EXISTS;
+        if (file.isDirectory()) {
+            fileFlags |= FLAG_DIRECTORY;
+        }
+        if (writable) {
+            fileFlags |= FLAG_WRITABLE;
+        }
+        flags[index] = fileFlags;
+    }
+}
@@ -0,0 +1,362 @@
+package org.qtproject.qt5.android;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists directory listings in the app's cache dir, so a new process can serve
+ * them without going to the provider first. Documents are keyed by their tree
+ * Uri and document id, and each listing remembers the directory's last modified
+ * time at the point it was taken, which is what it is validated against later.
+ * <p>
+ * Everything here is best effort: if the database can't be opened or written
+ * we log and carry on as if there was nothing stored.
+ * <p>
+ * The store holds at most {@link #DEFAULT_MAX_DOCUMENTS} documents, past that
+ * the listings saved the longest ago are dropped first.
+ */
+class DocumentStore extends SQLiteOpenHelper {
+
+    private static final String TAG = "DocumentStore";
+
+    private static final String DATABASE_NAME = "saf_documents.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long CLOSE_TIMEOUT_MS = 5 * 1000;
+
+    static final int DEFAULT_MAX_DOCUMENTS = 50000;
+
+    private static final String TABLE_DOCUMENTS = "documents";
+    private static final String TABLE_DIRECTORIES = "directories";
+
+    static class StoredDirectory {
+        final List<CachedDocumentFile> children;
+        // 0 if the provider didn't give us one
+        final long lastModified;
+
+        StoredDirectory(List<CachedDocumentFile> children, long lastModified) {
+            this.children = children;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private volatile boolean mClosed = false;
+    private volatile int mMaxDocuments = DEFAULT_MAX_DOCUMENTS;
+
+    DocumentStore(Context context) {
+        super(context, new File(context.getCacheDir(), DATABASE_NAME).getPath(),
+                null, DATABASE_VERSION);
+        mExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                // the store catches up the next time the directory is listed
+                new ThreadPoolExecutor.DiscardPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_DOCUMENTS + " ("
+                + "tree TEXT NOT NULL, "
+                + "document_id TEXT NOT NULL, "
+                + "parent_id TEXT NOT NULL, "
+                + "name TEXT, "
+                + "mime_type TEXT, "
+                + "size INTEGER, "
+                + "flags INTEGER NOT NULL, "
+                + "last_modified INTEGER NOT NULL, "
+                + "PRIMARY KEY (tree, document_id))");
+        db.execSQL("CREATE INDEX documents_parent ON " + TABLE_DOCUMENTS + " (tree, parent_id)");
+        db.execSQL("CREATE TABLE " + TABLE_DIRECTORIES + " ("
+                + "tree TEXT NOT NULL, "
+                + "document_id TEXT NOT NULL, "
+                + "last_modified INTEGER NOT NULL, "
+                + "PRIMARY KEY (tree, document_id))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // it's only a cache
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DOCUMENTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DIRECTORIES);
+        onCreate(db);
+    }
+
+    /**
+     * Run the task on the store's background thread, tasks run one at a time
+     * in the order they were submitted.
+     */
+    void execute(final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // the tasks still queued when we are closed are dropped
+                if (!mClosed) {
+                    task.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the tasks which haven't started yet, and waits for the running one
+     * to finish before closing the database.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "close(): A task is still running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+    void setMaxDocuments(int maxDocuments) {
+        mMaxDocuments = maxDocuments;
+    }
+
+    /**
+     * @param directoryUri a Uri with both "tree" and "document".
+     * @return the stored listing or null if we don't have one.
+     */
+    StoredDirectory loadDirectory(Uri directoryUri) {
+        final String tree = getTreeKey(directoryUri);
+        final String documentId = DocumentsContract.getDocumentId(directoryUri);
+
+        Cursor cursor = null;
+        try {
+            final SQLiteDatabase db = getReadableDatabase();
+            cursor = db.rawQuery("SELECT last_modified FROM " + TABLE_DIRECTORIES
+                    + " WHERE tree = ? AND document_id = ?", new String[]{tree, documentId});
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            final long lastModified = cursor.getLong(0);
+            cursor.close();
+
+            cursor = db.rawQuery("SELECT document_id, name, mime_type, size, flags, last_modified FROM "
+                    + TABLE_DOCUMENTS + " WHERE tree = ? AND parent_id = ?",
+                    new String[]{tree, documentId});
+            final List<CachedDocumentFile> children = new ArrayList<>();
+            while (cursor != null && cursor.moveToNext()) {
+                final String childId = cursor.getString(0);
+                final CachedDocumentFile child = CachedDocumentFile.fromAttributes(
+                        cursor.getString(1), childId, cursor.getString(2),
+                        cursor.isNull(3) ? null : cursor.getLong(3),
+                        cursor.getInt(4), cursor.getLong(5),
+                        DocumentsContract.buildDocumentUriUsingTree(directoryUri, childId));
+                child.setParentUri(directoryUri);
+                children.add(child);
+            }
+            return new StoredDirectory(children, lastModified);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "loadDirectory(): Failed to load: " + directoryUri + ", " + e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Replace the stored listing of the directory.
+     *
+     * @param lastModified the directory's last modified time from before it
+     *                     was listed, 0 if unknown.
+     */
+    void saveDirectory(Uri directoryUri, long lastModified, List<CachedDocumentFile> children) {
+        final String tree = getTreeKey(directoryUri);
+        final String documentId = DocumentsContract.getDocumentId(directoryUri);
+
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            db.beginTransaction();
+            db.delete(TABLE_DOCUMENTS, "tree = ? AND parent_id = ?", new String[]{tree, documentId});
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_DIRECTORIES
+                    + " (tree, document_id, last_modified) VALUES (?, ?, ?)",
+                    new Object[]{tree, documentId, lastModified});
+
+            final SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+                    + TABLE_DOCUMENTS + " (tree, document_id, parent_id, name, mime_type, size,"
+                    + " flags, last_modified) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            try {
+                for (CachedDocumentFile child : children) {
+                    insert.clearBindings();
+                    insert.bindString(1, tree);
+                    insert.bindString(2, child.getDocumentId());
+                    insert.bindString(3, documentId);
+                    bindStringOrNull(insert, 4, child.getName());
+                    bindStringOrNull(insert, 5, child.getMimeType());
+                    if (child.getLoadedSize() >= 0) {
+                        insert.bindLong(6, child.getLoadedSize());
+                    } else {
+                        insert.bindNull(6);
+                    }
+                    insert.bindLong(7, child.getFlags());
+                    insert.bindLong(8, child.getLastModified());
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+            pruneLocked(db);
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "saveDirectory(): Failed to save: " + directoryUri + ", " + e);
+        } finally {
+            if (db != null) {
+                try {
+                    db.endTransaction();
+                } catch (SQLiteException | IllegalStateException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the listings saved the longest ago, until the documents are under
+     * three quarters of the limit; so that we don't have to prune on every save.
+     * Should be called in a transaction.
+     */
+    private void pruneLocked(SQLiteDatabase db) {
+        final int maxDocuments = mMaxDocuments;
+        long count = DatabaseUtils.queryNumEntries(db, TABLE_DOCUMENTS);
+        if (count <= maxDocuments) {
+            return;
+        }
+
+        // a replaced listing is inserted again, so the rowids are in the order they were saved
+        final List<String[]> directories = new ArrayList<>();
+        final Cursor cursor = db.rawQuery("SELECT tree, document_id FROM " + TABLE_DIRECTORIES
+                + " ORDER BY rowid", null);
+        try {
+            while (cursor.moveToNext()) {
+                directories.add(new String[]{cursor.getString(0), cursor.getString(1)});
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final long target = maxDocuments * 3L / 4;
+        for (int i = 0; i < directories.size() && count > target; ++i) {
+            count -= db.delete(TABLE_DOCUMENTS, "tree = ? AND parent_id = ?", directories.get(i));
+            db.delete(TABLE_DIRECTORIES, "tree = ? AND document_id = ?", directories.get(i));
+        }
+        Log.d(TAG, "pruneLocked(): " + count + " documents left");
+    }
+
+    /**
+     * Drop the stored listing of the directory, along with those of the
+     * directories under it, e.g because it has been removed.
+     */
+    void removeSubtree(Uri directoryUri) {
+        final String tree = getTreeKey(directoryUri);
+        final ArrayDeque<String> pending = new ArrayDeque<>();
+        pending.push(DocumentsContract.getDocumentId(directoryUri));
+
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            db.beginTransaction();
+            while (!pending.isEmpty()) {
+                final String[] args = new String[]{tree, pending.pop()};
+                final Cursor cursor = db.rawQuery("SELECT document_id FROM " + TABLE_DOCUMENTS
+                        + " WHERE tree = ? AND parent_id = ? AND mime_type = ?",
+                        new String[]{args[0], args[1], DocumentsContract.Document.MIME_TYPE_DIR});
+                try {
+                    while (cursor.moveToNext()) {
+                        pending.push(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                db.delete(TABLE_DOCUMENTS, "tree = ? AND parent_id = ?", args);
+                db.delete(TABLE_DIRECTORIES, "tree = ? AND document_id = ?", args);
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "removeSubtree(): " + e);
+        } finally {
+            if (db != null) {
+                try {
+                    db.endTransaction();
+                } catch (SQLiteException | IllegalStateException ignored) {
+                }
+            }
+        }
+    }
+
+    void removeDirectory(Uri directoryUri) {
+        final String tree = getTreeKey(directoryUri);
+        final String[] args = new String[]{tree, DocumentsContract.getDocumentId(directoryUri)};
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.delete(TABLE_DOCUMENTS, "tree = ? AND parent_id = ?", args);
+            db.delete(TABLE_DIRECTORIES, "tree = ? AND document_id = ?", args);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "removeDirectory(): " + e);
+        }
+    }
+
+    void clear() {
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.delete(TABLE_DOCUMENTS, null, null);
+            db.delete(TABLE_DIRECTORIES, null, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "clear(): " + e);
+        }
+    }
+
+    private static String getTreeKey(Uri documentTreeUri) {
+        return DocumentsContract.buildTreeDocumentUri(documentTreeUri.getAuthority(),
+                DocumentsContract.getTreeDocumentId(documentTreeUri)).toString();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.qtproject.qt5.android;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies contents between two descriptors without going through native code.
+ * When the source is a regular file we let the kernel do the copying with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * otherwise (pipes, sockets) we fall back to a large buffer.
+ */
+class DocumentTransfer {
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private DocumentTransfer() {
+    }
+
+    /**
+     * Neither of the descriptors is closed.
+     *
+     * @return number of bytes copied
+     */
+    static long copy(ParcelFileDescriptor in, ParcelFileDescriptor out) throws IOException {
+        // The streams don't own the descriptors, so they aren't closed here.
+        final FileChannel inChannel = new FileInputStream(in.getFileDescriptor()).getChannel();
+        final FileChannel outChannel = new FileOutputStream(out.getFileDescriptor()).getChannel();
+
+        if (isRegularFile(in)) {
+            final long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                final long transferred = inChannel.transferTo(position, size - position, outChannel);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            return position;
+        }
+
+        return copyBuffered(inChannel, outChannel);
+    }
+
+    /**
+     * Copy everything from the descriptor into the file, replacing what it had.
+     *
+     * @return number of bytes copied
+     */
+    static long copy(ParcelFileDescriptor in, File out) throws IOException {
+        final ParcelFileDescriptor outPfd = ParcelFileDescriptor.open(out,
+                ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE);
+        try {
+            return copy(in, outPfd);
+        } finally {
+            outPfd.close();
+        }
+    }
+
+    /**
+     * Copy the whole file into the descriptor.
+     *
+     * @return number of bytes copied
+     */
+    static long copy(File in, ParcelFileDescriptor out) throws IOException {
+        final ParcelFileDescriptor inPfd =
+                ParcelFileDescriptor.open(in, ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            return copy(inPfd, out);
+        } finally {
+            inPfd.close();
+        }
+    }
+
+    private static long copyBuffered(FileChannel in, FileChannel out) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = 0;
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                total += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return total;
+    }
+
+    static boolean isRegularFile(ParcelFileDescriptor pfd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(pfd.getFileDescriptor()).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps track of the file descriptors we have handed out to native code.
+ * <p>
+ * The number of descriptors we hold is capped, and read-only descriptors
+ * are parked for a short while after being closed, so that opening the
+ * same document again (e.g thumbnail and then the full read) doesn't have
+ * to go through the provider.
+ */
+class FileDescriptorRegistry {
+
+    private static final String TAG = "FileDescriptorRegistry";
+
+    static final int DEFAULT_MAX_OPEN = 256;
+    static final int MAX_IDLE = 8;
+    static final long IDLE_TIMEOUT_MS = 10 * 1000;
+
+    private static class Entry {
+        final ParcelFileDescriptor pfd;
+        final Uri uri;
+        // directory of the document, null if we don't know it
+        final Uri parentUri;
+        final String mode;
+        final long openedAt;
+        long idleSince;
+
+        Entry(ParcelFileDescriptor pfd, Uri uri, Uri parentUri, String mode) {
+            this.pfd = pfd;
+            this.uri = uri;
+            this.parentUri = parentUri;
+            this.mode = mode;
+            this.openedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final HashMap<Integer, Entry> mOpen = new HashMap<>();
+    // oldest first
+    private final LinkedList<Entry> mIdle = new LinkedList<>();
+    private final HashMap<Uri, Integer> mOpenCounts = new HashMap<>();
+    private int mMaxOpen = DEFAULT_MAX_OPEN;
+    // slots handed out by reserve(), which haven't been registered yet
+    private int mReserved = 0;
+
+    synchronized void setMaxOpen(int maxOpen) {
+        mMaxOpen = maxOpen;
+    }
+
+    /**
+     * Make room for a new descriptor, closing parked ones if needed. The slot
+     * is held until the descriptor is registered with
+     * {@link #register(Uri, Uri, String, ParcelFileDescriptor)}, or given back
+     * with {@link #release()}, so concurrent opens can't go over the limit.
+     *
+     * @return false if we are already holding as many descriptors as we are allowed to.
+     */
+    boolean reserve() {
+        final List<Entry> toClose = new ArrayList<>();
+        final boolean result;
+        synchronized (this) {
+            collectExpiredLocked(toClose);
+            while (!mIdle.isEmpty() && mOpen.size() + mReserved + mIdle.size() >= mMaxOpen) {
+                toClose.add(mIdle.removeFirst());
+            }
+            result = mOpen.size() + mReserved < mMaxOpen;
+            if (result) {
+                mReserved++;
+            }
+        }
+        closeAll(toClose);
+        return result;
+    }
+
+    /**
+     * @return a parked descriptor of the document, rewound to the start; or null
+     * if there isn't one, or the mode doesn't allow reuse.
+     */
+    ParcelFileDescriptor reuse(Uri uri, String mode) {
+        if (!"r".equals(mode)) {
+            return null;
+        }
+
+        synchronized (this) {
+            final Iterator<Entry> iterator = mIdle.iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.uri.equals(uri)) {
+                    iterator.remove();
+                    addOpenLocked(entry);
+                    return entry.pfd;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the open descriptor, null if we don't know about it.
+     */
+    synchronized ParcelFileDescriptor get(int fd) {
+        final Entry entry = mOpen.get(fd);
+        return entry != null ? entry.pfd : null;
+    }
+
+    /**
+     * @return Uri of the document, if the descriptor was opened for writing;
+     * null otherwise.
+     */
+    synchronized Uri getWritableUri(int fd) {
+        final Entry entry = mOpen.get(fd);
+        return entry != null && !"r".equals(entry.mode) ? entry.uri : null;
+    }
+
+    synchronized boolean isOpenForWriting(Uri uri) {
+        if (!mOpenCounts.containsKey(uri)) {
+            return false;
+        }
+        for (Entry entry : mOpen.values()) {
+            if (!"r".equals(entry.mode) && entry.uri.equals(uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the slot reserved with {@link #reserve()}.
+     */
+    synchronized void register(Uri uri, Uri parentUri, String mode, ParcelFileDescriptor pfd) {
+        mReserved = Math.max(mReserved - 1, 0);
+        addOpenLocked(new Entry(pfd, uri, parentUri, mode));
+    }
+
+    /**
+     * Give back the slot reserved with {@link #reserve()}, e.g because the
+     * document couldn't be opened.
+     */
+    synchronized void release() {
+        mReserved = Math.max(mReserved - 1, 0);
+    }
+
+    /**
+     * Close the descriptor handed out to native code. Read-only descriptors
+     * may be kept around instead.
+     *
+     * @return false if we don't know about the descriptor.
+     */
+    boolean close(int fd) throws IOException {
+        final Entry entry;
+        final boolean parked;
+        final List<Entry> toClose = new ArrayList<>();
+        synchronized (this) {
+            entry = mOpen.remove(fd);
+            if (entry == null) {
+                return false;
+            }
+            decrementOpenCountLocked(entry.uri);
+
+            collectExpiredLocked(toClose);
+            parked = "r".equals(entry.mode) && mIdle.size() < MAX_IDLE && rewind(entry.pfd);
+            if (parked) {
+                entry.idleSince = SystemClock.elapsedRealtime();
+                mIdle.addLast(entry);
+            }
+        }
+        closeAll(toClose);
+        if (!parked) {
+            entry.pfd.close();
+        }
+        return true;
+    }
+
+    /**
+     * Close the parked descriptors of the document, e.g because it has been
+     * written to, renamed or deleted.
+     */
+    void invalidate(Uri uri) {
+        final List<Entry> toClose = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<Entry> iterator = mIdle.iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.uri.equals(uri)) {
+                    iterator.remove();
+                    toClose.add(entry);
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Close the parked descriptors of the directory's children, because the
+     * provider told us something in it changed.
+     */
+    void invalidateChildren(Uri directoryUri) {
+        final List<Entry> toClose = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<Entry> iterator = mIdle.iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (directoryUri.equals(entry.parentUri)) {
+                    iterator.remove();
+                    toClose.add(entry);
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    void closeIdle() {
+        final List<Entry> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<>(mIdle);
+            mIdle.clear();
+        }
+        closeAll(toClose);
+    }
+
+    synchronized int getOpenCount(Uri uri) {
+        final Integer count = mOpenCounts.get(uri);
+        return count != null ? count : 0;
+    }
+
+    synchronized int getOpenCount() {
+        return mOpen.size();
+    }
+
+    synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    /**
+     * @return time in milliseconds since the descriptor was opened, -1 if
+     * we don't know about it.
+     */
+    synchronized long getAge(int fd) {
+        final Entry entry = mOpen.get(fd);
+        return entry != null ? SystemClock.elapsedRealtime() - entry.openedAt : -1;
+    }
+
+    private void addOpenLocked(Entry entry) {
+        mOpen.put(entry.pfd.getFd(), entry);
+        final Integer count = mOpenCounts.get(entry.uri);
+        mOpenCounts.put(entry.uri, count != null ? count + 1 : 1);
+    }
+
+    private void decrementOpenCountLocked(Uri uri) {
+        final Integer count = mOpenCounts.get(uri);
+        if (count == null || count <= 1) {
+            mOpenCounts.remove(uri);
+        } else {
+            mOpenCounts.put(uri, count - 1);
+        }
+    }
+
+    private void collectExpiredLocked(List<Entry> toClose) {
+        final long now = SystemClock.elapsedRealtime();
+        while (!mIdle.isEmpty() && now - mIdle.getFirst().idleSince >= IDLE_TIMEOUT_MS) {
+            toClose.add(mIdle.removeFirst());
+        }
+    }
+
+    /**
+     * @return false if the descriptor can't be seeked, i.e it is a pipe or a
+     * socket, in which case we can't hand it out again.
+     */
+    private static boolean rewind(ParcelFileDescriptor pfd) {
+        try {
+            Os.lseek(pfd.getFileDescriptor(), 0, OsConstants.SEEK_SET);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static void closeAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            try {
+                entry.pfd.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the FD of: " + entry.uri + ", " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package org.qtproject.qt5.android;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves documents of the external storage provider straight from the filesystem,
+ * when we are allowed to access their paths ourselves (legacy storage, all files
+ * access, or our own app specific directories). This skips the IPC round trip to
+ * the provider for every query, which makes listing large directories and
+ * opening files a lot faster.
+ * <p>
+ * The external storage provider's document ids are of the form
+ * {@code <root>:<path relative to the root>}, e.g {@code primary:Pictures/a.png}.
+ * Permissions to the Tree are still checked as usual, this only changes where
+ * the data comes from.
+ * <p>
+ * Documents whose paths resolve outside of the Tree, e.g through a symbolic
+ * link, are left to the provider, which only serves what is under the Tree.
+ * <p>
+ * Whether we can access a Tree directly is checked again every
+ * {@link #ACCESS_CHECK_TTL_MS}, or as soon as the filesystem gives us a different
+ * answer than the provider, since storage permissions can be revoked and
+ * volumes unmounted while we are running.
+ */
+class LocalStorageBackend {
+
+    private static final String TAG = "LocalStorageBackend";
+
+    static final String AUTHORITY = "com.android.externalstorage.documents";
+    private static final String ROOT_PRIMARY = "primary";
+
+    static final long ACCESS_CHECK_TTL_MS = 30 * 1000;
+
+    private static class Access {
+        final boolean allowed;
+        // canonical path of the Tree's root, null unless allowed to read
+        final String rootPath;
+        final long checkedAt;
+
+        Access(boolean allowed) {
+            this(allowed, null);
+        }
+
+        Access(boolean allowed, String rootPath) {
+            this.allowed = allowed;
+            this.rootPath = rootPath;
+            this.checkedAt = SystemClock.elapsedRealtime();
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - checkedAt >= ACCESS_CHECK_TTL_MS;
+        }
+    }
+
+    private final Context mCtx;
+    // Tree document id -> whether we can read (and write) it directly
+    private final ConcurrentHashMap<String, Access> mReadable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Access> mWritable = new ConcurrentHashMap<>();
+    private volatile List<String> mAppSpecificDirs;
+
+    LocalStorageBackend(Context context) {
+        mCtx = context;
+    }
+
+    /**
+     * @param documentTreeUri a Uri with both "tree" and "document".
+     * @return true if we can read the document's Tree directly from the filesystem.
+     */
+    boolean handles(Uri documentTreeUri) {
+        final List<String> segments = documentTreeUri.getPathSegments();
+        if (!AUTHORITY.equals(documentTreeUri.getAuthority()) || segments.size() < 4
+                || !SAFFileManager.PATH_TREE.equals(segments.get(0))) {
+            return false;
+        }
+        final String treeId = DocumentsContract.getTreeDocumentId(documentTreeUri);
+        Access readable = mReadable.get(treeId);
+        if (readable == null || readable.isExpired()) {
+            final File root = getFile(treeId);
+            final String rootPath = root != null && canAccess(root, false)
+                    ? getCanonicalPath(root) : null;
+            readable = new Access(rootPath != null, rootPath);
+            mReadable.put(treeId, readable);
+            Log.d(TAG, "handles(): " + treeId + " directly readable = " + readable.allowed);
+        }
+        return readable.allowed;
+    }
+
+    private boolean canWrite(Uri documentTreeUri) {
+        if (!handles(documentTreeUri)) {
+            return false;
+        }
+        final String treeId = DocumentsContract.getTreeDocumentId(documentTreeUri);
+        Access writable = mWritable.get(treeId);
+        if (writable == null || writable.isExpired()) {
+            writable = new Access(canAccess(getFile(treeId), true));
+            mWritable.put(treeId, writable);
+        }
+        return writable.allowed;
+    }
+
+    /**
+     * Check the access to the document's Tree again on the next call, e.g
+     * because the filesystem couldn't give us what the provider could.
+     */
+    void invalidateAccess(Uri documentTreeUri) {
+        final String treeId = DocumentsContract.getTreeDocumentId(documentTreeUri);
+        mReadable.remove(treeId);
+        mWritable.remove(treeId);
+    }
+
+    /**
+     * @return children of the directory, null if it can't be listed.
+     */
+    List<CachedDocumentFile> queryChildren(Uri documentTreeUri) {
+        final String rootPath = getRootPath(documentTreeUri);
+        final String parentId = DocumentsContract.getDocumentId(documentTreeUri);
+        final File directory = getFileInTree(rootPath, parentId);
+        final File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) {
+            return null;
+        }
+
+        final List<CachedDocumentFile> children = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (!isInTree(file, rootPath)) {
+                return null;
+            }
+            final String childId = childDocumentId(parentId, file.getName());
+            final CachedDocumentFile child = toDocument(file, childId,
+                    DocumentsContract.buildDocumentUriUsingTree(documentTreeUri, childId));
+            child.setParentUri(documentTreeUri);
+            children.add(child);
+        }
+        return children;
+    }
+
+    /**
+     * @return the document, null if it doesn't exist.
+     */
+    CachedDocumentFile queryDocument(Uri documentTreeUri) {
+        final String documentId = DocumentsContract.getDocumentId(documentTreeUri);
+        final File file = getFileInTree(getRootPath(documentTreeUri), documentId);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        return toDocument(file, documentId, documentTreeUri);
+    }
+
+    /**
+     * @return the descriptor or null if we can't open it directly, in which
+     * case the provider should be asked.
+     */
+    ParcelFileDescriptor open(Uri documentTreeUri, String mode) {
+        if (!"r".equals(mode) && !canWrite(documentTreeUri)) {
+            return null;
+        }
+        final File file = getFileInTree(getRootPath(documentTreeUri),
+                DocumentsContract.getDocumentId(documentTreeUri));
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.parseMode(mode));
+        } catch (FileNotFoundException | IllegalArgumentException e) {
+            Log.w(TAG, "open(): Couldn't open directly: " + file + ", " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the new directory, or null if it couldn't be created directly,
+     * in which case the provider should be asked.
+     */
+    CachedDocumentFile createDirectory(Uri parentUri, String displayName) {
+        if (!canWrite(parentUri)) {
+            return null;
+        }
+        final String parentId = DocumentsContract.getDocumentId(parentUri);
+        final File parent = getFileInTree(getRootPath(parentUri), parentId);
+        if (parent == null) {
+            return null;
+        }
+
+        final File directory = new File(parent, displayName);
+        if (directory.exists() || !directory.mkdir()) {
+            return null;
+        }
+
+        final String documentId = childDocumentId(parentId, displayName);
+        final CachedDocumentFile file = toDocument(directory, documentId,
+                DocumentsContract.buildDocumentUriUsingTree(parentUri, documentId));
+        file.setParentUri(parentUri);
+        return file;
+    }
+
+    private CachedDocumentFile toDocument(File file, String documentId, Uri uri) {
+        final boolean isDirectory = file.isDirectory();
+        // the flags the external storage provider would give us
+        int flags = 0;
+        if (file.canWrite()) {
+            flags |= isDirectory ? DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE
+                    : DocumentsContract.Document.FLAG_SUPPORTS_WRITE;
+            flags |= DocumentsContract.Document.FLAG_SUPPORTS_DELETE
+                    | DocumentsContract.Document.FLAG_SUPPORTS_RENAME
+                    | DocumentsContract.Document.FLAG_SUPPORTS_MOVE;
+        }
+
+        final CachedDocumentFile document = CachedDocumentFile.fromAttributes(
+                file.getName(), documentId,
+                isDirectory ? DocumentsContract.Document.MIME_TYPE_DIR : getMimeType(file.getName()),
+                isDirectory ? null : file.length(), flags, file.lastModified(), uri);
+        document.markLoaded();
+        return document;
+    }
+
+    /**
+     * @return canonical path of the document's Tree, null if we can't read it directly.
+     */
+    private String getRootPath(Uri documentTreeUri) {
+        if (!handles(documentTreeUri)) {
+            return null;
+        }
+        final Access readable = mReadable.get(DocumentsContract.getTreeDocumentId(documentTreeUri));
+        return readable != null ? readable.rootPath : null;
+    }
+
+    /**
+     * @return the file backing the document id, or null if it isn't under the
+     * Tree once symbolic links are resolved, in which case the provider should
+     * be asked.
+     */
+    private File getFileInTree(String rootPath, String documentId) {
+        final File file = rootPath != null ? getFile(documentId) : null;
+        return file != null && isInTree(file, rootPath) ? file : null;
+    }
+
+    private static boolean isInTree(File file, String rootPath) {
+        final String path = getCanonicalPath(file);
+        if (path != null && (path.equals(rootPath) || path.startsWith(rootPath + "/"))) {
+            return true;
+        }
+        Log.w(TAG, "isInTree(): Resolves outside of the Tree: " + file);
+        return false;
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the file backing the document id, or null if the id isn't
+     * one we know how to map.
+     */
+    private File getFile(String documentId) {
+        final int split = documentId.indexOf(':');
+        if (split < 0) {
+            return null;
+        }
+        final String rootId = documentId.substring(0, split);
+        final String path = documentId.substring(split + 1);
+
+        final File root;
+        if (ROOT_PRIMARY.equals(rootId)) {
+            root = Environment.getExternalStorageDirectory();
+        } else if (rootId.matches("[0-9A-Fa-f]{4}-[0-9A-Fa-f]{4}")) {
+            // removable volumes are mounted by their UUID
+            root = new File("/storage", rootId);
+        } else {
+            return null;
+        }
+
+        if (root == null) {
+            return null;
+        }
+        if (path.isEmpty()) {
+            return root;
+        }
+        for (String segment : path.split("/")) {
+            // ids are the provider's, but they are in Uris anyone can craft
+            if (segment.equals("..")) {
+                return null;
+            }
+        }
+        return new File(root, path);
+    }
+
+    private static String childDocumentId(String parentId, String name) {
+        // the root of a volume is "primary:", its children "primary:name"
+        return parentId.endsWith(":") ? parentId + name : parentId + "/" + name;
+    }
+
+    private boolean canAccess(File root, boolean write) {
+        if (isAppSpecific(root)) {
+            return true;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            if (!Environment.isExternalStorageManager()) {
+                return false;
+            }
+        } else if (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q
+                && !Environment.isExternalStorageLegacy()) {
+            return false;
+        } else {
+            final String permission = write ? Manifest.permission.WRITE_EXTERNAL_STORAGE
+                    : Manifest.permission.READ_EXTERNAL_STORAGE;
+            if (mCtx.checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+                return false;
+            }
+        }
+        return write ? root.canWrite() : root.canRead();
+    }
+
+    private boolean isAppSpecific(File file) {
+        List<String> dirs = mAppSpecificDirs;
+        if (dirs == null) {
+            dirs = new ArrayList<>();
+            final File[] externalFilesDirs = mCtx.getExternalFilesDirs(null);
+            if (externalFilesDirs != null) {
+                for (File dir : externalFilesDirs) {
+                    // .../Android/data/<package>/files, we own everything under <package>
+                    if (dir != null && dir.getParentFile() != null) {
+                        try {
+                            dirs.add(dir.getParentFile().getCanonicalPath());
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+            mAppSpecificDirs = dirs;
+        }
+
+        final String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            return false;
+        }
+        for (String dir : dirs) {
+            if (path.equals(dir) || path.startsWith(dir + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getMimeType(String name) {
+        final int index = name.lastIndexOf('.');
+        if (index >= 0 && index < name.length() - 1) {
+            final String mimeType = MimeTypeMap.getSingleton()
+                    .getMimeTypeFromExtension(name.substring(index + 1).toLowerCase());
+            if (mimeType != null) {
+                return mimeType;
+            }
+        }
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,148 @@
+package org.qtproject.qt5.android;
+
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A document mapped read-only into memory. A single buffer can't be larger
+ * than 2GB, so larger documents are mapped in chunks.
+ * <p>
+ * The mapping stays valid for as long as we hold a reference to the buffers,
+ * native code gets their addresses through {@code GetDirectBufferAddress}.
+ * <p>
+ * A 32-bit process only has a few GB of address space, shared with everything
+ * else, so there the mappings are limited to {@link #MAX_MAPPED_BYTES_32BIT}
+ * in total; documents which don't fit are read instead.
+ */
+class MappedDocument {
+
+    private static final String TAG = "MappedDocument";
+
+    static final long CHUNK_SIZE = 1L << 30;
+    static final long MAX_MAPPED_BYTES_32BIT = 512L * 1024 * 1024;
+
+    // size of the documents mapped by the process, which haven't been released
+    private static final AtomicLong sMappedBytes = new AtomicLong();
+    private static volatile long sMaxMappedBytes =
+            Process.is64Bit() ? Long.MAX_VALUE : MAX_MAPPED_BYTES_32BIT;
+
+    private final ByteBuffer[] mChunks;
+    private final long mSize;
+    private final AtomicBoolean mReleased = new AtomicBoolean(false);
+
+    private MappedDocument(ByteBuffer[] chunks, long size) {
+        mChunks = chunks;
+        mSize = size;
+    }
+
+    /**
+     * @return the mapped document, which has to be {@link #release() released};
+     * or null if the descriptor isn't of a regular file (e.g the provider gave
+     * us a pipe or a socket), or it doesn't fit in what is left of the address
+     * space we allow for mappings. The caller should then fall back to reading it.
+     */
+    static MappedDocument map(ParcelFileDescriptor pfd) {
+        final long size;
+        try {
+            final StructStat stat = Os.fstat(pfd.getFileDescriptor());
+            if (!OsConstants.S_ISREG(stat.st_mode)) {
+                return null;
+            }
+            size = stat.st_size;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "map(): fstat failed: " + e);
+            return null;
+        }
+
+        if (!reserve(size)) {
+            Log.i(TAG, "map(): Not mapping " + size + " bytes, over the limit of "
+                    + sMaxMappedBytes);
+            return null;
+        }
+
+        // We map through a duplicate, so closing the channel doesn't close the
+        // descriptor native code holds. Mappings outlive the channel.
+        FileInputStream stream = null;
+        boolean mapped = false;
+        try {
+            stream = new ParcelFileDescriptor.AutoCloseInputStream(pfd.dup());
+            final FileChannel channel = stream.getChannel();
+
+            final int chunkCount = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            final ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; ++i) {
+                final long position = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(CHUNK_SIZE, size - position));
+            }
+            mapped = true;
+            return new MappedDocument(chunks, size);
+        } catch (IOException e) {
+            Log.w(TAG, "map(): Failed to map the document: " + e);
+            return null;
+        } finally {
+            if (!mapped) {
+                sMappedBytes.addAndGet(-size);
+            }
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the chunks, in order. Each one except the last is {@link #CHUNK_SIZE} long.
+     */
+    ByteBuffer[] getChunks() {
+        return mChunks;
+    }
+
+    long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Give back the document's share of the limit, once native code is done
+     * with the buffers. The mapping itself goes away when they are collected.
+     */
+    void release() {
+        if (mReleased.compareAndSet(false, true)) {
+            sMappedBytes.addAndGet(-mSize);
+        }
+    }
+
+    static void setMaxMappedBytes(long maxBytes) {
+        sMaxMappedBytes = maxBytes;
+    }
+
+    static long getMappedBytes() {
+        return sMappedBytes.get();
+    }
+
+    private static boolean reserve(long size) {
+        while (true) {
+            final long mapped = sMappedBytes.get();
+            if (size > sMaxMappedBytes - mapped) {
+                return false;
+            }
+            if (sMappedBytes.compareAndSet(mapped, mapped + size)) {
+                return true;
+            }
+        }
+    }
+}
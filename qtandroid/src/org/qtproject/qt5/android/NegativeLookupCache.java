@@ -0,0 +1,96 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.util.HashMap;
+
+/**
+ * Remembers for a short while the names we looked for in a directory and
+ * didn't find, so that probing the same missing path again (lock files,
+ * config fallbacks) doesn't have to list the directory again.
+ * <p>
+ * Entries are dropped as soon as we add something to the directory ourselves,
+ * the short time to live covers the changes made by others.
+ */
+class NegativeLookupCache {
+
+    static final int MAX_DIRECTORIES = 128;
+    static final int MAX_NAMES_PER_DIRECTORY = 64;
+    static final long DEFAULT_TTL_MS = 5 * 1000;
+
+    private static class Misses {
+        // name -> expiry time
+        final HashMap<String, Long> names = new HashMap<>();
+    }
+
+    private final LruCache<Uri, Misses> mDirectories = new LruCache<>(MAX_DIRECTORIES);
+    private volatile long mTtl = DEFAULT_TTL_MS;
+
+    /**
+     * @return true if we recently looked for the name in the directory and
+     * it wasn't there.
+     */
+    boolean isMissing(Uri directoryUri, String name) {
+        final Misses misses = mDirectories.get(directoryUri);
+        if (misses == null) {
+            return false;
+        }
+
+        synchronized (misses) {
+            final Long expiresAt = misses.names.get(name);
+            if (expiresAt == null) {
+                return false;
+            }
+            if (SystemClock.elapsedRealtime() >= expiresAt) {
+                misses.names.remove(name);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    void putMissing(Uri directoryUri, String name) {
+        final long ttl = mTtl;
+        if (ttl <= 0) {
+            return;
+        }
+
+        Misses misses = mDirectories.get(directoryUri);
+        if (misses == null) {
+            misses = new Misses();
+            mDirectories.put(directoryUri, misses);
+        }
+
+        synchronized (misses) {
+            if (misses.names.size() >= MAX_NAMES_PER_DIRECTORY) {
+                misses.names.clear();
+            }
+            misses.names.put(name, SystemClock.elapsedRealtime() + ttl);
+        }
+    }
+
+    /**
+     * Forget the misses in the directory, e.g because something has been added to it.
+     */
+    void invalidate(Uri directoryUri) {
+        if (directoryUri != null) {
+            mDirectories.remove(directoryUri);
+        }
+    }
+
+    void clear() {
+        mDirectories.evictAll();
+    }
+
+    /**
+     * @param ttlMs 0 disables the cache.
+     */
+    void setTtl(long ttlMs) {
+        mTtl = ttlMs;
+        if (ttlMs <= 0) {
+            clear();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A trie of path segments over the persisted {@link ContentUriPermission}s, so
+ * that finding the permission for a Uri, or the longest granted Tree which
+ * contains it, takes one walk down its path instead of comparing against
+ * every permission we hold.
+ * <p>
+ * Paths are compared in their decoded form, because the encoding SAF uses for
+ * the path segments isn't something we can rely on (see
+ * {@link SAFFileManager#getProperlyEncodedUriWithPermissions(Uri, String)}).
+ */
+class PermissionIndex {
+
+    private static class Node {
+        final HashMap<String, Node> children = new HashMap<>();
+        ContentUriPermission permission;
+    }
+
+    /**
+     * Result of {@link #findLongestTreePrefix(Uri, List, String)}.
+     */
+    static class Match {
+        final ContentUriPermission permission;
+        // number of segments which are covered by the permission
+        final int segmentCount;
+
+        Match(ContentUriPermission permission, int segmentCount) {
+            this.permission = permission;
+            this.segmentCount = segmentCount;
+        }
+    }
+
+    private final Node mRoot = new Node();
+    private final int mSize;
+
+    PermissionIndex(List<ContentUriPermission> permissions) {
+        for (ContentUriPermission permission : permissions) {
+            final Uri uri = permission.getUri();
+            Node node = child(mRoot, uri.getAuthority(), true);
+            for (String segment : splitPath(uri.getPath())) {
+                node = child(node, segment, true);
+            }
+            node.permission = permission;
+        }
+        mSize = permissions.size();
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return permission granted on exactly this Uri, which also allows {@code openMode}.
+     */
+    ContentUriPermission find(Uri uri, String openMode) {
+        Node node = child(mRoot, uri.getAuthority(), false);
+        if (node == null) {
+            return null;
+        }
+        for (String segment : splitPath(uri.getPath())) {
+            node = child(node, segment, false);
+            if (node == null) {
+                return null;
+            }
+        }
+        return allows(node.permission, openMode) ? node.permission : null;
+    }
+
+    /**
+     * Find the deepest Tree we have permission to, which contains the path.
+     *
+     * @param treeUri  the Tree Uri, used for authority
+     * @param paths    path segments following {@code "tree"}, first of them being the
+     *                 document id of the Tree
+     * @param openMode mode the permission should allow
+     * @return {@link Match} or null if we don't have any permission to the Tree
+     */
+    Match findLongestTreePrefix(Uri treeUri, List<String> paths, String openMode) {
+        Node node = child(mRoot, treeUri.getAuthority(), false);
+        if (node != null) {
+            node = child(node, SAFFileManager.PATH_TREE, false);
+        }
+
+        Match match = null;
+        for (int i = 0; i < paths.size() && node != null; ++i) {
+            // a segment may carry an encoded separator, so we split it like a path
+            for (String segment : splitPath(paths.get(i))) {
+                node = child(node, segment, false);
+                if (node == null) {
+                    break;
+                }
+            }
+            if (node != null && allows(node.permission, openMode)) {
+                match = new Match(node.permission, i + 1);
+            }
+        }
+        return match;
+    }
+
+    private static boolean allows(ContentUriPermission permission, String openMode) {
+        if (permission == null) {
+            return false;
+        }
+        return "r".equals(openMode) ? permission.isReadPermission()
+                : permission.isWritePermission();
+    }
+
+    private static Node child(Node node, String key, boolean create) {
+        if (key == null) {
+            return null;
+        }
+        Node child = node.children.get(key);
+        if (child == null && create) {
+            child = new Node();
+            node.children.put(key, child);
+        }
+        return child;
+    }
+
+    private static List<String> splitPath(String path) {
+        final List<String> segments = new ArrayList<>();
+        if (path == null) {
+            return segments;
+        }
+        int start = 0;
+        for (int i = 0; i <= path.length(); ++i) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,175 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of calls in flight to each provider, and how long a call
+ * may take once a deadline has been set with {@link #setTimeoutMs(long)}. A provider which hangs then only ties up its own slots, calls to
+ * the other providers (e.g the local storage) go on as usual.
+ * <p>
+ * A call first waits for a slot of its authority, then gets a
+ * {@link CancellationSignal} which is cancelled once the deadline has passed;
+ * the deadline covers both. The calls which can't take a signal (creating,
+ * deleting, renaming...) are only bounded in the time they wait for a slot.
+ * <p>
+ * Slots are a process wide resource, so there is just the one instance.
+ */
+class ProviderBulkheads {
+
+    private static final String TAG = "ProviderBulkheads";
+
+    static final int DEFAULT_MAX_CONCURRENT_CALLS = 4;
+    // opening a large document of a cloud provider may take as long as its
+    // download, so there is no deadline unless one is asked for
+    static final long DEFAULT_TIMEOUT_MS = 0;
+
+    class Call {
+        final CancellationSignal signal = new CancellationSignal();
+        private final Semaphore mSlots;
+        private final ScheduledFuture<?> mDeadline;
+        private volatile boolean mExpired = false;
+
+        private Call(Semaphore slots, long remainingMs) {
+            mSlots = slots;
+            mDeadline = remainingMs > 0 ? sTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mExpired = true;
+                    signal.cancel();
+                }
+            }, remainingMs, TimeUnit.MILLISECONDS) : null;
+        }
+
+        /**
+         * Release the slot, should be called once the call has returned (or thrown).
+         *
+         * @return true if the call was cancelled for going over the deadline.
+         */
+        boolean end() {
+            if (mDeadline != null) {
+                mDeadline.cancel(false);
+            }
+            mSlots.release();
+            if (mExpired) {
+                mTimedOut.set(true);
+            }
+            return mExpired;
+        }
+    }
+
+    private static final ScheduledThreadPoolExecutor sTimer = createTimer();
+    private static final ProviderBulkheads sInstance = new ProviderBulkheads();
+
+    private final ConcurrentHashMap<String, Semaphore> mSlots = new ConcurrentHashMap<>();
+    private final ThreadLocal<Boolean> mTimedOut = new ThreadLocal<>();
+    private volatile int mMaxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+    private volatile long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    static ProviderBulkheads instance() {
+        return sInstance;
+    }
+
+    /**
+     * Calls already in flight keep their slots, so for a short while there may
+     * be more of them than the new limit.
+     */
+    void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        mMaxConcurrentCalls = Math.max(maxConcurrentCalls, 1);
+        mSlots.clear();
+    }
+
+    /**
+     * @param timeoutMs 0 for no deadline.
+     */
+    void setTimeoutMs(long timeoutMs) {
+        mTimeoutMs = Math.max(timeoutMs, 0);
+    }
+
+    /**
+     * Wait for a slot of the Uri's authority.
+     *
+     * @return the call, which must be ended with {@link Call#end()}; null if no
+     * slot freed up before the deadline.
+     */
+    Call begin(Uri uri) {
+        mTimedOut.remove();
+        final String authority = uri.getAuthority() != null ? uri.getAuthority() : "";
+        Semaphore slots = mSlots.get(authority);
+        if (slots == null) {
+            final Semaphore newSlots = new Semaphore(mMaxConcurrentCalls);
+            slots = mSlots.putIfAbsent(authority, newSlots);
+            if (slots == null) {
+                slots = newSlots;
+            }
+        }
+
+        final long timeoutMs = mTimeoutMs;
+        if (timeoutMs == 0) {
+            slots.acquireUninterruptibly();
+            return new Call(slots, 0);
+        }
+
+        final long start = System.nanoTime();
+        try {
+            if (!slots.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "begin(): No slot for " + authority + " within " + timeoutMs + "ms");
+                mTimedOut.set(true);
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        final long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new Call(slots, Math.max(timeoutMs - waitedMs, 1));
+    }
+
+    /**
+     * @return true if the last call made on this thread failed for going over
+     * its deadline.
+     */
+    boolean lastCallTimedOut() {
+        final Boolean timedOut = mTimedOut.get();
+        return timedOut != null && timedOut;
+    }
+
+    /**
+     * Forget about the calls made so far on this thread, e.g because a new
+     * operation is starting.
+     */
+    void clearTimedOut() {
+        mTimedOut.remove();
+    }
+
+    /**
+     * @return number of calls which may still be made to the authority right
+     * now, without waiting.
+     */
+    int getAvailableSlots(String authority) {
+        final Semaphore slots = mSlots.get(authority);
+        return slots != null ? slots.availablePermits() : mMaxConcurrentCalls;
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
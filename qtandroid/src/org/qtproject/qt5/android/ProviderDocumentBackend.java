@@ -0,0 +1,305 @@
+package org.qtproject.qt5.android;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.UriPermission;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Talks to the documents providers through the {@link ContentResolver}, every
+ * call is recorded in {@link SAFMetrics} and bounded by {@link ProviderBulkheads}.
+ */
+class ProviderDocumentBackend implements DocumentBackend {
+
+    private static final String TAG = "ProviderDocumentBackend";
+
+    // everything we care about, so that a single query is enough for a document
+    static final String[] DOCUMENT_COLUMNS = new String[]{
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_FLAGS,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+    };
+
+    private final Context mCtx;
+    private final SAFMetrics mMetrics = SAFMetrics.instance();
+    private final ProviderBulkheads mBulkheads = ProviderBulkheads.instance();
+
+    ProviderDocumentBackend(Context context) {
+        mCtx = context;
+    }
+
+    /**
+     * Create the document from the current row of a cursor which was queried
+     * with {@link #DOCUMENT_COLUMNS}.
+     */
+    static CachedDocumentFile fromCursor(Cursor cursor, Uri uri) {
+        final long size = SAFUtils.getColumnValLongOrDefault(cursor,
+                DocumentsContract.Document.COLUMN_SIZE, -1);
+        final CachedDocumentFile file = CachedDocumentFile.fromAttributes(
+                SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_DISPLAY_NAME),
+                SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_DOCUMENT_ID),
+                SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_MIME_TYPE),
+                size >= 0 ? size : null,
+                SAFUtils.getColumnValIntegerOrDefault(cursor, DocumentsContract.Document.COLUMN_FLAGS, 0),
+                SAFUtils.getColumnValLongOrDefault(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED, 0),
+                uri);
+        // we got a row for it
+        file.markLoaded();
+        return file;
+    }
+
+    @Override
+    public List<ContentUriPermission> getPersistedPermissions() {
+        final List<UriPermission> permissions =
+                mCtx.getContentResolver().getPersistedUriPermissions();
+        final List<ContentUriPermission> result = new ArrayList<>();
+        for (UriPermission permission : permissions) {
+            result.add(new ContentUriPermission(
+                    permission.getUri(),
+                    permission.isReadPermission(),
+                    permission.isWritePermission()));
+        }
+        return result;
+    }
+
+    @Override
+    public List<CachedDocumentFile> queryChildren(Uri documentTreeUri) {
+        final List<CachedDocumentFile> children = new ArrayList<>();
+
+        final ProviderBulkheads.Call call = mBulkheads.begin(documentTreeUri);
+        if (call == null) {
+            return null;
+        }
+        Cursor cursor = null;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            final ContentResolver resolver = mCtx.getContentResolver();
+            final Uri childrenTreeUri = DocumentsContract.buildChildDocumentsUriUsingTree(documentTreeUri,
+                    DocumentsContract.getDocumentId(documentTreeUri));
+            cursor = resolver.query(childrenTreeUri, DOCUMENT_COLUMNS,
+                    null, null, null, call.signal);
+            if (cursor == null) {
+                return children;
+            }
+
+            while (cursor.moveToNext()) {
+                final String docId = SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+                final Uri fileUri = DocumentsContract.buildDocumentUriUsingTree(documentTreeUri, docId);
+                final CachedDocumentFile file = fromCursor(cursor, fileUri);
+                file.setParentUri(documentTreeUri);
+                children.add(file);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "queryChildren(): Invalid document Uri: " + documentTreeUri);
+            return null;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_QUERY, documentTreeUri, start);
+        }
+
+        return children;
+    }
+
+    @Override
+    public DirectoryEnumerator openChildren(Uri documentTreeUri) {
+        final ProviderBulkheads.Call call = mBulkheads.begin(documentTreeUri);
+        if (call == null) {
+            return null;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                    documentTreeUri, DocumentsContract.getDocumentId(documentTreeUri));
+            final Cursor cursor = mCtx.getContentResolver().query(childrenUri,
+                    DOCUMENT_COLUMNS, null, null, null, call.signal);
+            if (cursor == null) {
+                return null;
+            }
+            return new DirectoryEnumerator(documentTreeUri, cursor);
+        } catch (Exception e) {
+            Log.e(TAG, "openChildren(): Failed query: " + e);
+            return null;
+        } finally {
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_QUERY, documentTreeUri, start);
+        }
+    }
+
+    @Override
+    public CachedDocumentFile queryDocument(Uri documentUri) {
+        final ProviderBulkheads.Call call = mBulkheads.begin(documentUri);
+        if (call == null) {
+            return null;
+        }
+        Cursor cursor = null;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            cursor = mCtx.getContentResolver().query(documentUri, DOCUMENT_COLUMNS,
+                    null, null, null, call.signal);
+            if (cursor != null && cursor.moveToFirst()) {
+                return fromCursor(cursor, documentUri);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "queryDocument(): " + e);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_QUERY, documentUri, start);
+        }
+        return null;
+    }
+
+    @Override
+    public CachedDocumentFile createDocument(Uri parentUri, String mimeType, String displayName) {
+        final ProviderBulkheads.Call call = mBulkheads.begin(parentUri);
+        if (call == null) {
+            return null;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            final Uri fileUri = DocumentsContract.createDocument(mCtx.getContentResolver(),
+                    parentUri, mimeType, displayName);
+            if (fileUri == null) {
+                return null;
+            }
+            final CachedDocumentFile file = new CachedDocumentFile(displayName,
+                    DocumentsContract.getDocumentId(fileUri),
+                    mimeType,
+                    fileUri);
+            file.setParentUri(parentUri);
+            return file;
+        } catch (Exception e) {
+            Log.e(TAG, "createDocument(): Failed: " + e);
+            return null;
+        } finally {
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_CREATE, parentUri, start);
+        }
+    }
+
+    @Override
+    public boolean deleteDocument(Uri documentUri) {
+        final ProviderBulkheads.Call call = mBulkheads.begin(documentUri);
+        if (call == null) {
+            return false;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return DocumentsContract.deleteDocument(mCtx.getContentResolver(), documentUri);
+        } catch (Exception e) {
+            Log.e(TAG, "deleteDocument(): Failed: " + e);
+            return false;
+        } finally {
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_DELETE, documentUri, start);
+        }
+    }
+
+    @Override
+    public Uri renameDocument(Uri documentUri, String displayName) {
+        final ProviderBulkheads.Call call = mBulkheads.begin(documentUri);
+        if (call == null) {
+            return null;
+        }
+        Exception failure;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return DocumentsContract.renameDocument(mCtx.getContentResolver(),
+                    documentUri, displayName);
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_RENAME, documentUri, start);
+        }
+
+        // HACK: see https://crbug.com/1246925.
+        if (SAFFileManager.isArc()) {
+            final String documentId = DocumentsContract.getDocumentId(documentUri);
+            final String oldName = documentId.substring(documentId.lastIndexOf('/') + 1);
+            final Uri guessedUri = Uri.parse(documentUri.toString()
+                    .replaceFirst(oldName + "$", displayName));
+            if (queryDocument(guessedUri) != null) {
+                return guessedUri;
+            }
+        }
+        Log.e(TAG, "renameDocument(): Rename failed: " + failure);
+        return null;
+    }
+
+    @Override
+    public Uri copyDocument(Uri documentUri, Uri targetParentUri) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return null;
+        }
+        final ProviderBulkheads.Call call = mBulkheads.begin(targetParentUri);
+        if (call == null) {
+            return null;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return DocumentsContract.copyDocument(mCtx.getContentResolver(),
+                    documentUri, targetParentUri);
+        } catch (Exception e) {
+            Log.w(TAG, "copyDocument(): Provider copy failed: " + e);
+            return null;
+        } finally {
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_COPY, targetParentUri, start);
+        }
+    }
+
+    @Override
+    public Uri moveDocument(Uri documentUri, Uri sourceParentUri, Uri targetParentUri) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return null;
+        }
+        final ProviderBulkheads.Call call = mBulkheads.begin(documentUri);
+        if (call == null) {
+            return null;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return DocumentsContract.moveDocument(mCtx.getContentResolver(),
+                    documentUri, sourceParentUri, targetParentUri);
+        } catch (Exception e) {
+            Log.w(TAG, "moveDocument(): Provider move failed: " + e);
+            return null;
+        } finally {
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_MOVE, documentUri, start);
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openDocument(Uri documentUri, String mode)
+            throws FileNotFoundException {
+        final ProviderBulkheads.Call call = mBulkheads.begin(documentUri);
+        if (call == null) {
+            throw new FileNotFoundException("Timed out waiting for: " + documentUri);
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return mCtx.getContentResolver().openFileDescriptor(documentUri, mode, call.signal);
+        } finally {
+            call.end();
+            mMetrics.providerCall(SAFMetrics.CALL_OPEN, documentUri, start);
+        }
+    }
+}
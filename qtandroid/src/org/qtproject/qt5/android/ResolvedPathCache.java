@@ -0,0 +1,64 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+/**
+ * Memo of the content Urls native code sends us, to what they resolved to the last
+ * time: the Tree we have a permission for along with the path under it, and the
+ * document Uri. It saves parsing the Url and walking the permissions for every
+ * call, since the same Urls tend to come one after the other (exists, then size,
+ * then open).
+ * <p>
+ * The document Uri is only a hint, it is of use as long as the document is in
+ * the {@link DocumentCache}. The memo has to be cleared when the permissions change,
+ * and when a document is renamed or moved, since providers may keep its id (and so
+ * its Uri) for the new path.
+ */
+class ResolvedPathCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 512;
+
+    static class Resolved {
+        // null if the Url isn't a Tree Uri
+        final SAFFile safFile;
+        final Uri documentUri;
+
+        Resolved(SAFFile safFile, Uri documentUri) {
+            this.safFile = safFile;
+            this.documentUri = documentUri;
+        }
+    }
+
+    private final LruCache<String, Resolved> mEntries = new LruCache<>(DEFAULT_MAX_ENTRIES);
+
+    /**
+     * @param openMode permissions of plain document Uris are checked per mode,
+     *                 so their resolutions are kept per mode as well.
+     */
+    Resolved get(String url, String openMode) {
+        final Resolved resolved = mEntries.get(treeKey(url));
+        return resolved != null ? resolved : mEntries.get(documentKey(url, openMode));
+    }
+
+    void putTreeFile(String url, SAFFile safFile, Uri documentUri) {
+        mEntries.put(treeKey(url), new Resolved(safFile, documentUri));
+    }
+
+    void putDocument(String url, String openMode, Uri documentUri) {
+        mEntries.put(documentKey(url, openMode), new Resolved(null, documentUri));
+    }
+
+    void clear() {
+        mEntries.evictAll();
+    }
+
+    private static String treeKey(String url) {
+        return url;
+    }
+
+    private static String documentKey(String url, String openMode) {
+        // "r" needs a read permission, everything else a write permission
+        return ("r".equals(openMode) ? "r\n" : "w\n") + url;
+    }
+}
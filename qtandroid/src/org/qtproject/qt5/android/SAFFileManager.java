@@ -5,9 +5,7 @@ import android.content.ActivityNotFoundException;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.UriPermission;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
@@ -18,13 +16,26 @@ import android.webkit.MimeTypeMap;
 import androidx.annotation.NonNull;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Error of the last operation. The state is kept per thread, so that operations
+ * running concurrently don't clobber each other's errors.
+ */
 @SuppressWarnings("unused")
 class FileError {
     public static final String TAG = "SAFFileManager.FileError";
@@ -44,26 +55,36 @@ class FileError {
     public static final int PERMISSIONS_ERROR = 13;
     public static final int COPY_ERROR = 14;
 
-    private String errorString;
-    private int error;
+    private static class State {
+        String errorString;
+        int error;
+    }
+
+    private final ThreadLocal<State> mState = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
 
     public String getErrorString() {
-        return errorString;
+        return mState.get().errorString;
     }
 
     public void setErrorString(String errorString) {
-        this.errorString = errorString;
-        if (error != FileError.NO_ERROR) {
+        final State state = mState.get();
+        state.errorString = errorString;
+        if (state.error != FileError.NO_ERROR) {
             Log.w(TAG, errorString);
         }
     }
 
     public int getError() {
-        return error;
+        return mState.get().error;
     }
 
     public void setError(int error) {
-        this.error = error;
+        mState.get().error = error;
     }
 
     public void setUnknownError() {
@@ -82,21 +103,82 @@ class FileError {
 public class SAFFileManager {
 
     private static final String TAG = "SAFFileManager";
-    private static final String PATH_TREE = "tree";
+    static final String PATH_TREE = "tree";
+    // of the temporary documents saves are written to, the name keeps the
+    // extension so that providers don't append one of their own
+    private static final String SAVE_PREFIX = ".saving-";
+    // of the documents being replaced, while the new contents take their place
+    private static final String REPLACED_PREFIX = ".old-";
 
     @SuppressLint("StaticFieldLeak") // TODO(sh_zam): we only have one activity!
     private static SAFFileManager sSafFileManager;
 
     private final Context mCtx;
-    private final HashMap<Uri, CachedDocumentFile> mCachedDocumentFiles = new HashMap<>();
-    private final HashMap<Integer, ParcelFileDescriptor> m_parcelFileDescriptors = new HashMap<>();
+    private final DocumentBackend mBackend;
+    private final DocumentCache mDocumentCache = new DocumentCache();
+    private final FileDescriptorRegistry mFileDescriptors = new FileDescriptorRegistry();
+    private final ConcurrentHashMap<Integer, MappedDocument> mMappedDocuments =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, DocumentMirror.WorkingCopy> mWorkingCopies =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, SaveTransaction> mSaveTransactions =
+            new ConcurrentHashMap<>();
+    // documents being replaced, so that two replaces of one document don't
+    // share the temporary document. Guarded by itself.
+    private final Set<String> mReplacingDocuments = new HashSet<>();
 
     private final FileError mError = new FileError();
-    private List<ContentUriPermission> mCachedPermissions = new ArrayList<>();
-    private final ArrayList<Uri> mCachedListDocumentFiles = new ArrayList<>();
+    private final Object mPermissionsLock = new Object();
+    private volatile List<ContentUriPermission> mCachedPermissions = new ArrayList<>();
+    private volatile PermissionIndex mPermissionIndex;
+    private final ResolvedPathCache mResolvedPaths = new ResolvedPathCache();
+    private final SAFMetrics mMetrics = SAFMetrics.instance();
+    private final ProviderBulkheads mBulkheads = ProviderBulkheads.instance();
+    // null when disabled
+    private volatile LocalStorageBackend mLocalStorage;
+    private final Set<Uri> mCachedListDocumentFiles =
+            Collections.newSetFromMap(new ConcurrentHashMap<Uri, Boolean>());
+
+    // Operations which may change a Tree's structure take the lock of the Tree,
+    // so operations on different Trees don't wait on each other. Creating,
+    // deleting, renaming... can't be cancelled once the provider has them, so
+    // each Tree has a lock of its own: a hung provider only holds up the
+    // operations on the Tree it hung on.
+    private final ConcurrentHashMap<String, ReentrantLock> mTreeLocks =
+            new ConcurrentHashMap<>();
+    private final HashMap<Integer, DirectoryEnumerator> mDirectoryEnumerators = new HashMap<>();
+    private int mNextEnumeratorHandle = 1;
+    // null unless enabled
+    private volatile DirectoryPrefetcher mPrefetcher;
+    // null when disabled
+    private volatile DirectoryObserver mDirectoryObserver;
+    // null unless enabled
+    private volatile DocumentStore mDocumentStore;
+    // null when disabled
+    private volatile DocumentMirror mMirror;
+    private long mMirrorMaxBytes = DocumentMirror.DEFAULT_MAX_BYTES;
+    private final HashMap<Integer, TreeWalker> mTreeWalkers = new HashMap<>();
+    private int mNextWalkerHandle = 1;
+    private ThreadPoolExecutor mWalkerExecutor;
+    private static final int WALKER_THREAD_COUNT = 4;
 
+    /**
+     * Observing changes, direct access, mirroring, prefetching and the persistent
+     * cache are disabled until they are enabled through their setters.
+     */
     SAFFileManager(Context ctx) {
+        this(ctx, new ProviderDocumentBackend(ctx));
+    }
+
+    /**
+     * Manager of the documents of the given backend.
+     *
+     * @param ctx may be null, if observing changes, direct access, mirroring and
+     *            the persistent cache stay disabled.
+     */
+    SAFFileManager(Context ctx, DocumentBackend backend) {
         mCtx = ctx;
+        mBackend = backend;
     }
 
     // Native usage
@@ -130,13 +212,71 @@ public class SAFFileManager {
     }
 
     void resetCachedPermission() {
-        List<UriPermission> permissions = mCtx.getContentResolver().getPersistedUriPermissions();
-        for (UriPermission permission: permissions) {
-            mCachedPermissions.add(new ContentUriPermission(
-                    permission.getUri(),
-                    permission.isReadPermission(),
-                    permission.isWritePermission()));
+        synchronized (mPermissionsLock) {
+            resetCachedPermissionLocked();
+        }
+    }
+
+    private void resetCachedPermissionLocked() {
+        final List<ContentUriPermission> cachedPermissions = mBackend.getPersistedPermissions();
+
+        // only rebuild the index if the grants have actually changed
+        if (!cachedPermissions.equals(mCachedPermissions)) {
+            mCachedPermissions = cachedPermissions;
+            mPermissionIndex = null;
+            mResolvedPaths.clear();
+        }
+    }
+
+    private PermissionIndex getPermissionIndex() {
+        final PermissionIndex index = mPermissionIndex;
+        // the list may have been added to directly (e.g by tests), so we check the size too
+        if (index != null && !mCachedPermissions.isEmpty()
+                && index.size() == mCachedPermissions.size()) {
+            return index;
+        }
+
+        synchronized (mPermissionsLock) {
+            if (mCachedPermissions.isEmpty()) {
+                resetCachedPermissionLocked();
+            }
+            if (mPermissionIndex == null || mPermissionIndex.size() != mCachedPermissions.size()) {
+                mPermissionIndex = new PermissionIndex(mCachedPermissions);
+                mResolvedPaths.clear();
+            }
+            return mPermissionIndex;
+        }
+    }
+
+    /**
+     * @return lock of the Tree the Url belongs to, or of the provider if it
+     * isn't in a Tree.
+     */
+    private ReentrantLock lockFor(String contentUrl) {
+        final String key = lockKeyFor(contentUrl);
+        ReentrantLock lock = mTreeLocks.get(key);
+        if (lock == null) {
+            final ReentrantLock newLock = new ReentrantLock();
+            lock = mTreeLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Single documents are keyed by their authority rather than by themselves,
+     * so that the number of locks stays bounded by the Trees and providers
+     * we have been granted access to.
+     */
+    private String lockKeyFor(String contentUrl) {
+        final Uri uri = Uri.parse(contentUrl);
+        final List<String> segments = uri.getPathSegments();
+        if (isTreeUri(uri) && segments.size() >= 2) {
+            return uri.getAuthority() + "/" + segments.get(1);
         }
+        return String.valueOf(uri.getAuthority());
     }
 
     /**
@@ -152,29 +292,21 @@ public class SAFFileManager {
      * ACTION_OPEN_DOCUMENT_TREE i.e only if we have permission to the Uri.
      */
     Uri getProperlyEncodedUriWithPermissions(Uri uri, String openMode) {
-        if (mCachedPermissions.isEmpty()) {
-            resetCachedPermission();
+        final ContentUriPermission permission = getPermissionIndex().find(uri, openMode);
+        if (permission != null) {
+            return permission.getUri();
         }
-        final String uriPath = uri.getPath();
-
-        for (int i = 0; i < mCachedPermissions.size(); ++i) {
-            Uri iterUri = mCachedPermissions.get(i).getUri();
-            boolean isRightPermission = mCachedPermissions.get(i).isReadPermission();
-
-            if (!openMode.equals("r"))
-                isRightPermission = mCachedPermissions.get(i).isWritePermission();
 
-            if (iterUri.getPath().equals(uriPath) && isRightPermission) {
-                return iterUri;
-            }
-        }
+        return hasImplicitPermission(uri, openMode) ? uri : null;
+    }
 
+    private boolean hasImplicitPermission(Uri uri, String openMode) {
         // TODO(sh_zam): check encoding
         // TODO(sh_zam): verify if intent has to exist
         // check if we received permission from an Intent
-        return (QtNative.activity() != null &&
+        return QtNative.activity() != null &&
                 QtNative.activity().getIntent() != null &&
-                checkImplicitUriPermission(uri, openMode)) ? uri : null;
+                checkImplicitUriPermission(uri, openMode);
     }
 
     /**
@@ -193,11 +325,23 @@ public class SAFFileManager {
     private CachedDocumentFile getDocumentFileWithValidPermissions(String url,
                                                                    String openMode,
                                                                    boolean dontCreateDoc) {
+        mBulkheads.clearTimedOut();
+        // make sure the permissions are loaded, and the memo cleared if they changed
+        getPermissionIndex();
+        final ResolvedPathCache.Resolved resolved = mResolvedPaths.get(url, openMode);
+        if (resolved != null) {
+            final CachedDocumentFile file = mDocumentCache.get(resolved.documentUri);
+            if (file != null) {
+                return file;
+            }
+        }
+
         final Uri uri = Uri.parse(url);
 
         // it is a file in tree, so we create a new file if "w"
         if (isTreeUri(uri)) {
-            SAFFile rawSafFile = nearestTreeUri(uri);
+            SAFFile rawSafFile = resolved != null && resolved.safFile != null
+                    ? resolved.safFile : nearestTreeUri(uri);
             if (rawSafFile == null) {
                 mError.setError(FileError.PERMISSIONS_ERROR);
                 mError.setErrorString("No permission to access the Document Tree");
@@ -207,9 +351,15 @@ public class SAFFileManager {
             CachedDocumentFile foundFile = findFileInTree(rawSafFile);
 
             if (foundFile != null) {
+                mResolvedPaths.putTreeFile(url, rawSafFile, foundFile.getUri());
                 return foundFile;
             }
 
+            // we couldn't look, so we can't tell whether it is there
+            if (setErrorIfTimedOut()) {
+                return null;
+            }
+
             // we shouldn't create a file here
             if ("r".equals(openMode) || dontCreateDoc) {
                 return null;
@@ -219,7 +369,19 @@ public class SAFFileManager {
         } else {
             Uri resultUri = getProperlyEncodedUriWithPermissions(uri, openMode);
             if (resultUri != null) {
-                return CachedDocumentFile.fromFileUri(mCtx, resultUri);
+                CachedDocumentFile file = mDocumentCache.get(resultUri);
+                if (file == null) {
+                    file = queryDocument(resultUri);
+                    if (file != null) {
+                        mDocumentCache.put(file);
+                    }
+                }
+                if (file != null) {
+                    mResolvedPaths.putDocument(url, openMode, resultUri);
+                } else {
+                    setErrorIfTimedOut();
+                }
+                return file;
             }
         }
 
@@ -270,118 +432,493 @@ public class SAFFileManager {
 
     // Native usage
     @SuppressWarnings("UnusedDeclaration")
-    synchronized public int openFileDescriptor(String contentUrl, String openMode) {
-        int retry = 0;
-        while (retry < 2) {
-            CachedDocumentFile file =
-                    getDocumentFileWithValidPermissions(contentUrl, openMode);
+    public int openFileDescriptor(String contentUrl, String openMode) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_OPEN);
+        try {
+            // we may end up creating the document if we are going to write to it
+            final ReentrantLock lock = "r".equals(openMode) ? null : lockFor(contentUrl);
+            int retry = 0;
+            while (retry < 2) {
+                CachedDocumentFile file;
+                if (lock != null) {
+                    lock.lock();
+                }
+                try {
+                    file = getDocumentFileWithValidPermissions(contentUrl, openMode);
+                } finally {
+                    if (lock != null) {
+                        lock.unlock();
+                    }
+                }
 
-            if (file == null) {
-                return -1;
+                if (file == null) {
+                    return -1;
+                }
+
+                final ParcelFileDescriptor reusedFd =
+                        mFileDescriptors.reuse(file.getUri(), openMode);
+                if (reusedFd != null) {
+                    mError.unsetError();
+                    return reusedFd.getFd();
+                }
+
+                if (!mFileDescriptors.reserve()) {
+                    mError.setError(FileError.RESOURCE_ERROR);
+                    mError.setErrorString("Too many open file descriptors");
+                    return -1;
+                }
+
+                if (!"r".equals(openMode)) {
+                    // the parked ones may not see what we write
+                    mFileDescriptors.invalidate(file.getUri());
+                }
+
+                // take this out
+                try {
+                    ParcelFileDescriptor fdDesc = openForNative(file, openMode);
+                    mFileDescriptors.register(file.getUri(), file.getParentUri(), openMode, fdDesc);
+                    if (!"r".equals(openMode)) {
+                        file.markStale();
+                    }
+
+                    mError.unsetError();
+                    return fdDesc.getFd();
+                } catch (Exception e) {
+                    Log.w(TAG, "openFileDescriptor(): Failed query: " + e);
+                    mFileDescriptors.release();
+                    if (setErrorIfTimedOut()) {
+                        return -1;
+                    }
+                    mDocumentCache.remove(file.getUri());
+                    retry++;
+                }
             }
 
-            // take this out
-            try {
-                ContentResolver resolver = mCtx.getContentResolver();
-                ParcelFileDescriptor fdDesc =
-                        resolver.openFileDescriptor(file.getUri(), openMode);
-                m_parcelFileDescriptors.put(fdDesc.getFd(), fdDesc);
+            mError.setError(FileError.WRITE_ERROR);
+            mError.setErrorString("Couldn't open file for writing");
+            return -1;
+        } finally {
+            scope.end();
+        }
+    }
 
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean closeFileDescriptor(int fd) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_CLOSE);
+        try {
+            releaseMapping(fd);
+            final DocumentMirror.WorkingCopy workingCopy = mWorkingCopies.remove(fd);
+            final Uri writtenUri = mFileDescriptors.getWritableUri(fd);
+            if (writtenUri != null) {
+                final CachedDocumentFile file = mDocumentCache.get(writtenUri);
+                if (file != null) {
+                    file.markStale();
+                }
+            }
+            try {
+                if (!mFileDescriptors.close(fd)) {
+                    Log.wtf(TAG, "File descriptor doesn't exist in cache");
+                    return false;
+                }
+                if (workingCopy != null && !writeBack(workingCopy)) {
+                    return false;
+                }
                 mError.unsetError();
-                return fdDesc.getFd();
-            } catch (Exception e) {
-                Log.w(TAG, "openFileDescriptor(): Failed query: " + e);
-                mCachedDocumentFiles.remove(file.getUri());
-                retry++;
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "closeFileDescriptor(): Failed to close the FD", e);
             }
+            mError.setUnknownError();
+            return false;
+        } finally {
+            scope.end();
         }
+    }
+
+    /**
+     * Start saving to the document, which is created on commit if it doesn't
+     * exist yet. Native code writes the new contents to the returned descriptor,
+     * which is of a local spool file, so the writes don't reach the provider one
+     * by one, and the document and our caches are left alone until
+     * {@link #commitSave(int)}. {@link #abortSave(int)} discards it all.
+     *
+     * @return descriptor to write to, -1 on failure.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public int beginSave(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_SAVE);
+        try {
+            final Uri uri = Uri.parse(contentUrl);
+            final boolean permitted = isTreeUri(uri)
+                    ? nearestTreeUri(uri) != null
+                    : getProperlyEncodedUriWithPermissions(uri, "w") != null;
+            if (!permitted) {
+                mError.setError(FileError.PERMISSIONS_ERROR);
+                mError.setErrorString("No permission to write the Uri");
+                return -1;
+            }
 
-        mError.setError(FileError.WRITE_ERROR);
-        mError.setErrorString("Couldn't open file for writing");
-        return -1;
+            final SaveTransaction transaction;
+            try {
+                transaction = SaveTransaction.begin(mCtx.getCacheDir(), contentUrl);
+            } catch (IOException e) {
+                Log.e(TAG, "beginSave(): Couldn't create the spool file: " + e);
+                mError.setError(FileError.RESOURCE_ERROR);
+                mError.setErrorString("Couldn't create the spool file");
+                return -1;
+            }
+            mSaveTransactions.put(transaction.getFd(), transaction);
+            mError.unsetError();
+            return transaction.getFd();
+        } finally {
+            scope.end();
+        }
     }
 
+    /**
+     * Close the descriptor of {@link #beginSave(String)} and put what has been
+     * written in place of the document. In a Tree the document is replaced in
+     * one step, so it either has its old contents or the new ones, never a part
+     * of them. Documents which can't be replaced that way are written over, see
+     * {@link #replaceDocument(Uri, String, CachedDocumentFile, File, long)}.
+     *
+     * @return false if the document couldn't be saved.
+     */
     // Native usage
     @SuppressWarnings("UnusedDeclaration")
-    public boolean closeFileDescriptor(int fd) {
-        ParcelFileDescriptor pfd = m_parcelFileDescriptors.get(fd);
-        if (pfd == null) {
-            Log.wtf(TAG, "File descriptor doesn't exist in cache");
+    public boolean commitSave(int fd) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_SAVE);
+        final SaveTransaction transaction = mSaveTransactions.remove(fd);
+        if (transaction == null) {
+            scope.end();
+            Log.wtf(TAG, "commitSave(): No save in progress with fd = " + fd);
+            mError.setUnknownError();
             return false;
         }
 
         try {
+            transaction.close();
+            if (commitSpool(transaction) == null) {
+                if (!setErrorIfTimedOut()) {
+                    mError.setError(FileError.WRITE_ERROR);
+                    mError.setErrorString("Couldn't save the document");
+                }
+                return false;
+            }
             mError.unsetError();
-            pfd.close();
             return true;
         } catch (IOException e) {
-            Log.e(TAG, "closeFileDescriptor(): Failed to close the FD", e);
+            Log.e(TAG, "commitSave(): Failed to close the spool file", e);
+            mError.setError(FileError.WRITE_ERROR);
+            mError.setErrorString("Couldn't save the document");
+            return false;
+        } finally {
+            transaction.discard();
+            scope.end();
+        }
+    }
+
+    /**
+     * Close the descriptor of {@link #beginSave(String)} and forget what has
+     * been written, the document isn't touched.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void abortSave(int fd) {
+        final SaveTransaction transaction = mSaveTransactions.remove(fd);
+        if (transaction != null) {
+            transaction.discard();
         }
-        mError.setUnknownError();
-        return false;
     }
 
+    /**
+     * Map the document opened through {@link #openFileDescriptor(String, String)}
+     * read-only into memory. Native code can then read it through the buffers'
+     * addresses instead of a syscall for every read. The mapping is released by
+     * {@link #unmapFileDescriptor(int)} or when the descriptor is closed.
+     *
+     * @return direct buffers of the document's contents in order, or null if it
+     * can't be mapped (e.g the provider gave us a pipe), native code should
+     * then fall back to reading the descriptor.
+     */
     // Native usage
     @SuppressWarnings("UnusedDeclaration")
-    public long getSize(String contentUrl) {
-        CachedDocumentFile file =
-                getDocumentFileWithValidPermissions(contentUrl, "r");
+    public ByteBuffer[] mapFileDescriptor(int fd) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_MAP);
+        try {
+            MappedDocument mappedDocument = mMappedDocuments.get(fd);
+            if (mappedDocument != null) {
+                return mappedDocument.getChunks();
+            }
 
-        if (file != null) {
-            return file.getSize();
-        } else {
-            mError.setUnknownError();
-            return 0;
+            final ParcelFileDescriptor pfd = mFileDescriptors.get(fd);
+            if (pfd == null) {
+                Log.w(TAG, "mapFileDescriptor(): File descriptor doesn't exist in cache");
+                return null;
+            }
+
+            mappedDocument = MappedDocument.map(pfd);
+            if (mappedDocument == null) {
+                return null;
+            }
+            final MappedDocument previous = mMappedDocuments.putIfAbsent(fd, mappedDocument);
+            if (previous != null) {
+                // mapped by another thread in the meantime
+                mappedDocument.release();
+                return previous.getChunks();
+            }
+            return mappedDocument.getChunks();
+        } finally {
+            scope.end();
         }
     }
 
     // Native usage
     @SuppressWarnings("UnusedDeclaration")
-    public boolean exists(String contentUrl) {
+    public void unmapFileDescriptor(int fd) {
+        releaseMapping(fd);
+    }
+
+    private void releaseMapping(int fd) {
+        // the mapping goes away once the buffers are collected
+        final MappedDocument mappedDocument = mMappedDocuments.remove(fd);
+        if (mappedDocument != null) {
+            mappedDocument.release();
+        }
+    }
+
+    /**
+     * Limit the number of file descriptors we hold, opening more than that
+     * fails with {@link FileError#RESOURCE_ERROR}.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void setMaxOpenFileDescriptors(int maxOpen) {
+        mFileDescriptors.setMaxOpen(maxOpen);
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public int getOpenFileDescriptorCount(String contentUrl) {
         final CachedDocumentFile file =
                 getDocumentFileWithValidPermissions(contentUrl, "r");
+        return file != null ? mFileDescriptors.getOpenCount(file.getUri()) : 0;
+    }
 
-        if (file != null && file.exists()) {
-            mError.unsetError();
-            return true;
-        } else {
-            mError.setUnknownError();
-            return false;
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public long getSize(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_SIZE);
+        try {
+            CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "r");
+
+            if (file != null) {
+                // until it is written back, the provider doesn't know about the changes
+                final DocumentMirror.WorkingCopy workingCopy = findWorkingCopy(file.getUri());
+                if (workingCopy != null) {
+                    return workingCopy.file.length();
+                }
+                // the size we have is of no use while someone is writing to it
+                if (mFileDescriptors.isOpenForWriting(file.getUri())) {
+                    file.markStale();
+                }
+                if (file.getAttributesAge() < 0) {
+                    refresh(file);
+                }
+                return file.getSize();
+            } else {
+                if (!setErrorIfTimedOut()) {
+                    mError.setUnknownError();
+                }
+                return 0;
+            }
+        } finally {
+            scope.end();
         }
     }
 
     // Native usage
     @SuppressWarnings("UnusedDeclaration")
-    public boolean canWrite(String contentUrl) {
-        final CachedDocumentFile file =
-                getDocumentFileWithValidPermissions(contentUrl, "w", true);
+    public boolean exists(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_EXISTS);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "r");
+            if (file != null && file.getAttributesAge() < 0) {
+                refresh(file);
+            }
 
-        if (file != null) {
-            if (file.canWrite()) {
+            if (file != null && file.exists()) {
                 mError.unsetError();
                 return true;
-            } else if (isArc()) {
-                // HACK: some files on ChromeOS don't have file flags! So, if
-                // we have write permissions on the Uri, it seems we can assume
-                // FLAG_SUPPORTS_WRITE
-                return true;
+            } else {
+                if (!setErrorIfTimedOut()) {
+                    mError.setUnknownError();
+                }
+                return false;
             }
+        } finally {
+            scope.end();
+        }
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean canWrite(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_CAN_WRITE);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "w", true);
+
+            if (file != null) {
+                // flags don't go stale as quickly as the rest, so we take them as long as we have them
+                if (!file.hasAttributes()) {
+                    refresh(file);
+                }
+                if (file.canWrite()) {
+                    mError.unsetError();
+                    return true;
+                } else if (isArc()) {
+                    // HACK: some files on ChromeOS don't have file flags! So, if
+                    // we have write permissions on the Uri, it seems we can assume
+                    // FLAG_SUPPORTS_WRITE
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            scope.end();
         }
-        return false;
     }
 
     // Native usage
     @SuppressWarnings("UnusedDeclaration")
     public String getFileName(String contentUrl) {
-        final CachedDocumentFile file =
-                getDocumentFileWithValidPermissions(contentUrl, "r");
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_FILE_NAME);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "r");
+
+            if (file != null) {
+                mError.unsetError();
+                return file.getName();
+            }
+
+            return null;
+        } finally {
+            scope.end();
+        }
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public DocumentStats stat(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_STAT);
+        try {
+            return statMany(new String[]{contentUrl});
+        } finally {
+            scope.end();
+        }
+    }
+
+    /**
+     * Everything {@link #exists(String)}, {@link #getSize(String)},
+     * {@link #canWrite(String)}, {@link #isDir(String)} and
+     * {@link #getFileName(String)} would tell, for all the documents in one call.
+     * Each document is resolved once, and queried at most once.
+     *
+     * @return {@link DocumentStats} with the documents in the same order, documents
+     * which don't exist or we can't access have no flags set.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public DocumentStats statMany(String[] contentUrls) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_STAT);
+        try {
+            final DocumentStats stats = new DocumentStats(contentUrls.length);
+            for (int i = 0; i < contentUrls.length; ++i) {
+                CachedDocumentFile file =
+                        getDocumentFileWithValidPermissions(contentUrls[i], "r");
+                if (file == null) {
+                    continue;
+                }
+
+                file = withAttributes(file);
+                if (file == null) {
+                    continue;
+                }
+
+                final boolean writable = (file.canWrite() || isArc())
+                        && hasWritePermission(file.getUri());
+                stats.set(i, file, writable);
+            }
 
-        if (file != null) {
             mError.unsetError();
-            return file.getName();
+            return stats;
+        } finally {
+            scope.end();
         }
+    }
 
-        return null;
+    /**
+     * @return the document with its flags, size and last modified time loaded,
+     * querying for them if needed; null if the document doesn't exist anymore.
+     */
+    private CachedDocumentFile withAttributes(CachedDocumentFile file) {
+        if (file.hasAttributes() && file.getAttributesAge() >= 0) {
+            return file;
+        }
+
+        if (!refresh(file)) {
+            if (!mBulkheads.lastCallTimedOut()) {
+                mDocumentCache.remove(file.getUri());
+            }
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Read all the attributes of the document again, in one query. If we
+     * couldn't ask, e.g because the provider timed out, what we knew is kept.
+     *
+     * @return false if the document doesn't exist, or we couldn't ask.
+     */
+    private boolean refresh(CachedDocumentFile file) {
+        mBulkheads.clearTimedOut();
+        final CachedDocumentFile latest = queryDocument(file.getUri());
+        if (latest != null) {
+            file.setAttributes(latest);
+            return true;
+        }
+        if (!mBulkheads.lastCallTimedOut()) {
+            file.markMissing();
+        }
+        return false;
+    }
+
+    /**
+     * Set {@link FileError#TIME_OUT_ERROR} if the last provider call made on
+     * this thread went over its deadline, or couldn't get a slot in time.
+     *
+     * @return true if it did.
+     */
+    private boolean setErrorIfTimedOut() {
+        if (!mBulkheads.lastCallTimedOut()) {
+            return false;
+        }
+        mError.setError(FileError.TIME_OUT_ERROR);
+        mError.setErrorString("The provider took too long to respond");
+        return true;
+    }
+
+    private boolean hasWritePermission(Uri documentUri) {
+        // we only resolve documents in a Tree if we have write permission to it
+        return isTreeUri(documentUri)
+                || getProperlyEncodedUriWithPermissions(documentUri, "w") != null;
     }
 
     private String stringJoin(String delimiter, List<String> list) {
@@ -424,7 +961,15 @@ public class SAFFileManager {
         final List<String> paths = treeUri.getPathSegments()
                 .subList(1, treeUri.getPathSegments().size());
 
-        // Test each subtree, going from right to left
+        final PermissionIndex.Match match =
+                getPermissionIndex().findLongestTreePrefix(treeUri, paths, "rw");
+        if (match != null) {
+            return new SAFFile(match.permission.getUri(),
+                    new ArrayList<>(paths.subList(match.segmentCount, paths.size())));
+        }
+
+        // We don't have a persisted permission, but we may have gotten one through an
+        // Intent. Test each subtree, going from right to left
         for (int i = paths.size(); i > 0; --i) {
             final Uri baseUri =
                     new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
@@ -432,11 +977,10 @@ public class SAFFileManager {
                             .appendPath(paths.get(0)).build();
 
             // we can't use appendPath, because of the weird encoding rules that SAF follows
-            final Uri testUri = getProperlyEncodedUriWithPermissions(
-                    uriAppend(baseUri, paths.subList(1, i)), "rw");
+            final Uri testUri = uriAppend(baseUri, paths.subList(1, i));
 
             // we check the permission of the subtree
-            if (testUri != null) {
+            if (hasImplicitPermission(testUri, "rw")) {
                 if (i < paths.size()) {
                     return new SAFFile(testUri, paths.subList(i, paths.size()));
                 } else {
@@ -451,367 +995,1754 @@ public class SAFFileManager {
 
     // Native usage
     @SuppressWarnings("UnusedDeclaration")
-    synchronized public boolean delete(String contentUrl) {
-        final CachedDocumentFile file =
-                getDocumentFileWithValidPermissions(contentUrl, "rw", true);
-        if (file == null) {
-            return false;
-        }
+    public boolean delete(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_DELETE);
+        try {
+            final ReentrantLock lock = lockFor(contentUrl);
+            lock.lock();
+            try {
+                final CachedDocumentFile file =
+                        getDocumentFileWithValidPermissions(contentUrl, "rw", true);
+                if (file == null) {
+                    return false;
+                }
 
-        mCachedDocumentFiles.remove(file.getUri());
-        if (file.isDirectory()) {
-            invalidateCachedDocuments(file.getUri());
-        }
-        return deleteFile(file.getUri());
+                mDocumentCache.onDocumentDeleted(file);
+                mFileDescriptors.invalidate(file.getUri());
+                return deleteFile(file.getUri());
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            scope.end();
+        }
     }
 
     // Native usage
     public String[] listFileNames(String contentUrl) {
-        final CachedDocumentFile file =
-                getDocumentFileWithValidPermissions(contentUrl, "r");
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_LIST);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "r");
 
-        if (file == null || !file.isDirectory()) {
-            return null;
+            if (file == null || !file.isDirectory()) {
+                return null;
+            }
+
+            List<CachedDocumentFile> files = listFiles(file.getUri());
+            String[] result = new String[files.size()];
+            for (int i = 0; i < files.size(); ++i) {
+                CachedDocumentFile docFile = files.get(i);
+                result[i] = docFile.getName();
+                mCachedListDocumentFiles.add(docFile.getUri());
+            }
+            prefetchSubdirectories(files);
+
+            return result;
+        } finally {
+            scope.end();
+        }
+    }
+
+    /**
+     * Like {@link #listFileNames(String)}, but also returns the metadata of the
+     * children which came along with the listing, so that native code doesn't
+     * have to come back for each one of them.
+     *
+     * @return {@link DocumentStats} of the children, or null if the Url isn't
+     * a directory we can access.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public DocumentStats listFileInfos(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_LIST);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "r");
+
+            if (file == null || !file.isDirectory()) {
+                return null;
+            }
+
+            final boolean writePermission = hasWritePermission(file.getUri());
+            final List<CachedDocumentFile> files = listFiles(file.getUri());
+            final DocumentStats stats = new DocumentStats(files.size());
+            for (int i = 0; i < files.size(); ++i) {
+                final CachedDocumentFile docFile = files.get(i);
+                stats.set(i, docFile, writePermission && (docFile.canWrite() || isArc()));
+                mCachedListDocumentFiles.add(docFile.getUri());
+            }
+            prefetchSubdirectories(files);
+
+            mError.unsetError();
+            return stats;
+        } finally {
+            scope.end();
+        }
+    }
+
+    /**
+     * When enabled, after a directory is listed the listings of its subdirectories
+     * are fetched in the background, so that probing them is served from the cache.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void setPrefetchEnabled(boolean enabled) {
+        if (enabled && mPrefetcher == null) {
+            mPrefetcher = new DirectoryPrefetcher(new DirectoryPrefetcher.Loader() {
+                @Override
+                public void load(Uri directoryUri) {
+                    indexDirectory(directoryUri);
+                }
+            });
+        } else if (!enabled && mPrefetcher != null) {
+            mPrefetcher.cancel();
+            mPrefetcher = null;
+        }
+    }
+
+    /**
+     * When enabled, we observe the directories we have indexed and drop their
+     * listings as soon as the provider reports a change, so the cache doesn't
+     * rely on {@link #resetListCache()} or expiry alone to pick up changes made
+     * by others. Disabled by default.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public synchronized void setObserveChanges(boolean enabled) {
+        if (enabled && mDirectoryObserver == null) {
+            mDirectoryObserver = new DirectoryObserver(mCtx.getContentResolver(),
+                    new DirectoryObserver.Listener() {
+                        @Override
+                        public void onDirectoryChanged(Uri directoryUri) {
+                            Log.d(TAG, "onDirectoryChanged(): Uri = " + directoryUri);
+                            mDocumentCache.invalidateChildren(directoryUri);
+                            // a parked descriptor may be of a document which has been replaced
+                            mFileDescriptors.invalidateChildren(directoryUri);
+                        }
+                    });
+        } else if (!enabled && mDirectoryObserver != null) {
+            mDirectoryObserver.quit();
+            mDirectoryObserver = null;
+        }
+    }
+
+    /**
+     * When enabled, documents of the external storage provider are read straight
+     * from the filesystem, if we have access to their paths; bypassing the provider.
+     * Disabled by default.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public synchronized void setDirectAccessEnabled(boolean enabled) {
+        if (enabled && mLocalStorage == null) {
+            mLocalStorage = new LocalStorageBackend(mCtx);
+        } else if (!enabled) {
+            mLocalStorage = null;
+        }
+    }
+
+    /**
+     * When enabled, directory listings are also kept on disk, so that after a
+     * restart they can be served right away. Listings served from disk are
+     * checked against the directory's last modified time in the background,
+     * and replaced if they turn out to be stale.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public synchronized void setPersistentCacheEnabled(boolean enabled) {
+        if (enabled && mDocumentStore == null) {
+            final DocumentStore store = new DocumentStore(mCtx);
+            // the stored listings of what we change are dropped, they are
+            // saved again the next time the directory is listed
+            mDocumentCache.setMutationListener(new DocumentCache.MutationListener() {
+                @Override
+                public void onChildrenChanged(final Uri directoryUri) {
+                    store.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            store.removeDirectory(directoryUri);
+                        }
+                    });
+                }
+
+                @Override
+                public void onDirectoryRemoved(final Uri directoryUri) {
+                    store.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            store.removeSubtree(directoryUri);
+                        }
+                    });
+                }
+            });
+            mDocumentStore = store;
+        } else if (!enabled && mDocumentStore != null) {
+            final DocumentStore store = mDocumentStore;
+            mDocumentCache.setMutationListener(null);
+            mDocumentStore = null;
+            store.close();
+        }
+    }
+
+    /**
+     * How documents are mirrored into local copies, for providers which don't
+     * give us seekable descriptors. Disabled by default.
+     *
+     * @param mode {@code DocumentMirror.MODE_OFF}, {@code MODE_NON_SEEKABLE}
+     *             or {@code MODE_ALWAYS}
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public synchronized void setMirrorMode(int mode) {
+        if (mode == DocumentMirror.MODE_OFF) {
+            mMirror = null;
+        } else if (mMirror == null) {
+            final DocumentMirror mirror = new DocumentMirror(mCtx.getCacheDir(), mode);
+            mirror.setMaxBytes(mMirrorMaxBytes);
+            mMirror = mirror;
+        } else {
+            mMirror.setMode(mode);
+        }
+    }
+
+    /**
+     * Limit the total size of the local copies, the least recently used ones
+     * are removed first.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public synchronized void setMirrorCacheLimit(long maxBytes) {
+        mMirrorMaxBytes = maxBytes;
+        if (mMirror != null) {
+            mMirror.setMaxBytes(maxBytes);
+        }
+    }
+
+    /**
+     * @return size of the local copies in bytes
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public long getMirrorCacheSize() {
+        final DocumentMirror mirror = mMirror;
+        return mirror != null ? mirror.getTotalBytes() : 0;
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void clearMirrorCache() {
+        final DocumentMirror mirror = mMirror;
+        if (mirror != null) {
+            mirror.clear();
+        }
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void clearPersistentCache() {
+        final DocumentStore store = mDocumentStore;
+        if (store != null) {
+            store.execute(new Runnable() {
+                @Override
+                public void run() {
+                    store.clear();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop the pending prefetches, e.g when the user navigates away.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void cancelPrefetch() {
+        final DirectoryPrefetcher prefetcher = mPrefetcher;
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+    }
+
+    private void prefetchSubdirectories(List<CachedDocumentFile> children) {
+        final DirectoryPrefetcher prefetcher = mPrefetcher;
+        if (prefetcher != null) {
+            prefetcher.prefetch(children);
+        }
+    }
+
+    /**
+     * Start reading the directory in batches, see {@link #readDirectory(int, int)}.
+     * Meant for directories too large to be listed in one go.
+     *
+     * @return handle to the enumeration, -1 if the Url isn't a directory we can access.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public int openDirectory(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_READ_DIRECTORY);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "r");
+
+            if (file == null || !file.isDirectory()) {
+                return -1;
+            }
+
+            final DirectoryEnumerator enumerator = mBackend.openChildren(file.getUri());
+            if (enumerator == null) {
+                if (!setErrorIfTimedOut()) {
+                    mError.setError(FileError.READ_ERROR);
+                    mError.setErrorString("Couldn't query the directory");
+                }
+                return -1;
+            }
+
+            synchronized (mDirectoryEnumerators) {
+                final int handle = mNextEnumeratorHandle++;
+                mDirectoryEnumerators.put(handle, enumerator);
+                mError.unsetError();
+                return handle;
+            }
+        } finally {
+            scope.end();
+        }
+    }
+
+    /**
+     * @return {@link DocumentStats} with at most {@code count} children, empty
+     * once all of them have been read; null if the handle isn't valid.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public DocumentStats readDirectory(int handle, int count) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_READ_DIRECTORY);
+        try {
+            final DirectoryEnumerator enumerator;
+            synchronized (mDirectoryEnumerators) {
+                enumerator = mDirectoryEnumerators.get(handle);
+            }
+            if (enumerator == null) {
+                Log.w(TAG, "readDirectory(): Invalid handle: " + handle);
+                return null;
+            }
+
+            final boolean writePermission = hasWritePermission(enumerator.getDirectoryUri());
+            final List<CachedDocumentFile> files = enumerator.next(count);
+            final DocumentStats stats = new DocumentStats(files.size());
+            for (int i = 0; i < files.size(); ++i) {
+                final CachedDocumentFile docFile = files.get(i);
+                stats.set(i, docFile, writePermission && (docFile.canWrite() || isArc()));
+                // native code will most likely ask about these right away
+                mDocumentCache.put(docFile);
+            }
+            return stats;
+        } finally {
+            scope.end();
+        }
+    }
+
+    /**
+     * Stop the enumeration, it is fine to call this before all the children
+     * have been read.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void closeDirectory(int handle) {
+        final DirectoryEnumerator enumerator;
+        synchronized (mDirectoryEnumerators) {
+            enumerator = mDirectoryEnumerators.remove(handle);
+        }
+        if (enumerator != null) {
+            enumerator.close();
+        }
+    }
+
+    /**
+     * Start walking the directory recursively, subdirectories are listed in
+     * parallel and their listings are cached along the way. Results are read
+     * with {@link #walkNext(int, int)}.
+     *
+     * @param maxDepth   1 for just the children, negative for no limit.
+     * @param nameFilter regular expression the names of the returned documents should
+     *                   match, directories are walked regardless. Null for everything.
+     * @return handle to the walk, -1 if the Url isn't a directory we can access.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public int walkStart(String contentUrl, int maxDepth, String nameFilter) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_WALK);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "r");
+
+            if (file == null || !file.isDirectory()) {
+                return -1;
+            }
+
+            final TreeWalker walker;
+            try {
+                walker = new TreeWalker(getWalkerExecutor(), new TreeWalker.Lister() {
+                    @Override
+                    public List<CachedDocumentFile> list(Uri directoryUri) {
+                        final CachedDirectory directory = indexDirectory(directoryUri);
+                        return directory != null ? directory.getChildren() : null;
+                    }
+                }, maxDepth, nameFilter);
+            } catch (PatternSyntaxException e) {
+                mError.setError(FileError.FATAL_ERROR);
+                mError.setErrorString("Invalid name filter: " + nameFilter);
+                return -1;
+            }
+            walker.start(file.getUri());
+
+            synchronized (mTreeWalkers) {
+                final int handle = mNextWalkerHandle++;
+                mTreeWalkers.put(handle, walker);
+                mError.unsetError();
+                return handle;
+            }
+        } finally {
+            scope.end();
+        }
+    }
+
+    /**
+     * Blocks until some results are available.
+     *
+     * @return {@link DocumentStats} of at most {@code count} documents, with the
+     * paths relative to the root of the walk in place of names; empty once the
+     * walk has finished and null if the handle isn't valid, or the walk has
+     * cancelled itself for not being read from (see {@link TreeWalker#ABANDON_AFTER_MS}).
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public DocumentStats walkNext(int handle, int count) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_WALK);
+        try {
+            final TreeWalker walker;
+            synchronized (mTreeWalkers) {
+                walker = mTreeWalkers.get(handle);
+            }
+            if (walker == null) {
+                Log.w(TAG, "walkNext(): Invalid handle: " + handle);
+                return null;
+            }
+            if (walker.isCancelled()) {
+                Log.w(TAG, "walkNext(): Abandoned walk: " + handle);
+                synchronized (mTreeWalkers) {
+                    mTreeWalkers.remove(handle);
+                }
+                return null;
+            }
+
+            final List<TreeWalker.Result> results = walker.next(count);
+            final DocumentStats stats = new DocumentStats(results.size());
+            for (int i = 0; i < results.size(); ++i) {
+                final CachedDocumentFile file = results.get(i).file;
+                stats.set(i, file, file.canWrite() || isArc());
+                stats.names[i] = results.get(i).path;
+            }
+            return stats;
+        } finally {
+            scope.end();
+        }
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void walkClose(int handle) {
+        final TreeWalker walker;
+        synchronized (mTreeWalkers) {
+            walker = mTreeWalkers.remove(handle);
+        }
+        if (walker != null) {
+            walker.cancel();
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getWalkerExecutor() {
+        if (mWalkerExecutor == null) {
+            mWalkerExecutor = new ThreadPoolExecutor(WALKER_THREAD_COUNT, WALKER_THREAD_COUNT,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            mWalkerExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mWalkerExecutor;
+    }
+
+    // Native usage
+    void resetListCache() {
+        for (Uri uri : mCachedListDocumentFiles) {
+            mDocumentCache.remove(uri);
         }
+        mCachedListDocumentFiles.clear();
+        mDocumentCache.clearDirectories();
+        mFileDescriptors.closeIdle();
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void setCacheLimits(int maxEntries, long ttlMs) {
+        mDocumentCache.setMaxEntries(maxEntries);
+        mDocumentCache.setDefaultTtl(ttlMs);
+    }
+
+    /**
+     * @param ttlMs how long a lookup of a path which doesn't exist is remembered,
+     *              0 to always ask the provider.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void setMissingLookupTtl(long ttlMs) {
+        mDocumentCache.setMissingTtl(ttlMs);
+    }
+
+    /**
+     * Limit the calls made to each provider, so that a slow or hung provider
+     * doesn't hold up the others. Calls over the limit wait for a slot, and
+     * calls which take longer than {@code timeoutMs} (waiting included) fail
+     * with {@link FileError#TIME_OUT_ERROR}.
+     *
+     * @param maxConcurrentCalls calls in flight to a single authority
+     * @param timeoutMs          0 for no deadline, which is the default.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void setProviderCallLimits(int maxConcurrentCalls, long timeoutMs) {
+        mBulkheads.setMaxConcurrentCalls(maxConcurrentCalls);
+        mBulkheads.setTimeoutMs(timeoutMs);
+    }
+
+    /**
+     * @return {hits, misses, evictions, expirations, size} of the document cache
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public long[] getCacheStatistics() {
+        return mDocumentCache.getStatistics();
+    }
+
+    /**
+     * @return for each {@code SAFMetrics.OP_*}: calls, total latency in nanoseconds
+     * and the provider calls it made; followed by the provider calls made in the
+     * background.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public long[] getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * @return authorities of the providers we have made calls to.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public String[] getMetricsAuthorities() {
+        return mMetrics.getAuthorities();
+    }
+
+    /**
+     * @return latencies of the calls to the provider, bucket {@code i} holds the
+     * calls which took under {@code 2^i} microseconds; null if we haven't made any.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public long[] getLatencyHistogram(String authority) {
+        return mMetrics.getHistogram(authority);
+    }
+
+    /**
+     * Log the metrics along with the cache statistics.
+     *
+     * @return the metrics in readable form
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public String dumpMetrics() {
+        mMetrics.logMetrics();
+        mDocumentCache.logStatistics();
+        return mMetrics.dump();
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public void resetMetrics() {
+        mMetrics.reset();
+        mDocumentCache.resetStatistics();
+    }
 
-        List<CachedDocumentFile> files = listFiles(file.getUri());
-        String[] result = new String[files.size()];
-        for (int i = 0; i < files.size(); ++i) {
-            CachedDocumentFile docFile = files.get(i);
-            result[i] = docFile.getName();
-            mCachedDocumentFiles.put(docFile.getUri(), docFile);
-            mCachedListDocumentFiles.add(docFile.getUri());
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean isDir(String contentUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_IS_DIR);
+        try {
+            final CachedDocumentFile file =
+                    getDocumentFileWithValidPermissions(contentUrl, "rw", true);
+            if (file == null) {
+                return false;
+            }
+
+            mError.unsetError();
+            return file.isDirectory();
+        } finally {
+            scope.end();
+        }
+    }
+
+    private boolean isTreeUri(Uri uri) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return DocumentsContract.isTreeUri(uri);
+        } else {
+            final List<String> paths = uri.getPathSegments();
+            return (paths.size() >= 2 && PATH_TREE.equals(paths.get(0)));
+        }
+    }
+
+    // Native usage
+    public boolean isTreeUri(String contentUrl) {
+        return isTreeUri(Uri.parse(contentUrl));
+    }
+
+    public boolean rename(String contentUrl, String displayName) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_RENAME);
+        try {
+            final ReentrantLock lock = lockFor(contentUrl);
+            lock.lock();
+            try {
+                final CachedDocumentFile file =
+                        getDocumentFileWithValidPermissions(contentUrl, "rw", true);
+                if (file == null) {
+                    return false;
+                }
+
+                final Uri oldUri = file.getUri();
+                mFileDescriptors.invalidate(oldUri);
+                if (renameDocument(file, displayName)) {
+                    mDocumentCache.onDocumentRenamed(oldUri, file);
+                    resetCachedPermission();
+                    return true;
+                } else {
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            scope.end();
+        }
+    }
+
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean mkdir(String contentUrl, boolean createParentDirectories) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_MKDIR);
+        try {
+            final ReentrantLock lock = lockFor(contentUrl);
+            lock.lock();
+            try {
+                if (isDir(contentUrl)) {
+                    return true;
+                }
+
+                final Uri uri = Uri.parse(contentUrl);
+                // "tree" and document id make the first two parts of the path
+                if (uri.getPathSegments().size() > 3 && !createParentDirectories) {
+                    return false;
+                }
+                final SAFFile rawSafFile = nearestTreeUri(uri);
+                if (rawSafFile == null) {
+                    mError.setError(FileError.PERMISSIONS_ERROR);
+                    mError.setErrorString("No permission to access the Document Tree");
+                    return false;
+                }
+
+                if (createDirectories(rawSafFile) != null) {
+                    mError.unsetError();
+                    return true;
+                } else {
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            scope.end();
+        }
+    }
+
+    // should be called with the Tree's lock held
+    Uri createDirectories(SAFFile file) {
+        final Uri treeUri = file.getBaseUri();
+        List<String> pathSegments = file.getSegments();
+
+        Log.d(TAG, "Creating directory: " + treeUri.toString() +
+                ", segments = " + stringJoin("/", pathSegments));
+
+        Uri parent = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        for (String segment : pathSegments) {
+            final CachedDocumentFile existingFile = findFile(parent, segment);
+
+            if (existingFile != null) {
+                Log.d(TAG, "Exists: " + existingFile.getUri().toString());
+                if (existingFile.isFile()) {
+                    mError.setError(FileError.UNSPECIFIED_ERROR);
+                    mError.setErrorString(
+                            "Couldn't create a directory at the specified path, because a file with same name exists");
+                    return null;
+                }
+
+                parent = existingFile.getUri();
+                continue;
+            }
+
+            final CachedDocumentFile newFile = createDirectory(parent, segment);
+            if (newFile == null) {
+                return null;
+            }
+            parent = newFile.getUri();
+            mDocumentCache.onDocumentCreated(newFile);
+        }
+
+        mError.unsetError();
+        return parent;
+    }
+
+    // should be called with the Tree's lock held
+    private CachedDocumentFile createFile(SAFFile file, boolean force) {
+
+        List<String> pathSegments = file.getSegments();
+
+        Log.d(TAG, "Creating new file: " + file.getBaseUri() + ", filename = "
+                + stringJoin(File.separator, pathSegments));
+
+        final Uri parent = createDirectories(
+                new SAFFile(file.getBaseUri(),
+                        pathSegments.subList(0, pathSegments.size() - 1)));
+        if (parent == null) {
+            return null;
+        }
+
+        final String filename = pathSegments.get(pathSegments.size() - 1);
+        final String mimeType = getMimeTypeFromFilename(filename);
+
+        final CachedDocumentFile foundFile = findFile(parent, filename);
+        if (foundFile != null && foundFile.isFile() && !force) {
+            return foundFile;
+        }
+
+        final CachedDocumentFile newFile = createDocumentImpl(parent, filename, mimeType);
+        if (newFile == null) {
+            return null;
+        }
+        mDocumentCache.onDocumentCreated(newFile);
+        return newFile;
+    }
+
+    private String getMimeTypeFromFilename(String filename) {
+        final int index = filename.lastIndexOf(".");
+        String extension;
+        if (index == -1 || index == filename.length() - 1) {
+            extension = "";
+        } else {
+            extension = filename.substring(index + 1);
+        }
+
+        if (extension.isEmpty()) {
+            return "application/octet-stream";
+        }
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    }
+
+
+    private List<CachedDocumentFile> listFiles(Uri documentTreeUri) {
+        final CachedDirectory directory = indexDirectory(documentTreeUri);
+        if (directory == null) {
+            return new ArrayList<>();
+        }
+        return directory.getChildren();
+    }
+
+    /**
+     * Get the listing of the directory from cache, if it isn't there we query
+     * the provider for all of its children in one go and cache it.
+     *
+     * @param documentTreeUri a Uri with both "tree" and "document".
+     * @return {@link CachedDirectory} or null if the query failed.
+     */
+    private CachedDirectory indexDirectory(Uri documentTreeUri) {
+        CachedDirectory directory = mDocumentCache.getDirectory(documentTreeUri);
+        if (directory != null) {
+            return directory;
+        }
+
+        // watch before querying, so we don't miss a change made in between
+        final DirectoryObserver observer = mDirectoryObserver;
+        if (observer != null) {
+            observer.watch(documentTreeUri);
+        }
+
+        final DocumentStore store = mDocumentStore;
+        if (store != null) {
+            final DocumentStore.StoredDirectory stored = store.loadDirectory(documentTreeUri);
+            if (stored != null) {
+                directory = new CachedDirectory(documentTreeUri, stored.children);
+                mDocumentCache.putDirectory(directory);
+                validateStoredDirectory(store, documentTreeUri, stored.lastModified);
+                return directory;
+            }
+        }
+
+        // If we knew the directory's last modified time before listing it, a
+        // change made while we list makes the stored listing look stale, not fresh.
+        final CachedDocumentFile cachedDirectory = mDocumentCache.get(documentTreeUri);
+        final long lastModified = cachedDirectory != null ? cachedDirectory.getLastModified() : 0;
+
+        final List<CachedDocumentFile> children = queryChildren(documentTreeUri);
+        if (children == null) {
+            if (observer != null) {
+                observer.unwatch(documentTreeUri);
+            }
+            return null;
+        }
+        directory = new CachedDirectory(documentTreeUri, children);
+        mDocumentCache.putDirectory(directory);
+        if (store != null) {
+            saveDirectory(store, documentTreeUri, lastModified, children);
+        }
+        return directory;
+    }
+
+    private void saveDirectory(final DocumentStore store, final Uri documentTreeUri,
+                               final long lastModified, final List<CachedDocumentFile> children) {
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.saveDirectory(documentTreeUri, lastModified, children);
+            }
+        });
+    }
+
+    /**
+     * Compare the directory's last modified time against the one the stored
+     * listing was taken at, and list it again if they differ (or we can't tell).
+     */
+    private void validateStoredDirectory(final DocumentStore store, final Uri documentTreeUri,
+                                         final long storedLastModified) {
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CachedDocumentFile file = queryDocument(documentTreeUri);
+                if (file == null) {
+                    Log.d(TAG, "validateStoredDirectory(): Gone: " + documentTreeUri);
+                    store.removeDirectory(documentTreeUri);
+                    mDocumentCache.invalidateSubtree(documentTreeUri);
+                    mDocumentCache.remove(documentTreeUri);
+                    return;
+                }
+
+                final long lastModified = file.getLastModified();
+                if (lastModified != 0 && lastModified == storedLastModified) {
+                    return;
+                }
+
+                final List<CachedDocumentFile> children = queryChildren(documentTreeUri);
+                if (children == null) {
+                    store.removeDirectory(documentTreeUri);
+                    return;
+                }
+                mDocumentCache.invalidateChildren(documentTreeUri);
+                mDocumentCache.putDirectory(new CachedDirectory(documentTreeUri, children));
+                store.saveDirectory(documentTreeUri, lastModified, children);
+            }
+        });
+    }
+
+    /**
+     * @return children of the directory, or null if the query failed.
+     */
+    private List<CachedDocumentFile> queryChildren(Uri documentTreeUri) {
+        Log.d(TAG, "queryChildren(): Uri = " + documentTreeUri);
+
+        final LocalStorageBackend localStorage = mLocalStorage;
+        if (localStorage != null && localStorage.handles(documentTreeUri)) {
+            final List<CachedDocumentFile> children = localStorage.queryChildren(documentTreeUri);
+            if (children != null) {
+                return children;
+            }
+            // e.g the permission has been revoked, or the volume unmounted
+            localStorage.invalidateAccess(documentTreeUri);
+        }
+
+        final List<CachedDocumentFile> children = mBackend.queryChildren(documentTreeUri);
+        // a slow provider doesn't mean what we have cached is wrong
+        if (children == null && !mBulkheads.lastCallTimedOut()) {
+            // TODO(sh_zam): a test is needed
+            mDocumentCache.invalidateSubtree(documentTreeUri);
+            mDocumentCache.remove(documentTreeUri);
+        }
+        return children;
+    }
+
+    /**
+     * Find the file under the tree. This function can take pathSegments which
+     * allow looking recursively in the document's subtree.
+     *
+     * @param safFile {@link SAFFile}
+     * @return {@link CachedDocumentFile} if the document is found, null otherwise.
+     */
+    private CachedDocumentFile findFileInTree(SAFFile safFile) {
+        List<String> pathSegments = safFile.getSegments();
+        Uri parent = DocumentsContract.buildDocumentUriUsingTree(safFile.getBaseUri(),
+                DocumentsContract.getTreeDocumentId(safFile.getBaseUri()));
+
+        // the Tree's own document is only needed when it is what we're looking for
+        CachedDocumentFile documentFile = null;
+        if (pathSegments.isEmpty()) {
+            documentFile = mDocumentCache.get(parent);
+            if (documentFile == null) {
+                documentFile = queryDocument(parent);
+                if (documentFile != null) {
+                    mDocumentCache.put(documentFile);
+                }
+            }
+        }
+
+        for (int i = 0; i < pathSegments.size(); ++i) {
+            documentFile = findFile(parent, pathSegments.get(i));
+            if (documentFile == null) {
+                return null;
+            }
+
+            if (documentFile.isFile()) {
+                if (i == pathSegments.size() - 1) {
+                    return documentFile;
+                } else {
+                    return null;
+                }
+            }
+            parent = documentFile.getUri();
+        }
+
+        return documentFile;
+    }
+
+    /**
+     * Find the file under subtree. Once a directory has been indexed, lookups in it
+     * don't need to query the provider.
+     *
+     * @param documentTreeUri a Uri with both "tree" and "document".
+     * @param filename        name of the file or directory.
+     * @return {@link CachedDocumentFile} if the document is found in cache or under
+     * the tree, null otherwise.
+     */
+    private CachedDocumentFile findFile(Uri documentTreeUri, String filename) {
+        {
+            final Uri expectedUri = DocumentsContract.buildDocumentUriUsingTree(documentTreeUri,
+                    DocumentsContract.getDocumentId(documentTreeUri) + "/" + filename);
+            // check in the cached documents first
+            final CachedDocumentFile cachedFile = mDocumentCache.get(expectedUri);
+            if (cachedFile != null) {
+                return cachedFile;
+            }
+        }
+
+        if (mDocumentCache.isKnownMissing(documentTreeUri, filename)) {
+            return null;
+        }
+
+        // check the tree now
+        final CachedDirectory directory = indexDirectory(documentTreeUri);
+        if (directory == null) {
+            return null;
+        }
+        final CachedDocumentFile file = directory.find(filename);
+        if (file == null) {
+            mDocumentCache.putMissing(documentTreeUri, filename);
+        }
+        return file;
+    }
+
+    /**
+     * @return the document, read from the filesystem if we can, null if it doesn't exist.
+     */
+    private CachedDocumentFile queryDocument(Uri documentUri) {
+        final LocalStorageBackend localStorage = mLocalStorage;
+        if (localStorage != null && localStorage.handles(documentUri)) {
+            final CachedDocumentFile file = localStorage.queryDocument(documentUri);
+            if (file != null) {
+                return file;
+            }
+            // we may not be able to see it anymore, rather than it not existing
+            final CachedDocumentFile providerFile = mBackend.queryDocument(documentUri);
+            if (providerFile != null) {
+                Log.w(TAG, "queryDocument(): Not found on the filesystem: " + documentUri);
+                localStorage.invalidateAccess(documentUri);
+            }
+            return providerFile;
+        }
+        return mBackend.queryDocument(documentUri);
+    }
+
+    private ParcelFileDescriptor openDocument(Uri documentUri, String openMode)
+            throws FileNotFoundException {
+        final LocalStorageBackend localStorage = mLocalStorage;
+        if (localStorage != null && localStorage.handles(documentUri)) {
+            final ParcelFileDescriptor pfd = localStorage.open(documentUri, openMode);
+            if (pfd != null) {
+                return pfd;
+            }
+        }
+
+        return mBackend.openDocument(documentUri, openMode);
+    }
+
+    /**
+     * Open the document for native code, through a local copy if the provider
+     * can't give us a descriptor we can seek, see {@link DocumentMirror}.
+     */
+    private ParcelFileDescriptor openForNative(CachedDocumentFile file, String openMode)
+            throws IOException {
+        final DocumentMirror mirror = mMirror;
+        final Uri uri = file.getUri();
+        if (mirror == null) {
+            return openDocument(uri, openMode);
+        }
+
+        if (!"r".equals(openMode)) {
+            return mirror.shouldMirror(uri)
+                    ? openWorkingCopy(mirror, file, openMode)
+                    : openDocument(uri, openMode);
+        }
+
+        final CachedDocumentFile loadedFile = withAttributes(file);
+        if (loadedFile == null) {
+            throw new FileNotFoundException("Document doesn't exist: " + uri);
+        }
+        final long lastModified = loadedFile.getLastModified();
+        final File cached = mirror.get(uri, lastModified);
+        if (cached != null) {
+            return ParcelFileDescriptor.open(cached, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+
+        final ParcelFileDescriptor source = openDocument(uri, "r");
+        if (!mirror.shouldMirror(uri)) {
+            if (DocumentTransfer.isRegularFile(source)) {
+                return source;
+            }
+            mirror.setNonSeekable(uri);
+        }
+
+        File copy = null;
+        try {
+            copy = mirror.createTempFile();
+            DocumentTransfer.copy(source, copy);
+            final ParcelFileDescriptor pfd =
+                    ParcelFileDescriptor.open(copy, ParcelFileDescriptor.MODE_READ_ONLY);
+            // the descriptor stays valid, even if the copy is evicted right away
+            mirror.put(uri, lastModified, copy);
+            return pfd;
+        } catch (IOException e) {
+            if (copy != null) {
+                DocumentMirror.deleteFile(copy);
+            }
+            throw e;
+        } finally {
+            closeQuietly(source);
+        }
+    }
+
+    /**
+     * Native code writes to a local copy, which is written back to the
+     * provider once the descriptor is closed.
+     */
+    private ParcelFileDescriptor openWorkingCopy(DocumentMirror mirror, CachedDocumentFile file,
+                                                 String openMode) throws IOException {
+        final Uri uri = file.getUri();
+        final boolean truncate = "w".equals(openMode) || openMode.contains("t");
+        final File copy = mirror.createTempFile();
+        try {
+            long sourceLastModified = 0;
+            if (!truncate) {
+                // "rw" and "wa" start from the current contents; the last modified
+                // time is checked again on write back, so it has to be current
+                sourceLastModified = refresh(file) ? file.getLastModified() : 0;
+                final File cached = mirror.get(uri, sourceLastModified);
+                final ParcelFileDescriptor source = cached != null
+                        ? ParcelFileDescriptor.open(cached, ParcelFileDescriptor.MODE_READ_ONLY)
+                        : openDocument(uri, "r");
+                try {
+                    DocumentTransfer.copy(source, copy);
+                } finally {
+                    closeQuietly(source);
+                }
+            }
+
+            final ParcelFileDescriptor pfd =
+                    ParcelFileDescriptor.open(copy, ParcelFileDescriptor.parseMode(openMode));
+            mWorkingCopies.put(pfd.getFd(),
+                    new DocumentMirror.WorkingCopy(uri, copy, sourceLastModified, truncate));
+            return pfd;
+        } catch (IOException e) {
+            DocumentMirror.deleteFile(copy);
+            throw e;
+        }
+    }
+
+    /**
+     * Write the working copy back to the provider in one go, if it has been
+     * changed, and keep it as the mirror of the version we wrote.
+     *
+     * @return false if writing back failed.
+     */
+    private boolean writeBack(DocumentMirror.WorkingCopy copy) {
+        final DocumentMirror mirror = mMirror;
+        if (!copy.isModified()) {
+            if (mirror == null || !mirror.put(copy.uri, copy.sourceLastModified, copy.file)) {
+                DocumentMirror.deleteFile(copy.file);
+            }
+            return true;
+        }
+
+        mError.unsetError();
+        // the lock is only taken by replaceDocument() for the swap, not the upload
+        CachedDocumentFile target = mDocumentCache.get(copy.uri);
+        if (target == null) {
+            target = queryDocument(copy.uri);
+        }
+        final CachedDocumentFile latest = target != null
+                ? replaceDocument(target.getParentUri(), target.getName(), target, copy.file,
+                        copy.sourceLastModified)
+                : null;
+
+        if (latest == null) {
+            Log.e(TAG, "writeBack(): Failed to write: " + copy.uri);
+            DocumentMirror.deleteFile(copy.file);
+            if (mError.getError() != FileError.ABORT_ERROR && !setErrorIfTimedOut()) {
+                mError.setError(FileError.WRITE_ERROR);
+                mError.setErrorString("Couldn't write the document back to the provider");
+            }
+            return false;
+        }
+        if (mirror == null || !mirror.put(latest.getUri(), latest.getLastModified(), copy.file)) {
+            DocumentMirror.deleteFile(copy.file);
+        }
+        return true;
+    }
+
+    private DocumentMirror.WorkingCopy findWorkingCopy(Uri uri) {
+        if (mWorkingCopies.isEmpty()) {
+            return null;
+        }
+        for (DocumentMirror.WorkingCopy copy : mWorkingCopies.values()) {
+            if (copy.uri.equals(uri)) {
+                return copy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put the spool in place of the document the save is for.
+     *
+     * @return the saved document, null on failure.
+     */
+    private CachedDocumentFile commitSpool(SaveTransaction transaction) {
+        final Uri uri = Uri.parse(transaction.url);
+        if (!isTreeUri(uri)) {
+            final CachedDocumentFile target =
+                    getDocumentFileWithValidPermissions(transaction.url, "w", true);
+            return target != null
+                    ? replaceDocument(null, target.getName(), target, transaction.spool, 0)
+                    : null;
+        }
+
+        final Uri parent;
+        final String name;
+        final CachedDocumentFile target;
+        // the Tree's structure may change, the contents are uploaded without the lock
+        final ReentrantLock lock = lockFor(transaction.url);
+        lock.lock();
+        try {
+            final SAFFile safFile = nearestTreeUri(uri);
+            if (safFile == null || safFile.getSegments().isEmpty()) {
+                return null;
+            }
+            final List<String> segments = safFile.getSegments();
+            parent = createDirectories(new SAFFile(safFile.getBaseUri(),
+                    segments.subList(0, segments.size() - 1)));
+            if (parent == null) {
+                return null;
+            }
+
+            name = segments.get(segments.size() - 1);
+            target = findFile(parent, name);
+            if (target == null && setErrorIfTimedOut()) {
+                return null;
+            }
+            if (target != null && target.isDirectory()) {
+                Log.e(TAG, "commitSpool(): A directory exists at: " + transaction.url);
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return replaceDocument(parent, name, target, transaction.spool, 0);
+    }
+
+    /**
+     * Write the file to the document in one go. The contents are uploaded to a
+     * sibling temporary document first, without holding the Tree's lock. Then,
+     * with the lock held, the document is renamed aside, the temporary document
+     * is renamed in its place, and only once that has worked is the old document
+     * deleted. If the temporary document can't take its place the old one is
+     * renamed back, so a failure leaves the document with its old contents.
+     * <p>
+     * Documents which aren't in a Tree, or which the provider can't rename, are
+     * written over instead, and new ones are created under their name and
+     * written into. That isn't atomic: a failure midway may leave them
+     * partially written.
+     * <p>
+     * If the document has been changed since we last read it, e.g by another
+     * app, it is left alone and {@link FileError#ABORT_ERROR} is set, rather than
+     * losing the other changes. The check is made right before the document is
+     * swapped or written over.
+     *
+     * @param parent               directory of the document, null if we don't know it
+     * @param target               the document, null if it doesn't exist yet
+     * @param expectedLastModified last modified time the document had when we
+     *                             read it, 0 to replace it whatever it has now
+     * @return the document with the new contents, which may have a new Uri;
+     * null on failure.
+     */
+    private CachedDocumentFile replaceDocument(Uri parent, String name,
+                                               CachedDocumentFile target, File contents,
+                                               long expectedLastModified) {
+        final String key = parent != null ? parent + "/" + name : target.getUri().toString();
+        beginReplacing(key);
+        try {
+            if (parent == null || (target != null
+                    && !target.hasFlag(DocumentsContract.Document.FLAG_SUPPORTS_RENAME))) {
+                return target != null
+                        ? overwriteDocument(target, contents, expectedLastModified) : null;
+            }
+            return swapDocument(parent, name, target, contents, expectedLastModified);
+        } finally {
+            endReplacing(key);
+        }
+    }
+
+    private CachedDocumentFile swapDocument(Uri parent, String name,
+                                            CachedDocumentFile target, File contents,
+                                            long expectedLastModified) {
+        final ReentrantLock lock = lockFor(parent.toString());
+        final String mimeType = target != null ? target.getMimeType() : getMimeTypeFromFilename(name);
+        final CachedDocumentFile temp;
+        lock.lock();
+        try {
+            target = recoverReplace(parent, name, target);
+            temp = createDocumentImpl(parent, SAVE_PREFIX + name, mimeType);
+        } finally {
+            lock.unlock();
+        }
+        if (temp == null) {
+            return null;
+        }
+        if (target == null && !canRename(temp)) {
+            // the provider couldn't put it in place, so it is written under its name
+            if (deleteFile(temp.getUri())) {
+                return createAndWrite(parent, name, mimeType, contents);
+            }
+            return null;
+        }
+
+        if (!writeContents(temp.getUri(), contents)) {
+            deleteFile(temp.getUri());
+            return null;
+        }
+
+        lock.lock();
+        try {
+            if (target != null && !isUnchangedSince(target, expectedLastModified)) {
+                deleteFile(temp.getUri());
+                return null;
+            }
+            if (target != null) {
+                final Uri targetUri = target.getUri();
+                mFileDescriptors.invalidate(targetUri);
+                if (!renameDocument(target, REPLACED_PREFIX + name)) {
+                    deleteFile(temp.getUri());
+                    return null;
+                }
+                if (!renameDocument(temp, name)) {
+                    Log.e(TAG, "replaceDocument(): Couldn't rename " + temp.getUri() + " to " + name);
+                    if (!renameDocument(target, name)) {
+                        Log.e(TAG, "replaceDocument(): Couldn't put back " + target.getUri());
+                    }
+                    deleteFile(temp.getUri());
+                    mDocumentCache.remove(targetUri);
+                    mDocumentCache.invalidateDirectory(parent);
+                    return null;
+                }
+                // the new contents are in place, a failure to delete the old
+                // ones only leaves them behind until the next save
+                if (!deleteFile(target.getUri())) {
+                    Log.w(TAG, "replaceDocument(): Couldn't delete " + target.getUri());
+                }
+                mDocumentCache.remove(targetUri);
+                mDocumentCache.onDocumentDeleted(target);
+            } else if (!renameDocument(temp, name)) {
+                Log.e(TAG, "replaceDocument(): Couldn't rename " + temp.getUri() + " to " + name);
+                deleteFile(temp.getUri());
+                return null;
+            }
+
+            temp.markStale();
+            refresh(temp);
+            mDocumentCache.onDocumentAdded(temp);
+            return temp;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canRename(CachedDocumentFile file) {
+        return (file.hasAttributes() || refresh(file))
+                && file.hasFlag(DocumentsContract.Document.FLAG_SUPPORTS_RENAME);
+    }
+
+    /**
+     * Create the document and write the contents into it, for providers which
+     * can't rename a temporary document in its place. Like
+     * {@link #overwriteDocument(CachedDocumentFile, File, long)} this isn't
+     * atomic, though a document which couldn't be written is removed.
+     */
+    private CachedDocumentFile createAndWrite(Uri parent, String name, String mimeType,
+                                              File contents) {
+        final ReentrantLock lock = lockFor(parent.toString());
+        final CachedDocumentFile file;
+        lock.lock();
+        try {
+            file = createDocumentImpl(parent, name, mimeType);
+            if (file == null) {
+                return null;
+            }
+            mDocumentCache.onDocumentCreated(file);
+        } finally {
+            lock.unlock();
         }
 
-        return result;
-    }
-
-    // Native usage
-    void resetListCache() {
-        for (Uri uri : mCachedListDocumentFiles) {
-            mCachedDocumentFiles.remove(uri);
+        if (!writeContents(file.getUri(), contents)) {
+            if (deleteFile(file.getUri())) {
+                mDocumentCache.onDocumentDeleted(file);
+            }
+            return null;
         }
-        mCachedListDocumentFiles.clear();
+        file.markStale();
+        refresh(file);
+        mDocumentCache.put(file);
+        return file;
     }
 
     /**
-     * A dumb heuristic method to remove the subdirectories if the parent directory
-     * is removed.
+     * Clean up after a replace of the document which didn't finish, e.g because
+     * we were killed midway. If the document itself is missing, what is left of
+     * it is renamed back in its place rather than deleted. The temporary document
+     * only has the new contents in full once the old document has been renamed
+     * aside, so it is put back only if the old document is there too; otherwise
+     * it may be partially written and the old document is put back instead.
+     * Should be called with the Tree's lock held.
      *
-     * @param removedUri The document to be deleted
+     * @return the document, which may be the one we put back.
      */
-    private void invalidateCachedDocuments(Uri removedUri) {
-        String dirname = removedUri.getLastPathSegment();
-        Iterator<Map.Entry<Uri, CachedDocumentFile>> iterator =
-                mCachedDocumentFiles.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<Uri, CachedDocumentFile> entry = iterator.next();
-            if (entry.getKey().getPath().contains(dirname)) {
-                iterator.remove();
+    private CachedDocumentFile recoverReplace(Uri parent, String name, CachedDocumentFile target) {
+        final CachedDocumentFile saving = findFile(parent, SAVE_PREFIX + name);
+        final CachedDocumentFile replaced = findFile(parent, REPLACED_PREFIX + name);
+        if (target == null && replaced != null) {
+            final CachedDocumentFile recovered = saving != null ? saving : replaced;
+            final Uri recoveredUri = recovered.getUri();
+            if (renameDocument(recovered, name)) {
+                Log.w(TAG, "recoverReplace(): Put back " + recovered.getUri());
+                mDocumentCache.onDocumentRenamed(recoveredUri, recovered);
+                target = recovered;
             }
         }
-    }
 
-    // Native usage
-    @SuppressWarnings("UnusedDeclaration")
-    public boolean isDir(String contentUrl) {
-        final CachedDocumentFile file =
-                getDocumentFileWithValidPermissions(contentUrl, "rw", true);
-        if (file == null) {
-            return false;
+        for (CachedDocumentFile leftover : new CachedDocumentFile[]{saving, replaced}) {
+            if (leftover != null && leftover != target && deleteFile(leftover.getUri())) {
+                mDocumentCache.onDocumentDeleted(leftover);
+            }
         }
-
-        mError.unsetError();
-        return file.isDirectory();
+        return target;
     }
 
-    private boolean isTreeUri(Uri uri) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            return DocumentsContract.isTreeUri(uri);
-        } else {
-            final List<String> paths = uri.getPathSegments();
-            return (paths.size() >= 2 && PATH_TREE.equals(paths.get(0)));
+    /**
+     * Wait for the other replaces of the document to finish.
+     */
+    private void beginReplacing(String key) {
+        boolean interrupted = false;
+        synchronized (mReplacingDocuments) {
+            while (!mReplacingDocuments.add(key)) {
+                try {
+                    mReplacingDocuments.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    // Native usage
-    public boolean isTreeUri(String contentUrl) {
-        return isTreeUri(Uri.parse(contentUrl));
+    private void endReplacing(String key) {
+        synchronized (mReplacingDocuments) {
+            mReplacingDocuments.remove(key);
+            mReplacingDocuments.notifyAll();
+        }
     }
 
-    synchronized public boolean rename(String contentUrl, String displayName) {
-        final CachedDocumentFile file =
-                getDocumentFileWithValidPermissions(contentUrl, "rw", true);
-        if (file == null) {
-            return false;
+    private CachedDocumentFile overwriteDocument(CachedDocumentFile target, File contents,
+                                                 long expectedLastModified) {
+        if (!isUnchangedSince(target, expectedLastModified)) {
+            return null;
         }
-
-        final Uri oldUri = file.getUri();
-        if (file.rename(displayName)) {
-            mCachedDocumentFiles.remove(oldUri);
-            invalidateCachedDocuments(oldUri);
-            mCachedDocumentFiles.put(file.getUri(), file);
-            resetCachedPermission();
-            return true;
-        } else {
-            return false;
+        mFileDescriptors.invalidate(target.getUri());
+        if (!writeContents(target.getUri(), contents)) {
+            return null;
         }
+        target.markStale();
+        refresh(target);
+        mDocumentCache.put(target);
+        return target;
     }
 
-    // Native usage
-    @SuppressWarnings("UnusedDeclaration")
-    synchronized public boolean mkdir(String contentUrl, boolean createParentDirectories) {
-        if (isDir(contentUrl)) {
+    /**
+     * Ask the provider whether the document still has the last modified time
+     * we expect, setting {@link FileError#ABORT_ERROR} if it doesn't. Providers
+     * which don't report one are taken at their word.
+     *
+     * @param expectedLastModified 0 to skip the check
+     */
+    private boolean isUnchangedSince(CachedDocumentFile target, long expectedLastModified) {
+        if (expectedLastModified == 0) {
             return true;
         }
-
-        final Uri uri = Uri.parse(contentUrl);
-        // "tree" and document id make the first two parts of the path
-        if (uri.getPathSegments().size() > 3 && !createParentDirectories) {
+        mBulkheads.clearTimedOut();
+        final CachedDocumentFile current = queryDocument(target.getUri());
+        if (current == null && mBulkheads.lastCallTimedOut()) {
             return false;
         }
-        final SAFFile rawSafFile = nearestTreeUri(uri);
-        if (rawSafFile == null) {
-            mError.setError(FileError.PERMISSIONS_ERROR);
-            mError.setErrorString("No permission to access the Document Tree");
-            return false;
+        if (current != null && (current.getLastModified() == 0
+                || current.getLastModified() == expectedLastModified)) {
+            return true;
         }
+        Log.w(TAG, "isUnchangedSince(): Changed by someone else: " + target.getUri());
+        mError.setError(FileError.ABORT_ERROR);
+        mError.setErrorString("The document has been changed or removed by someone else");
+        return false;
+    }
 
-        if (createDirectories(rawSafFile) != null) {
-            mError.unsetError();
+    private boolean writeContents(Uri documentUri, File contents) {
+        ParcelFileDescriptor out = null;
+        try {
+            out = openDocument(documentUri, "wt");
+            DocumentTransfer.copy(contents, out);
+            // errors of the provider may only show up on close
+            out.close();
+            out = null;
             return true;
-        } else {
+        } catch (Exception e) {
+            Log.e(TAG, "writeContents(): Failed to write: " + documentUri + ", " + e);
             return false;
+        } finally {
+            closeQuietly(out);
         }
     }
 
-    Uri createDirectories(SAFFile file) {
-        final Uri treeUri = file.getBaseUri();
-        List<String> pathSegments = file.getSegments();
-
-        Log.d(TAG, "Creating directory: " + treeUri.toString() +
-                ", segments = " + stringJoin("/", pathSegments));
-
-        Uri parent = DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                DocumentsContract.getTreeDocumentId(treeUri));
-        for (String segment : pathSegments) {
-            final CachedDocumentFile existingFile = findFile(parent, segment);
-
-            if (existingFile != null) {
-                Log.d(TAG, "Exists: " + existingFile.getUri().toString());
-                if (existingFile.isFile()) {
-                    mError.setError(FileError.UNSPECIFIED_ERROR);
-                    mError.setErrorString(
-                            "Couldn't create a directory at the specified path, because a file with same name exists");
-                    return null;
-                }
-
-                parent = existingFile.getUri();
-                continue;
+    private CachedDocumentFile createDocumentImpl(Uri parent, String displayName, String mimeType) {
+        final LocalStorageBackend localStorage = mLocalStorage;
+        if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)
+                && localStorage != null && localStorage.handles(parent)) {
+            final CachedDocumentFile directory = localStorage.createDirectory(parent, displayName);
+            if (directory != null) {
+                return directory;
             }
+        }
 
-            final CachedDocumentFile newFile = createDirectory(parent, segment);
-            if (newFile == null) {
-                return null;
+        final CachedDocumentFile file = mBackend.createDocument(parent, mimeType, displayName);
+        if (file == null) {
+            if (!setErrorIfTimedOut()) {
+                mError.setUnknownError();
             }
-            parent = newFile.getUri();
-            mCachedDocumentFiles.put(newFile.getUri(), newFile);
+            Log.e(TAG, "Error creating a file: uri = " + parent +
+                    ", displayName = " + displayName + ", mimeType = " + mimeType);
         }
-
-        mError.unsetError();
-        return parent;
+        return file;
     }
 
-    synchronized private CachedDocumentFile createFile(SAFFile file, boolean force) {
-
-        List<String> pathSegments = file.getSegments();
-
-        Log.d(TAG, "Creating new file: " + file.getBaseUri() + ", filename = "
-                + stringJoin(File.separator, pathSegments));
+    private boolean deleteFile(Uri documentUri) {
+        if (!mBackend.deleteDocument(documentUri)) {
+            if (!setErrorIfTimedOut()) {
+                mError.setUnknownError();
+            }
+            Log.e(TAG, "Error deleting a file: uri = " + documentUri);
+            return false;
+        }
+        return true;
+    }
 
-        final Uri parent = createDirectories(
-                new SAFFile(file.getBaseUri(),
-                        pathSegments.subList(0, pathSegments.size() - 1)));
-        if (parent == null) {
-            return null;
+    private boolean renameDocument(CachedDocumentFile file, String displayName) {
+        final Uri newUri = mBackend.renameDocument(file.getUri(), displayName);
+        if (newUri == null) {
+            return false;
         }
+        file.setRenamed(displayName, newUri);
+        // the document may have kept its id, the memo would still resolve the old path to it
+        mResolvedPaths.clear();
+        return true;
+    }
 
-        final String filename = pathSegments.get(pathSegments.size() - 1);
-        final String mimeType = getMimeTypeFromFilename(filename);
+    private CachedDocumentFile createDirectory(Uri parent, String displayName) {
+        return createDocumentImpl(parent, displayName, DocumentsContract.Document.MIME_TYPE_DIR);
+    }
 
-        final CachedDocumentFile foundFile = findFile(parent, filename);
-        if (foundFile != null && foundFile.isFile() && !force) {
-            return foundFile;
+    /**
+     * Copy the document, or the directory with everything under it, to {@code dstUrl}.
+     * If the provider supports it, the copy is done by the provider itself,
+     * otherwise the contents are copied between the two descriptors, without
+     * going through native code.
+     *
+     * @param dstUrl path in a Tree, which shouldn't already exist. Missing parent
+     *               directories are created.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean copy(String srcUrl, String dstUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_COPY);
+        try {
+            return copyOrMove(srcUrl, dstUrl, false);
+        } finally {
+            scope.end();
         }
+    }
 
-        final CachedDocumentFile newFile = createDocumentImpl(parent, filename, mimeType);
-        if (newFile == null) {
-            return null;
+    /**
+     * Like {@link #copy(String, String)}, but the source is removed afterwards.
+     */
+    // Native usage
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean move(String srcUrl, String dstUrl) {
+        final SAFMetrics.Scope scope = mMetrics.begin(SAFMetrics.OP_MOVE);
+        try {
+            return copyOrMove(srcUrl, dstUrl, true);
+        } finally {
+            scope.end();
         }
-        mCachedDocumentFiles.put(newFile.getUri(), newFile);
-        return newFile;
     }
 
-    private String getMimeTypeFromFilename(String filename) {
-        final int index = filename.lastIndexOf(".");
-        String extension;
-        if (index == -1 || index == filename.length() - 1) {
-            extension = "";
-        } else {
-            extension = filename.substring(index + 1);
+    private boolean copyOrMove(String srcUrl, String dstUrl, boolean move) {
+        final Uri dstUri = Uri.parse(dstUrl);
+        if (!isTreeUri(dstUri)) {
+            mError.setError(FileError.COPY_ERROR);
+            mError.setErrorString("Destination isn't in a Document Tree");
+            return false;
         }
 
-        if (extension.isEmpty()) {
-            return "application/octet-stream";
-        }
-        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-    }
+        // take the locks in the same order, so two copies can't deadlock
+        final boolean srcFirst = lockKeyFor(srcUrl).compareTo(lockKeyFor(dstUrl)) <= 0;
+        final ReentrantLock firstLock = lockFor(srcFirst ? srcUrl : dstUrl);
+        final ReentrantLock secondLock = lockFor(srcFirst ? dstUrl : srcUrl);
+        firstLock.lock();
+        secondLock.lock();
+        try {
+            CachedDocumentFile src =
+                    getDocumentFileWithValidPermissions(srcUrl, move ? "rw" : "r", true);
+            if (src != null) {
+                src = withAttributes(src);
+            }
+            if (src == null) {
+                if (!setErrorIfTimedOut()) {
+                    mError.setError(FileError.COPY_ERROR);
+                    mError.setErrorString("Source doesn't exist or isn't accessible");
+                }
+                return false;
+            }
 
+            final SAFFile dst = nearestTreeUri(dstUri);
+            if (dst == null) {
+                mError.setError(FileError.PERMISSIONS_ERROR);
+                mError.setErrorString("No permission to access the Document Tree");
+                return false;
+            }
 
-    private List<CachedDocumentFile> listFiles(Uri documentTreeUri) {
-        Log.d(TAG, "listFiles(): Uri = " + documentTreeUri);
-        final List<CachedDocumentFile> cachedDocumentFiles = new ArrayList<>();
-        // order matters!
-        final String[] columns = new String[]{
-                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                DocumentsContract.Document.COLUMN_MIME_TYPE,
-                DocumentsContract.Document.COLUMN_SIZE
-        };
-
-        Cursor cursor = null;
-        try {
-            final ContentResolver resolver = mCtx.getContentResolver();
-            final Uri childrenTreeUri = DocumentsContract.buildChildDocumentsUriUsingTree(documentTreeUri,
-                    DocumentsContract.getDocumentId(documentTreeUri));
-            cursor = resolver.query(childrenTreeUri, columns, null, null, null);
-            if (cursor == null) {
-                return cachedDocumentFiles;
-            }
-
-            while (cursor.moveToNext()) {
-                final String docId = SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_DOCUMENT_ID);
-                final Uri fileUri = DocumentsContract.buildDocumentUriUsingTree(documentTreeUri, docId);
-                cachedDocumentFiles.add(new CachedDocumentFile(mCtx,
-                        SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_DISPLAY_NAME),
-                        docId,
-                        SAFUtils.getColumnValStringOrNull(cursor, DocumentsContract.Document.COLUMN_MIME_TYPE),
-                        SAFUtils.getColumnValIntegerOrDefault(cursor, DocumentsContract.Document.COLUMN_SIZE, -1),
-                        fileUri));
+            final List<String> segments = dst.getSegments();
+            if (segments.isEmpty()) {
+                mError.setError(FileError.COPY_ERROR);
+                mError.setErrorString("Destination already exists");
+                return false;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Invalid document Uri: " + documentTreeUri);
-            // TODO(sh_zam): a test is needed
-            mCachedDocumentFiles.remove(documentTreeUri);
-            invalidateCachedDocuments(documentTreeUri);
+            final Uri parent = createDirectories(new SAFFile(dst.getBaseUri(),
+                    segments.subList(0, segments.size() - 1)));
+            if (parent == null) {
+                return false;
+            }
+
+            final String name = segments.get(segments.size() - 1);
+            if (findFile(parent, name) != null) {
+                mError.setError(FileError.COPY_ERROR);
+                mError.setErrorString("Destination already exists");
+                return false;
+            }
+
+            final CachedDocumentFile result = move
+                    ? moveDocument(src, parent, name)
+                    : copyDocument(src, parent, name);
+            if (result == null) {
+                mError.setError(FileError.COPY_ERROR);
+                mError.setErrorString("Couldn't " + (move ? "move" : "copy") + " the document");
+                return false;
+            }
+
+            mError.unsetError();
+            return true;
         } finally {
-            if (cursor != null)
-                cursor.close();
+            secondLock.unlock();
+            firstLock.unlock();
         }
+    }
 
-        return cachedDocumentFiles;
+    private CachedDocumentFile copyDocument(CachedDocumentFile src, Uri parent, String name) {
+        return copyDocument(src, parent, name, new HashSet<Uri>());
     }
 
     /**
-     * Find the file under the tree. This function can take pathSegments which
-     * allow looking recursively in the document's subtree.
-     *
-     * @param safFile {@link SAFFile}
-     * @return {@link CachedDocumentFile} if the document is found, null otherwise.
+     * @param copiedDocuments documents created by this copy so far, so that copying
+     *                        a directory into itself doesn't go on forever.
      */
-    private CachedDocumentFile findFileInTree(SAFFile safFile) {
-        List<String> pathSegments = safFile.getSegments();
-        Uri parent = DocumentsContract.buildDocumentUriUsingTree(safFile.getBaseUri(),
-                DocumentsContract.getTreeDocumentId(safFile.getBaseUri()));
-
-        CachedDocumentFile documentFile;
-        if (mCachedDocumentFiles.containsKey(parent)) {
-            documentFile = mCachedDocumentFiles.get(parent);
-        } else {
-            documentFile = CachedDocumentFile.fromFileUri(mCtx, parent);
-            if (documentFile != null) {
-                mCachedDocumentFiles.put(documentFile.getUri(), documentFile);
+    private CachedDocumentFile copyDocument(CachedDocumentFile src, Uri parent, String name,
+                                            Set<Uri> copiedDocuments) {
+        if (src.hasFlag(DocumentsContract.Document.FLAG_SUPPORTS_COPY)) {
+            final Uri newUri = mBackend.copyDocument(src.getUri(), parent);
+            if (newUri != null) {
+                return addTransferredDocument(newUri, parent, name);
             }
         }
 
-        for (int i = 0; i < pathSegments.size(); ++i) {
-            documentFile = findFile(parent, pathSegments.get(i));
-            if (documentFile == null) {
+        return copyContents(src, parent, name, copiedDocuments);
+    }
+
+    private CachedDocumentFile moveDocument(CachedDocumentFile src, Uri parent, String name) {
+        final Uri srcUri = src.getUri();
+        final Uri srcParent = src.getParentUri();
+
+        if (parent.equals(srcParent)) {
+            if (!renameDocument(src, name)) {
                 return null;
             }
+            mDocumentCache.onDocumentRenamed(srcUri, src);
+            mFileDescriptors.invalidate(srcUri);
+            return src;
+        }
 
-            if (documentFile.isFile()) {
-                if (i == pathSegments.size() - 1) {
-                    return documentFile;
-                } else {
-                    return null;
-                }
+        if (srcParent != null && src.hasFlag(DocumentsContract.Document.FLAG_SUPPORTS_MOVE)) {
+            final Uri newUri = mBackend.moveDocument(srcUri, srcParent, parent);
+            if (newUri != null) {
+                mDocumentCache.onDocumentDeleted(src);
+                mFileDescriptors.invalidate(srcUri);
+                mResolvedPaths.clear();
+                return addTransferredDocument(newUri, parent, name);
             }
-            parent = documentFile.getUri();
         }
 
-        return documentFile;
+        final CachedDocumentFile copiedFile =
+                copyContents(src, parent, name, new HashSet<Uri>());
+        if (copiedFile == null) {
+            return null;
+        }
+        if (!deleteFile(srcUri)) {
+            Log.w(TAG, "moveDocument(): Couldn't remove the source: " + srcUri);
+        }
+        mDocumentCache.onDocumentDeleted(src);
+        mFileDescriptors.invalidate(srcUri);
+        return copiedFile;
     }
 
     /**
-     * Find the file under subtree
-     *
-     * @param documentTreeUri a Uri with both "tree" and "document".
-     * @param filename        name of the file or directory.
-     * @return {@link CachedDocumentFile} if the document is found in cache or under
-     * the tree, null otherwise.
+     * The provider names the copied or moved document after the source, so
+     * we may have to rename it. The document is added to the cache and its
+     * parent's listing, rather than invalidating them.
      */
-    private CachedDocumentFile findFile(Uri documentTreeUri, String filename) {
-        {
-            final Uri expectedUri = DocumentsContract.buildDocumentUriUsingTree(documentTreeUri,
-                    DocumentsContract.getDocumentId(documentTreeUri) + "/" + filename);
-            // check in the cached documents first
-            if (mCachedDocumentFiles.containsKey(expectedUri)) {
-                return mCachedDocumentFiles.get(expectedUri);
-            }
+    private CachedDocumentFile addTransferredDocument(Uri newUri, Uri parent, String name) {
+        final CachedDocumentFile file = queryDocument(newUri);
+        if (file == null) {
+            mDocumentCache.invalidateDirectory(parent);
+            return null;
+        }
+        file.setParentUri(parent);
+        if (!name.equals(file.getName()) && !renameDocument(file, name)) {
+            Log.w(TAG, "Couldn't rename the document to: " + name);
         }
+        mDocumentCache.onDocumentAdded(file);
+        return file;
+    }
 
-        // check the tree now
-        List<CachedDocumentFile> cachedDocumentFiles = listFiles(documentTreeUri);
-        for (CachedDocumentFile file : cachedDocumentFiles) {
-            if (filename.equals(file.getName())) {
-                mCachedDocumentFiles.put(file.getUri(), file);
-                return file;
+    private CachedDocumentFile copyContents(CachedDocumentFile src, Uri parent, String name,
+                                            Set<Uri> copiedDocuments) {
+        if (src.isDirectory()) {
+            final List<CachedDocumentFile> children = listFiles(src.getUri());
+            final CachedDocumentFile directory = createDirectory(parent, name);
+            if (directory == null) {
+                return null;
             }
-        }
+            mDocumentCache.onDocumentCreated(directory);
+            copiedDocuments.add(directory.getUri());
 
-        return null;
-    }
+            for (CachedDocumentFile child : children) {
+                if (copiedDocuments.contains(child.getUri())) {
+                    continue;
+                }
+                final CachedDocumentFile loadedChild = withAttributes(child);
+                if (loadedChild == null || copyDocument(loadedChild, directory.getUri(),
+                        child.getName(), copiedDocuments) == null) {
+                    return null;
+                }
+            }
+            return directory;
+        }
 
-    private CachedDocumentFile createDocumentImpl(Uri parent, String displayName, String mimeType) {
-        try {
-            final Uri fileUri = DocumentsContract.createDocument(mCtx.getContentResolver(),
-                    parent, mimeType, displayName);
-            return new CachedDocumentFile(mCtx, displayName,
-                    DocumentsContract.getDocumentId(fileUri),
-                    mimeType,
-                    fileUri);
-        } catch (Exception e) {
-            mError.setUnknownError();
-            Log.e(TAG, "Error creating a file: uri = " + parent +
-                    ", displayName = " + displayName + ", mimeType = " + mimeType);
+        final CachedDocumentFile file = createDocumentImpl(parent, name, src.getMimeType());
+        if (file == null) {
             return null;
         }
-    }
 
-    private boolean deleteFile(Uri documentUri) {
+        ParcelFileDescriptor in = null;
+        ParcelFileDescriptor out = null;
         try {
-            return DocumentsContract.deleteDocument(mCtx.getContentResolver(),
-                    documentUri);
+            in = openDocument(src.getUri(), "r");
+            out = openDocument(file.getUri(), "w");
+            DocumentTransfer.copy(in, out);
         } catch (Exception e) {
-            mError.setUnknownError();
-            Log.e(TAG, "Error deleting a file: uri = " + documentUri);
-            return false;
+            Log.e(TAG, "copyContents(): Failed to copy: " + src.getUri() + ", " + e);
+            deleteFile(file.getUri());
+            return null;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
         }
+
+        mDocumentCache.onDocumentCreated(file);
+        return file;
     }
 
-    private CachedDocumentFile createDirectory(Uri parent, String displayName) {
-        return createDocumentImpl(parent, displayName, DocumentsContract.Document.MIME_TYPE_DIR);
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        if (pfd != null) {
+            try {
+                pfd.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
     // we need some workarounds on ChromeOS
@@ -0,0 +1,260 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latencies of the operations native code asks us for, and of the
+ * calls we make to the DocumentsProviders on their behalf. Everything is kept
+ * in atomic counters, so recording doesn't take any locks.
+ * <p>
+ * Provider calls are attributed to the operation running on the same thread,
+ * and their latencies are kept per authority in histograms with power of two
+ * buckets, in microseconds: bucket {@code i} holds the calls which took less
+ * than {@code 2^i} us (and at least {@code 2^(i-1)}).
+ */
+class SAFMetrics {
+
+    private static final String TAG = "SAFMetrics";
+
+    static final int OP_OPEN = 0;
+    static final int OP_CLOSE = 1;
+    static final int OP_MAP = 2;
+    static final int OP_SIZE = 3;
+    static final int OP_EXISTS = 4;
+    static final int OP_CAN_WRITE = 5;
+    static final int OP_FILE_NAME = 6;
+    static final int OP_STAT = 7;
+    static final int OP_DELETE = 8;
+    static final int OP_LIST = 9;
+    static final int OP_READ_DIRECTORY = 10;
+    static final int OP_WALK = 11;
+    static final int OP_IS_DIR = 12;
+    static final int OP_RENAME = 13;
+    static final int OP_MKDIR = 14;
+    static final int OP_COPY = 15;
+    static final int OP_MOVE = 16;
+    static final int OP_SAVE = 17;
+    static final int OP_COUNT = 18;
+    // provider calls made outside of any operation, e.g by background threads
+    private static final int OP_NONE = OP_COUNT;
+
+    static final String[] OP_NAMES = {"open", "close", "map", "size", "exists", "canWrite",
+            "fileName", "stat", "delete", "list", "readDirectory", "walk", "isDir",
+            "rename", "mkdir", "copy", "move", "save"};
+
+    static final int CALL_QUERY = 0;
+    static final int CALL_OPEN = 1;
+    static final int CALL_CREATE = 2;
+    static final int CALL_DELETE = 3;
+    static final int CALL_RENAME = 4;
+    static final int CALL_COPY = 5;
+    static final int CALL_MOVE = 6;
+    static final int CALL_COUNT = 7;
+
+    static final String[] CALL_NAMES = {"query", "open", "create", "delete", "rename",
+            "copy", "move"};
+
+    // Values per operation in the snapshot
+    static final int SNAPSHOT_CALLS = 0;
+    static final int SNAPSHOT_LATENCY_NS = 1;
+    static final int SNAPSHOT_PROVIDER_CALLS = 2;
+    static final int SNAPSHOT_STRIDE = 3;
+
+    static final int BUCKET_COUNT = 32;
+
+    private static final SAFMetrics sInstance = new SAFMetrics();
+
+    private static class AuthorityStats {
+        final AtomicLongArray calls = new AtomicLongArray(CALL_COUNT);
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    /**
+     * A running operation, {@link #end()} has to be called on the thread which began it.
+     */
+    class Scope {
+        // OP_NONE for an operation started within another one
+        private final int mOp;
+        private final long mStartNs;
+
+        private Scope(int op) {
+            mOp = op;
+            mStartNs = op != OP_NONE ? SystemClock.elapsedRealtimeNanos() : 0;
+        }
+
+        void end() {
+            if (mOp == OP_NONE) {
+                return;
+            }
+            mLatencyNs.addAndGet(mOp, SystemClock.elapsedRealtimeNanos() - mStartNs);
+            mCurrent.remove();
+        }
+    }
+
+    private final AtomicLongArray mCalls = new AtomicLongArray(OP_COUNT);
+    private final AtomicLongArray mLatencyNs = new AtomicLongArray(OP_COUNT);
+    private final AtomicLongArray mProviderCalls = new AtomicLongArray(OP_COUNT + 1);
+    private final ConcurrentHashMap<String, AuthorityStats> mAuthorities = new ConcurrentHashMap<>();
+    private final ThreadLocal<Scope> mCurrent = new ThreadLocal<>();
+    private final Scope mNested = new Scope(OP_NONE);
+
+    static SAFMetrics instance() {
+        return sInstance;
+    }
+
+    /**
+     * Start timing an operation, provider calls made on this thread until
+     * {@link Scope#end()} are counted towards it. An operation started by
+     * another one (e.g mkdir checking isDir) isn't counted on its own, its
+     * time and provider calls are the outer operation's.
+     */
+    Scope begin(int op) {
+        if (mCurrent.get() != null) {
+            return mNested;
+        }
+        mCalls.incrementAndGet(op);
+        final Scope scope = new Scope(op);
+        mCurrent.set(scope);
+        return scope;
+    }
+
+    /**
+     * @param startNs {@link SystemClock#elapsedRealtimeNanos()} from before the call.
+     */
+    void providerCall(int call, Uri uri, long startNs) {
+        final long elapsedUs = (SystemClock.elapsedRealtimeNanos() - startNs) / 1000;
+
+        final Scope scope = mCurrent.get();
+        mProviderCalls.incrementAndGet(scope != null ? scope.mOp : OP_NONE);
+
+        final AuthorityStats stats = getAuthorityStats(uri != null ? uri.getAuthority() : null);
+        stats.calls.incrementAndGet(call);
+        stats.histogram.incrementAndGet(bucketOf(elapsedUs));
+    }
+
+    /**
+     * @return for every operation, {@link #SNAPSHOT_STRIDE} values: calls,
+     * total latency in nanoseconds and the provider calls made; followed by
+     * the provider calls made outside of any operation.
+     */
+    long[] snapshot() {
+        final long[] snapshot = new long[OP_COUNT * SNAPSHOT_STRIDE + 1];
+        for (int op = 0; op < OP_COUNT; ++op) {
+            snapshot[op * SNAPSHOT_STRIDE + SNAPSHOT_CALLS] = mCalls.get(op);
+            snapshot[op * SNAPSHOT_STRIDE + SNAPSHOT_LATENCY_NS] = mLatencyNs.get(op);
+            snapshot[op * SNAPSHOT_STRIDE + SNAPSHOT_PROVIDER_CALLS] = mProviderCalls.get(op);
+        }
+        snapshot[OP_COUNT * SNAPSHOT_STRIDE] = mProviderCalls.get(OP_NONE);
+        return snapshot;
+    }
+
+    String[] getAuthorities() {
+        return mAuthorities.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * @return latency histogram of the provider calls to the authority, null if
+     * we haven't made any.
+     */
+    long[] getHistogram(String authority) {
+        final AuthorityStats stats = mAuthorities.get(authority);
+        return stats != null ? toArray(stats.histogram) : null;
+    }
+
+    /**
+     * @return number of calls of each {@code CALL_*} kind made to the authority,
+     * null if we haven't made any.
+     */
+    long[] getProviderCalls(String authority) {
+        final AuthorityStats stats = mAuthorities.get(authority);
+        return stats != null ? toArray(stats.calls) : null;
+    }
+
+    void reset() {
+        for (int op = 0; op < OP_COUNT; ++op) {
+            mCalls.set(op, 0);
+            mLatencyNs.set(op, 0);
+        }
+        for (int i = 0; i < mProviderCalls.length(); ++i) {
+            mProviderCalls.set(i, 0);
+        }
+        mAuthorities.clear();
+    }
+
+    String dump() {
+        final StringBuilder builder = new StringBuilder();
+        for (int op = 0; op < OP_COUNT; ++op) {
+            final long calls = mCalls.get(op);
+            if (calls == 0) {
+                continue;
+            }
+            builder.append(OP_NAMES[op])
+                    .append(": calls = ").append(calls)
+                    .append(", avg = ").append(mLatencyNs.get(op) / calls / 1000).append("us")
+                    .append(", provider calls = ").append(mProviderCalls.get(op))
+                    .append('\n');
+        }
+        builder.append("provider calls outside operations = ")
+                .append(mProviderCalls.get(OP_NONE)).append('\n');
+
+        for (Map.Entry<String, AuthorityStats> entry : mAuthorities.entrySet()) {
+            final AuthorityStats stats = entry.getValue();
+            builder.append(entry.getKey()).append(':');
+            for (int call = 0; call < CALL_COUNT; ++call) {
+                final long calls = stats.calls.get(call);
+                if (calls != 0) {
+                    builder.append(' ').append(CALL_NAMES[call]).append(" = ").append(calls);
+                }
+            }
+            builder.append("\n  latency (us, < count):");
+            for (int bucket = 0; bucket < BUCKET_COUNT; ++bucket) {
+                final long count = stats.histogram.get(bucket);
+                if (count != 0) {
+                    builder.append(' ').append(1L << bucket).append(':').append(count);
+                }
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    void logMetrics() {
+        for (String line : dump().split("\n")) {
+            Log.d(TAG, line);
+        }
+    }
+
+    private AuthorityStats getAuthorityStats(String authority) {
+        final String key = authority != null ? authority : "unknown";
+        AuthorityStats stats = mAuthorities.get(key);
+        if (stats == null) {
+            final AuthorityStats newStats = new AuthorityStats();
+            stats = mAuthorities.putIfAbsent(key, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    private static int bucketOf(long elapsedUs) {
+        if (elapsedUs <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(elapsedUs), BUCKET_COUNT - 1);
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        final long[] result = new long[array.length()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = array.get(i);
+        }
+        return result;
+    }
+}
@@ -20,4 +20,12 @@ public class SAFUtils {
         return cursor.getInt(index);
     }
 
+    public static long getColumnValLongOrDefault(Cursor cursor, String column, long defaultVal) {
+        int index = cursor.getColumnIndex(column);
+        if (index == -1 || cursor.isNull(index)) {
+            return defaultVal;
+        }
+        return cursor.getLong(index);
+    }
+
 }
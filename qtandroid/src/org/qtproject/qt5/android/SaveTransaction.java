@@ -0,0 +1,99 @@
+package org.qtproject.qt5.android;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A save in progress, see {@link SAFFileManager#beginSave(String)}. Native code
+ * writes the new contents to a spool file in the app's cache dir, so its writes
+ * go to local storage however small they are, and the document itself isn't
+ * touched until the save is committed.
+ */
+class SaveTransaction {
+
+    private static final String TAG = "SaveTransaction";
+
+    private static final String DIRECTORY_NAME = "saf_spool";
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    private static final AtomicBoolean sLeftoversCleared = new AtomicBoolean(false);
+
+    // Url the native code asked to save to
+    final String url;
+    final File spool;
+    private final ParcelFileDescriptor mPfd;
+
+    private SaveTransaction(String url, File spool, ParcelFileDescriptor pfd) {
+        this.url = url;
+        this.spool = spool;
+        mPfd = pfd;
+    }
+
+    static SaveTransaction begin(File cacheDir, String url) throws IOException {
+        final File directory = new File(cacheDir, DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create: " + directory);
+        }
+        if (sLeftoversCleared.compareAndSet(false, true)) {
+            clearLeftovers(directory);
+        }
+
+        final File spool = File.createTempFile("save", SPOOL_SUFFIX, directory);
+        try {
+            return new SaveTransaction(url, spool, ParcelFileDescriptor.open(spool,
+                    ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_TRUNCATE));
+        } catch (FileNotFoundException e) {
+            deleteSpool(spool);
+            throw e;
+        }
+    }
+
+    int getFd() {
+        return mPfd.getFd();
+    }
+
+    /**
+     * Close the descriptor native code has been writing to, before the spool
+     * is read back.
+     */
+    void close() throws IOException {
+        mPfd.close();
+    }
+
+    /**
+     * Remove the spool, closing the descriptor if it is still open.
+     */
+    void discard() {
+        try {
+            mPfd.close();
+        } catch (IOException ignored) {
+        }
+        deleteSpool(spool);
+    }
+
+    /**
+     * Spools of a previous process, which can't be committed anymore.
+     */
+    private static void clearLeftovers(File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SPOOL_SUFFIX)) {
+                deleteSpool(file);
+            }
+        }
+    }
+
+    private static void deleteSpool(File spool) {
+        if (spool.exists() && !spool.delete()) {
+            Log.w(TAG, "Couldn't delete: " + spool);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.qtproject.qt5.android;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a directory recursively, listing the subdirectories in parallel on the
+ * given executor. Results are handed out in batches through {@link #next(int)},
+ * and at most {@link #QUEUE_CAPACITY} of them are held at a time, the listing
+ * threads wait for the reader to catch up.
+ * <p>
+ * The executor is shared by all the walks, so a walk whose reader has gone
+ * away without cancelling it would hold its threads forever. A walk which
+ * hasn't been read from for {@link #ABANDON_AFTER_MS} while its results are
+ * full cancels itself.
+ */
+class TreeWalker {
+
+    private static final String TAG = "TreeWalker";
+
+    static final int QUEUE_CAPACITY = 4096;
+    static final long ABANDON_AFTER_MS = 60 * 1000;
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    interface Lister {
+        /**
+         * @return children of the directory, null if it couldn't be listed.
+         */
+        List<CachedDocumentFile> list(Uri directoryUri);
+    }
+
+    static class Result {
+        // relative to the root of the walk, separated by "/"
+        final String path;
+        final CachedDocumentFile file;
+
+        Result(String path, CachedDocumentFile file) {
+            this.path = path;
+            this.file = file;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final Lister mLister;
+    private final int mMaxDepth;
+    private final Pattern mFilter;
+
+    private final BlockingQueue<Result> mResults = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    // directories which are yet to be listed, or are being listed
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile boolean mCancelled = false;
+    private volatile long mLastReadAt = SystemClock.elapsedRealtime();
+    private volatile long mAbandonAfterMs = ABANDON_AFTER_MS;
+
+    /**
+     * @param maxDepth   how deep to go, 1 being just the children of the root;
+     *                   negative for no limit.
+     * @param nameFilter only documents whose names match the regular expression are
+     *                   returned, directories are walked regardless. Null to return all.
+     */
+    TreeWalker(ExecutorService executor, Lister lister, int maxDepth, String nameFilter) {
+        mExecutor = executor;
+        mLister = lister;
+        mMaxDepth = maxDepth;
+        mFilter = nameFilter != null ? Pattern.compile(nameFilter) : null;
+    }
+
+    void setAbandonAfterMs(long abandonAfterMs) {
+        mAbandonAfterMs = abandonAfterMs;
+    }
+
+    void start(Uri rootUri) {
+        submit(rootUri, "", 1);
+    }
+
+    /**
+     * Blocks until at least one result is available or the walk has finished.
+     *
+     * @return at most {@code count} results, empty once the walk has finished.
+     */
+    List<Result> next(int count) {
+        mLastReadAt = SystemClock.elapsedRealtime();
+        final List<Result> batch = new ArrayList<>();
+        while (batch.size() < count && !mCancelled) {
+            Result result;
+            if (batch.isEmpty()) {
+                try {
+                    result = mResults.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } else {
+                result = mResults.poll();
+            }
+
+            if (result == null) {
+                if (!batch.isEmpty() || isFinished()) {
+                    break;
+                }
+                continue;
+            }
+            batch.add(result);
+        }
+        return batch;
+    }
+
+    void cancel() {
+        mCancelled = true;
+        mResults.clear();
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private boolean isFinished() {
+        return mPending.get() == 0 && mResults.isEmpty();
+    }
+
+    private void submit(final Uri directoryUri, final String prefix, final int depth) {
+        mPending.incrementAndGet();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        walk(directoryUri, prefix, depth);
+                    } finally {
+                        mPending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "submit(): Couldn't walk: " + directoryUri);
+            mPending.decrementAndGet();
+        }
+    }
+
+    private void walk(Uri directoryUri, String prefix, int depth) {
+        if (mCancelled) {
+            return;
+        }
+
+        final List<CachedDocumentFile> children = mLister.list(directoryUri);
+        if (children == null) {
+            return;
+        }
+
+        for (CachedDocumentFile child : children) {
+            if (mCancelled) {
+                return;
+            }
+
+            final String path = prefix + child.getName();
+            if (child.isDirectory() && (mMaxDepth < 0 || depth < mMaxDepth)) {
+                submit(child.getUri(), path + "/", depth + 1);
+            }
+            if (mFilter == null || mFilter.matcher(child.getName()).matches()) {
+                offer(new Result(path, child));
+            }
+        }
+    }
+
+    private void offer(Result result) {
+        try {
+            while (!mCancelled) {
+                if (mResults.offer(result, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+                if (SystemClock.elapsedRealtime() - mLastReadAt >= mAbandonAfterMs) {
+                    Log.w(TAG, "offer(): Not read from in " + mAbandonAfterMs + "ms, cancelling");
+                    cancel();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}